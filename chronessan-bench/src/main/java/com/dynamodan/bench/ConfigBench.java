@@ -0,0 +1,120 @@
+// ConfigSingleton.loadConfig on yaml files of a few realistic sizes (a
+// handful of db and smtp settings plus a list of job sections), both parsing
+// the file and finding it unchanged in ConfigLoader's cache, and reading a
+// setting from the raw map, a ConfigSnapshot and a bound object.
+package com.dynamodan.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.dynamodan.framework.ConfigLoader;
+import com.dynamodan.framework.ConfigSingleton;
+import com.dynamodan.framework.ConfigSingletonException;
+import com.dynamodan.framework.ConfigSnapshot;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigBench {
+	// how many job sections, at 5 keys each
+	@Param({ "4", "100", "1000" })
+	public int jobs;
+
+	private File file;
+	private Object raw;
+	private ConfigSnapshot snapshot;
+	private Settings bound;
+
+	public static class Settings {
+		public int mysqlPoolSize = 8;
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		file = File.createTempFile("configbench", ".yaml.conf");
+		FileWriter w = new FileWriter(file);
+		w.write("---\n"
+			+ "email_sender: info@example.com\n"
+			+ "email_recipient: ops@example.com\n"
+			+ "smtp_host: mail.example.com\n"
+			+ "mysql_host: db.example.com\n"
+			+ "mysql_port: 3306\n"
+			+ "mysql_schema: warehouse\n"
+			+ "mysql_user: etl\n"
+			+ "mysql_pass: secret\n"
+			+ "mysql_pool_size: 8\n"
+			+ "jobs:\n");
+		for(int i = 0; i < jobs; i++) {
+			w.write("  - name: job_"+i+"\n"
+				+ "    table: source_table_"+i+"\n"
+				+ "    schedule: \"*/5 * * * *\"\n"
+				+ "    batch_size: 1000\n"
+				+ "    enabled: true\n");
+		}
+		w.close();
+		ConfigSingleton.getInstance().setConfigPath(file.getAbsolutePath());
+		try {
+			raw = ConfigSingleton.loadConfig();
+			snapshot = ConfigSingleton.loadSnapshot();
+			bound = snapshot.bind(Settings.class);
+		} catch (ConfigSingletonException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@TearDown
+	public void teardown() {
+		file.delete();
+	}
+
+	// parsing the file every time:
+	@Benchmark
+	public Object loadConfig() throws ConfigSingletonException {
+		ConfigLoader.clearCache();
+		return ConfigSingleton.loadConfig();
+	}
+
+	@Benchmark
+	public ConfigSnapshot loadSnapshot() throws ConfigSingletonException {
+		ConfigLoader.clearCache();
+		return ConfigSingleton.loadSnapshot();
+	}
+
+	// the file hasn't changed since the last load, so it's only read and hashed:
+	@Benchmark
+	public Object loadConfigCached() throws ConfigSingletonException {
+		return ConfigSingleton.loadConfig();
+	}
+
+	@Benchmark
+	public ConfigSnapshot loadSnapshotCached() throws ConfigSingletonException {
+		return ConfigSingleton.loadSnapshot();
+	}
+
+	// reading one setting the way the getters used to:
+	@Benchmark
+	public int rawLookup() {
+		if(raw instanceof LinkedHashMap && ((LinkedHashMap) raw).get("mysql_pool_size") != null) {
+			return Integer.parseInt(((LinkedHashMap) raw).get("mysql_pool_size").toString());
+		}
+		return 8;
+	}
+
+	@Benchmark
+	public int snapshotLookup() {
+		return snapshot.getInt("mysql_pool_size", 8);
+	}
+
+	@Benchmark
+	public int boundField() {
+		return bound.mysqlPoolSize;
+	}
+}
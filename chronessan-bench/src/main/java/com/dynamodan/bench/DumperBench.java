@@ -0,0 +1,74 @@
+// the pp/ppy/ppj dumpers on a batch of result rows, the way they get used to
+// dump query results.
+package com.dynamodan.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.dynamodan.framework.Chronessan;
+import com.dynamodan.framework.Dumper;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DumperBench {
+	@Param({ "10", "1000" })
+	public int rows;
+
+	private static final OutputStream NULL = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	private Chronessan chronessan;
+	private List<LinkedHashMap<String, String>> batch;
+
+	@Setup
+	public void setup() {
+		chronessan = new Chronessan();
+		Chronessan.self = chronessan;
+		batch = new ArrayList<LinkedHashMap<String, String>>();
+		for(int r = 0; r < rows; r++) {
+			LinkedHashMap<String, String> row = new LinkedHashMap<String, String>();
+			for(int c = 1; c <= 10; c++) {
+				row.put("col_"+c, "value "+r+"/"+c);
+			}
+			batch.add(row);
+		}
+	}
+
+	@Benchmark
+	public String pp() {
+		return chronessan.pp(batch);
+	}
+
+	@Benchmark
+	public String ppy() {
+		return chronessan.ppy(batch);
+	}
+
+	@Benchmark
+	public String ppj() {
+		return chronessan.ppj(batch);
+	}
+
+	// the streaming version, to a stream that throws the bytes away:
+	@Benchmark
+	public void ppjStream() throws IOException {
+		Writer out = Dumper.writer(NULL);
+		Dumper.ppjEach(batch.iterator(), out);
+	}
+}
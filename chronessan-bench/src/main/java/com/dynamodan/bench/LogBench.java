@@ -0,0 +1,92 @@
+// Wrapper.log and Wrapper.warning, logging to a real file through log4j,
+// synchronously and through the async queue, from one thread and from four.
+package com.dynamodan.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.dynamodan.loghelper.WarningStore;
+import com.dynamodan.loghelper.Wrapper;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogBench {
+	// sync logs on the caller's thread; async goes through AsyncLogQueue
+	@Param({ "sync", "async" })
+	public String mode;
+
+	// 0 logs every message; 10 lets the repeat suppressor collapse them
+	@Param({ "0", "10" })
+	public int repeatBurst;
+
+	private final AtomicLong counter = new AtomicLong();
+	private File dir;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = File.createTempFile("logbench", "");
+		dir.delete();
+		dir.mkdirs();
+		File props = new File(dir, "bench.log4j.properties");
+		FileWriter w = new FileWriter(props);
+		w.write("log4j.rootLogger=INFO, FA\n"
+			+ "log4j.appender.FA=org.apache.log4j.FileAppender\n"
+			+ "log4j.appender.FA.File=${log.folder}bench.log\n"
+			+ "log4j.appender.FA.append=false\n"
+			+ "log4j.appender.FA.layout=org.apache.log4j.PatternLayout\n"
+			+ "log4j.appender.FA.layout.conversionPattern=%d{yyyy-MM-dd HH:mm:ss} [%X{PID}] %F:%L %m%n\n");
+		w.close();
+
+		Wrapper lw = Wrapper.getInstance(props.getAbsolutePath(), dir.getAbsolutePath()+"/");
+		lw.setWarningStore(new WarningStore(1000));
+		Wrapper.setRepeatLimit(repeatBurst, 1000);
+		if("async".equals(mode)) {
+			Wrapper.startAsync(8192, "block", 10, true);
+		}
+	}
+
+	@TearDown
+	public void teardown() {
+		Wrapper.stopAsync();
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void log() {
+		Wrapper.log("processed row "+counter.incrementAndGet());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void log4Threads() {
+		Wrapper.log("processed row "+counter.incrementAndGet());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void warning4Threads() {
+		Wrapper.warning("row "+counter.incrementAndGet()+" failed validation");
+	}
+
+	// how long a caller waits on log(), percentiles included:
+	@Benchmark
+	@Threads(4)
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void logLatency() {
+		Wrapper.log("processed row "+counter.incrementAndGet());
+	}
+}
@@ -0,0 +1,77 @@
+// getRowHash against the RowView ways of reading the same rows.  One
+// operation walks the whole (stub) result set.
+package com.dynamodan.bench;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.dynamodan.dbhelper.ColumnIndex;
+import com.dynamodan.dbhelper.RowView;
+import com.dynamodan.framework.Chronessan;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowHashBench {
+	@Param({ "10", "40" })
+	public int columns;
+
+	@Param({ "1000" })
+	public int rows;
+
+	private StubResultSet stub;
+	private Chronessan chronessan;
+
+	@Setup
+	public void setup() {
+		stub = new StubResultSet(rows, columns);
+		chronessan = new Chronessan();
+		Chronessan.self = chronessan;
+	}
+
+	@Benchmark
+	public void getRowHash(Blackhole bh) throws SQLException {
+		ResultSet rs = stub.rewind();
+		while(rs.next()) {
+			bh.consume(chronessan.getRowHash(rs));
+		}
+	}
+
+	@Benchmark
+	public void rowViewToMap(Blackhole bh) throws SQLException {
+		RowView row = new RowView(stub.rewind());
+		while(row.next()) {
+			bh.consume(row.toMap());
+		}
+	}
+
+	// reading each column with the getter that suits its type, no boxing:
+	@Benchmark
+	public void rowViewTyped(Blackhole bh) throws SQLException {
+		RowView row = new RowView(stub.rewind());
+		ColumnIndex columns = row.getColumns();
+		int count = columns.size();
+		while(row.next()) {
+			for(int c = 1; c <= count; c++) {
+				switch(columns.type(c)) {
+					case Types.BIGINT: bh.consume(row.getLong(c)); break;
+					case Types.DECIMAL: bh.consume(row.getDouble(c)); break;
+					default: bh.consume(row.getString(c));
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public long rowViewStream() throws SQLException {
+		return RowView.stream(stub.rewind()).mapToLong(r -> r.getLong(1)).sum();
+	}
+}
@@ -0,0 +1,133 @@
+// an in-memory ResultSet for the benchmarks, so they measure the row mapping
+// code and not a database.  Every cell's string and object form is built up
+// front, so the stub itself costs next to nothing per call.
+package com.dynamodan.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+public class StubResultSet implements InvocationHandler {
+	// the columns cycle through these types:
+	private static final int[] TYPES = { Types.BIGINT, Types.VARCHAR, Types.DECIMAL, Types.TIMESTAMP, Types.VARCHAR };
+
+	private final int rows;
+	private final int columns;
+	private final Object[][] objects;
+	private final String[][] strings;
+	private final ResultSet resultSet;
+	private final ResultSetMetaData metaData;
+	private int cursor = -1;
+	private boolean lastNull = false;
+
+	public StubResultSet(int rows, int columns) {
+		this.rows = rows;
+		this.columns = columns;
+		this.objects = new Object[rows][columns + 1];
+		this.strings = new String[rows][columns + 1];
+		long base = 1500000000000L;
+		for(int r = 0; r < rows; r++) {
+			for(int c = 1; c <= columns; c++) {
+				Object value;
+				switch(TYPES[(c - 1) % TYPES.length]) {
+					case Types.BIGINT: value = Long.valueOf(r * 1000L + c); break;
+					case Types.DECIMAL: value = BigDecimal.valueOf(r * 100 + c, 2); break;
+					case Types.TIMESTAMP: value = new Timestamp(base + r * 60000L); break;
+					default: value = (r % 17 == 0) ? null : "value " + r + "/" + c;
+				}
+				objects[r][c] = value;
+				strings[r][c] = (value == null) ? null : value.toString();
+			}
+		}
+		this.resultSet = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ResultSet.class }, this);
+		this.metaData = (ResultSetMetaData) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ResultSetMetaData.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String m = method.getName();
+				if("getColumnCount".equals(m)) { return StubResultSet.this.columns; }
+				if("getColumnLabel".equals(m) || "getColumnName".equals(m)) { return "col_" + args[0]; }
+				if("getColumnType".equals(m)) { return TYPES[((Integer) args[0] - 1) % TYPES.length]; }
+				throw new UnsupportedOperationException(m);
+			}
+		});
+	}
+
+	public ResultSet getResultSet() {
+		return resultSet;
+	}
+
+	// back to before the first row:
+	public ResultSet rewind() {
+		cursor = -1;
+		return resultSet;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+		String m = method.getName();
+		switch(m) {
+			case "next":
+				return ++cursor < rows;
+			case "getMetaData":
+				return metaData;
+			case "getString":
+				return strings[cursor][column(args[0])];
+			case "getObject":
+			case "getBigDecimal":
+			case "getTimestamp":
+				return objects[cursor][column(args[0])];
+			case "getLong": {
+				Object v = objects[cursor][column(args[0])];
+				lastNull = v == null;
+				return (v instanceof Number) ? ((Number) v).longValue() : 0L;
+			}
+			case "getInt": {
+				Object v = objects[cursor][column(args[0])];
+				lastNull = v == null;
+				return (v instanceof Number) ? ((Number) v).intValue() : 0;
+			}
+			case "getDouble": {
+				Object v = objects[cursor][column(args[0])];
+				lastNull = v == null;
+				return (v instanceof Number) ? ((Number) v).doubleValue() : 0.0;
+			}
+			case "wasNull":
+				return lastNull;
+			case "setFetchSize":
+			case "close":
+				return null;
+			case "isClosed":
+				return false;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			default:
+				throw new SQLException("StubResultSet doesn't do "+m);
+		}
+	}
+
+	private int column(Object arg) {
+		if(arg instanceof Integer) {
+			lastNull = false;
+			return (Integer) arg;
+		}
+		return Integer.parseInt(arg.toString().substring(4));
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public static int type(int column) {
+		return TYPES[(column - 1) % TYPES.length];
+	}
+}
@@ -0,0 +1,61 @@
+#!/bin/bash
+# Fast-start launcher for Chronessan programs.
+#
+# usage: chronessan-launch.sh <project dir> <main class> [program args...]
+#
+# Running maven twice on every start (once to compile, once to print the
+# classpath) costs seconds.  This runs it only when the pom or something under
+# src/main has changed: the resolved classpath is cached in target/launch-cache
+# along with a hash of those files, and as long as the hash still matches the
+# program is started straight from target/classes.
+#
+# Set CHRONESSAN_REBUILD=1 to force a rebuild, and JAVA_OPTS to pass options
+# to the jvm.
+
+dir="$1"
+main="$2"
+shift 2
+
+if [ -z "$dir" ] || [ -z "$main" ]; then
+	echo "usage: $0 <project dir> <main class> [args...]" >&2
+	exit 2
+fi
+
+pom="$dir/pom.xml"
+cache="$dir/target/launch-cache"
+mvn="${MVN:-$(command -v mvn || echo /usr/bin/mvn)}"
+
+# hash of the pom, the sources and resources, and the java in use:
+current_key() {
+	{
+		command -v java
+		echo "$JAVA_HOME"
+		find "$pom" "$dir/src/main" -type f -print0 2>/dev/null | sort -z | xargs -0 md5sum
+	} | md5sum | cut -d' ' -f1
+}
+
+key=$(current_key)
+
+if [ "$CHRONESSAN_REBUILD" != "1" ] && [ -f "$cache/key" ] && [ -f "$cache/classpath" ] \
+	&& [ -d "$dir/target/classes" ] && [ "$(cat "$cache/key")" = "$key" ]; then
+	exec java $JAVA_OPTS -cp "$(cat "$cache/classpath")" "$main" "$@"
+fi
+
+# something changed (or this is the first run): rebuild, one process at a time
+mkdir -p "$cache"
+exec 9>"$cache/lock"
+if command -v flock >/dev/null; then
+	flock 9
+fi
+
+# another run may have rebuilt while we waited for the lock:
+if [ "$CHRONESSAN_REBUILD" = "1" ] || [ ! -f "$cache/key" ] || [ "$(cat "$cache/key")" != "$key" ]; then
+	"$mvn" compile -f "$pom" -q || exit $?
+	classpath=$("$mvn" -f "$pom" exec:exec -q) || exit $?
+	echo "$classpath" > "$cache/classpath.tmp" && mv "$cache/classpath.tmp" "$cache/classpath"
+	# hash again, in case the build itself touched anything we hash:
+	current_key > "$cache/key"
+fi
+exec 9>&-
+
+exec java $JAVA_OPTS -cp "$(cat "$cache/classpath")" "$main" "$@"
@@ -0,0 +1,246 @@
+// groups rows into jdbc batches instead of sending them one statement at a
+// time.  Rows are flushed every batchSize rows, or on the first add() after
+// flushInterval ms have passed since the last flush, and always on flush()
+// or close().  Each flush runs in a single transaction when the connection
+// is in autocommit mode, which is where most of the speedup comes from.
+//
+// For MySQL and MariaDB a plain "INSERT ... VALUES (?, ?)" can also be
+// rewritten into one multi-row INSERT per flush, which saves a round trip per
+// row even on drivers that don't rewrite batches themselves.  Its sql changes
+// with the number of rows, so it stays out of the StatementCache: the writer
+// keeps the full-sized one until close(), and prepares the odd short one
+// (the last flush, or one on the interval) just for that flush.
+//
+//	BatchWriter bw = new BatchWriter(c, "INSERT INTO t (a, b) VALUES (?, ?)", 1000, 5000, true);
+//	for(...) { bw.add(a, b); }
+//	bw.close();
+package com.dynamodan.dbhelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.dynamodan.loghelper.Wrapper.debug;
+
+public class BatchWriter implements AutoCloseable {
+	private static final Pattern INSERT = Pattern.compile("(?is)^\\s*(INSERT\\s+(?:IGNORE\\s+)?INTO\\s+.+?\\s+VALUES)\\s*(\\([^()]*\\))\\s*(ON\\s+DUPLICATE\\s+KEY\\s+UPDATE\\s+.*)?;?\\s*$");
+	
+	// mysql allows at most 65535 placeholders in one statement:
+	private static final int MAX_PLACEHOLDERS = 65535;
+	
+	private final Connection connection;
+	private final String sql;
+	private final StatementCache statements;
+	private final int batchSize;
+	private final long flushInterval;
+	
+	// set when rewriting into multi-row inserts:
+	private String insertPrefix = null;
+	private String insertTuple = null;
+	private String insertSuffix = "";
+	private int columns = 0;
+	private Object[][] buffered = null;
+	
+	// the full-sized multi-row insert, kept until close():
+	private PreparedStatement fullInsert = null;
+	
+	// otherwise rows go into a jdbc batch on this:
+	private PreparedStatement batch = null;
+	
+	private int pending = 0;
+	private long lastFlush = System.currentTimeMillis();
+	private long rowCount = 0;
+	private long flushCount = 0;
+	
+	public BatchWriter(Connection connection, String sql, int batchSize) throws SQLException {
+		this(connection, sql, batchSize, 0, false);
+	}
+	
+	/**
+	 * @param flushInterval ms between flushes, or 0 to flush on size only
+	 * @param rewriteInserts rewrite the insert into multi-row form, if this is a MySQL or MariaDB connection
+	 */
+	public BatchWriter(Connection connection, String sql, int batchSize, long flushInterval, boolean rewriteInserts) throws SQLException {
+		this.connection = connection;
+		this.sql = sql;
+		this.statements = StatementCache.forConnection(connection);
+		this.batchSize = (batchSize < 1) ? 1 : batchSize;
+		this.flushInterval = flushInterval;
+		
+		if(rewriteInserts) {
+			String product = connection.getMetaData().getDatabaseProductName();
+			Matcher m = INSERT.matcher(sql);
+			if(product != null && (product.contains("MySQL") || product.contains("MariaDB")) && m.matches()) {
+				insertPrefix = m.group(1);
+				insertTuple = m.group(2);
+				insertSuffix = (m.group(3) == null) ? "" : " " + m.group(3);
+				columns = countPlaceholders(insertTuple);
+			}
+			if(columns == 0) {
+				insertPrefix = null;
+				debug("Not rewriting into a multi-row insert, sending jdbc batches instead: "+sql);
+			} else {
+				int rows = Math.min(this.batchSize, MAX_PLACEHOLDERS / columns);
+				buffered = new Object[rows][];
+			}
+		}
+	}
+	
+	/**
+	 * queue up one row, one value per placeholder
+	 */
+	public void add(Object... values) throws SQLException {
+		if(insertPrefix != null) {
+			if(values.length != columns) {
+				throw new SQLException("Expected "+columns+" values per row, got "+values.length+": "+sql);
+			}
+			buffered[pending++] = values.clone();
+			if(pending == buffered.length) {
+				flush();
+				return;
+			}
+		} else {
+			if(pending == 0) {
+				batch = statements.prepare(sql);
+			}
+			for(int i = 0; i < values.length; i++) {
+				batch.setObject(i + 1, values[i]);
+			}
+			batch.addBatch();
+			pending++;
+			if(pending >= batchSize) {
+				flush();
+				return;
+			}
+		}
+		
+		if(flushInterval > 0 && System.currentTimeMillis() - lastFlush >= flushInterval) {
+			flush();
+		}
+	}
+	
+	/**
+	 * send whatever is queued.  Returns the number of rows sent.
+	 */
+	public int flush() throws SQLException {
+		lastFlush = System.currentTimeMillis();
+		if(pending == 0) {
+			return 0;
+		}
+		
+		int rows = pending;
+		boolean autoCommit = connection.getAutoCommit();
+		if(autoCommit) {
+			connection.setAutoCommit(false);
+		}
+		try {
+			if(insertPrefix != null) {
+				boolean full = rows == buffered.length;
+				if(full && fullInsert == null) {
+					fullInsert = connection.prepareStatement(multiRowSql(rows));
+				}
+				PreparedStatement ps = full ? fullInsert : connection.prepareStatement(multiRowSql(rows));
+				try {
+					int p = 1;
+					for(int r = 0; r < rows; r++) {
+						Object[] values = buffered[r];
+						for(int i = 0; i < values.length; i++) {
+							ps.setObject(p++, values[i]);
+						}
+						buffered[r] = null;
+					}
+					ps.executeUpdate();
+				} finally {
+					if(!full) {
+						ps.close();
+					}
+				}
+			} else {
+				batch.executeBatch();
+			}
+			if(autoCommit) {
+				connection.commit();
+			}
+		} catch (SQLException e) {
+			if(batch != null) {
+				// some drivers keep the rows of a batch that failed, and the statement goes back to the cache:
+				try {
+					batch.clearBatch();
+				} catch (SQLException ce) {
+					debug("Couldn't clear the failed batch: "+ce.getMessage());
+				}
+			}
+			if(autoCommit) {
+				// the failed batch is what the caller needs to see, not a rollback that failed after it:
+				try {
+					connection.rollback();
+				} catch (SQLException re) {
+					e.addSuppressed(re);
+				}
+			}
+			throw e;
+		} finally {
+			pending = 0;
+			if(autoCommit) {
+				connection.setAutoCommit(true);
+			}
+		}
+		
+		rowCount += rows;
+		flushCount++;
+		return rows;
+	}
+	
+	public void close() throws SQLException {
+		try {
+			flush();
+		} finally {
+			if(fullInsert != null) {
+				fullInsert.close();
+				fullInsert = null;
+			}
+		}
+	}
+	
+	public long getRowCount() {
+		return rowCount;
+	}
+	
+	public long getFlushCount() {
+		return flushCount;
+	}
+	
+	public boolean isRewritingInserts() {
+		return insertPrefix != null;
+	}
+	
+	private String multiRowSql(int rows) {
+		StringBuilder sb = new StringBuilder(insertPrefix.length() + insertSuffix.length() + rows * (insertTuple.length() + 1));
+		sb.append(insertPrefix).append(' ');
+		for(int r = 0; r < rows; r++) {
+			if(r > 0) { sb.append(','); }
+			sb.append(insertTuple);
+		}
+		sb.append(insertSuffix);
+		return sb.toString();
+	}
+	
+	// placeholders outside of quoted literals:
+	private static int countPlaceholders(String tuple) {
+		int count = 0;
+		char quote = 0;
+		for(int i = 0; i < tuple.length(); i++) {
+			char ch = tuple.charAt(i);
+			if(quote != 0) {
+				if(ch == quote) { quote = 0; }
+			} else if(ch == '\'' || ch == '"' || ch == '`') {
+				quote = ch;
+			} else if(ch == '?') {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,226 @@
+// the rows of a query as ResultCache keeps them: one buffer (a mapped cache
+// file, or the bytes just written to it) that values are decoded from when
+// they're asked for, so a big reference table that's only looked into here
+// and there costs little more than mapping the file.
+//
+// Rows and columns are numbered like jdbc's, columns from 1, but rows from 0
+// as in a list.  Whole numbers come back as Long, binary columns as byte[],
+// everything else as the String the driver gave for it.
+//
+// The file layout (all numbers are varints, strings are a length and utf-8):
+//   "CHRC" format created(8 bytes) keyHash version columns labels... rows
+//   row data: a tag per value (0 null, 1 number, 2 string, 3 bytes) and the value
+//   row offsets (4 bytes each), and where they start (8 bytes) at the very end
+package com.dynamodan.dbhelper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+public class CachedResult {
+	static final int MAGIC = 0x43485243;
+	static final int FORMAT = 1;
+	static final byte NULL = 0, NUMBER = 1, STRING = 2, BYTES = 3;
+
+	private final ByteBuffer buffer;
+	private final boolean fromCache;
+	private final long created;
+	private final String key;
+	private final String version;
+	private final String[] labels;
+	private final HashMap<String, Integer> positions;
+	private final int rows;
+	private final int offsets;
+
+	/**
+	 * read the header of buffer (a whole cache file), leaving the rows until they're asked for
+	 */
+	CachedResult(ByteBuffer buffer, boolean fromCache) {
+		this.buffer = buffer;
+		this.fromCache = fromCache;
+		if(buffer.limit() < 16 || buffer.getInt(0) != MAGIC || buffer.get(4) != FORMAT) {
+			throw new IllegalArgumentException("not a result cache file");
+		}
+		this.created = buffer.getLong(5);
+		int[] pos = { 13 };
+		this.key = readString(buffer, pos);
+		this.version = readString(buffer, pos);
+		int count = (int) readVarLong(buffer, pos);
+		this.labels = new String[count + 1];
+		this.positions = new HashMap<String, Integer>(count * 4);
+		for(int i = 1; i <= count; i++) {
+			labels[i] = readString(buffer, pos);
+			if(!positions.containsKey(labels[i])) {
+				positions.put(labels[i], i);
+			}
+			String lower = labels[i].toLowerCase();
+			if(!positions.containsKey(lower)) {
+				positions.put(lower, i);
+			}
+		}
+		this.rows = (int) readVarLong(buffer, pos);
+		this.offsets = (int) buffer.getLong(buffer.limit() - 8);
+	}
+
+	public int rowCount() {
+		return rows;
+	}
+
+	public int columnCount() {
+		return labels.length - 1;
+	}
+
+	// 1-based, like jdbc:
+	public String label(int column) {
+		return labels[column];
+	}
+
+	// the 1-based position of a column label (exact match first, then case-insensitive), or -1
+	public int indexOf(String label) {
+		Integer pos = positions.get(label);
+		if(pos == null) {
+			pos = positions.get(label.toLowerCase());
+		}
+		return (pos == null) ? -1 : pos.intValue();
+	}
+
+	// whether this came out of the cache rather than from the database just now:
+	public boolean isFromCache() {
+		return fromCache;
+	}
+
+	// when the rows were read from the database (System.currentTimeMillis()):
+	public long getCreated() {
+		return created;
+	}
+
+	// what the version query said when they were, or "":
+	public String getVersion() {
+		return version;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	public Object get(int row, int column) {
+		int[] pos = seek(row, column);
+		switch(buffer.get(pos[0]++)) {
+			case NULL: return null;
+			case NUMBER: return readVarLong(buffer, pos);
+			case STRING: return readString(buffer, pos);
+			default: return readBytes(buffer, pos);
+		}
+	}
+
+	public Object get(int row, String label) {
+		return get(row, column(label));
+	}
+
+	// the value as text, null for NULL:
+	public String getString(int row, int column) {
+		Object value = get(row, column);
+		if(value instanceof byte[]) {
+			return new String((byte[]) value, StandardCharsets.UTF_8);
+		}
+		return (value == null) ? null : value.toString();
+	}
+
+	public String getString(int row, String label) {
+		return getString(row, column(label));
+	}
+
+	// the value as a number, 0 for NULL:
+	public long getLong(int row, int column) {
+		Object value = get(row, column);
+		if(value instanceof Long) {
+			return (Long) value;
+		}
+		return (value == null) ? 0 : Long.parseLong(getString(row, column).trim());
+	}
+
+	public long getLong(int row, String label) {
+		return getLong(row, column(label));
+	}
+
+	/**
+	 * a row as a map of label to string, with NULL as "", the same as getRowHash()
+	 */
+	public LinkedHashMap<String, String> toMap(int row) {
+		int count = columnCount();
+		LinkedHashMap<String, String> output = new LinkedHashMap<String, String>(count * 2);
+		for(int i = 1; i <= count; i++) {
+			String value = getString(row, i);
+			output.put(labels[i], (value == null) ? "" : value);
+		}
+		return output;
+	}
+
+	public List<LinkedHashMap<String, String>> toMaps() {
+		List<LinkedHashMap<String, String>> list = new ArrayList<LinkedHashMap<String, String>>(rows);
+		for(int row = 0; row < rows; row++) {
+			list.add(toMap(row));
+		}
+		return list;
+	}
+
+	// where a value starts, skipping the ones before it in its row:
+	private int[] seek(int row, int column) {
+		if(row < 0 || row >= rows) {
+			throw new IndexOutOfBoundsException("row "+row+" of "+rows);
+		}
+		if(column < 1 || column >= labels.length) {
+			throw new IndexOutOfBoundsException("column "+column+" of "+columnCount());
+		}
+		int[] pos = { buffer.getInt(offsets + 4 * row) };
+		for(int i = 1; i < column; i++) {
+			byte tag = buffer.get(pos[0]++);
+			if(tag == NUMBER) {
+				readVarLong(buffer, pos);
+			} else if(tag != NULL) {
+				int length = (int) readVarLong(buffer, pos);
+				pos[0] += length;
+			}
+		}
+		return pos;
+	}
+
+	private int column(String label) {
+		int pos = indexOf(label);
+		if(pos < 0) {
+			throw new DbException(new SQLException("No column labelled "+label));
+		}
+		return pos;
+	}
+
+	// numbers are zigzag varints, so small negative ones stay short too:
+	static long readVarLong(ByteBuffer b, int[] pos) {
+		long raw = 0;
+		int shift = 0;
+		byte x;
+		do {
+			x = b.get(pos[0]++);
+			raw |= (long) (x & 0x7f) << shift;
+			shift += 7;
+		} while(x < 0);
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	static String readString(ByteBuffer b, int[] pos) {
+		return new String(readBytes(b, pos), StandardCharsets.UTF_8);
+	}
+
+	static byte[] readBytes(ByteBuffer b, int[] pos) {
+		int length = (int) readVarLong(b, pos);
+		byte[] bytes = new byte[length];
+		ByteBuffer d = b.duplicate();
+		d.position(pos[0]);
+		d.get(bytes);
+		pos[0] += length;
+		return bytes;
+	}
+}
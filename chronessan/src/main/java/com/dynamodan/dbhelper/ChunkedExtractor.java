@@ -0,0 +1,416 @@
+// pulls a big table out in parallel.  The query's {chunk} marker is replaced
+// with "key >= ? AND key < ?", the key's range (numeric, or a date/timestamp)
+// is cut into chunks, and the chunks run concurrently on a fixed number of
+// threads, each with its own connection borrowed from a ConnectionPool:
+//
+//     ChunkedExtractor x = new ChunkedExtractor(pool, "SELECT * FROM orders WHERE {chunk} AND status = ?", "id");
+//     x.findRange("orders");
+//     x.extractUnordered(row -> ...);            // on the worker threads, as rows arrive
+//     x.extractOrdered(values -> ..., "paid");   // on this thread, chunk by chunk
+//
+// extractUnordered hands each worker's RowView straight to the sink, so the
+// sink has to be thread safe and copy out what it keeps.  extractOrdered gives
+// every chunk a small bounded queue of copied rows and drains them on the
+// calling thread in chunk order; workers running ahead wait for room, so
+// memory stays bounded however big the table is.  Add an ORDER BY on the key
+// to get the rows within each chunk in order too.
+//
+// The first failure (sql or sink) stops the other chunks and is rethrown.
+package com.dynamodan.dbhelper;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.dynamodan.loghelper.Wrapper.debug;
+
+public class ChunkedExtractor {
+	public static final String CHUNK = "{chunk}";
+
+	// marks the end of a chunk's queue:
+	private static final Object[] END = new Object[0];
+
+	public interface Sink<T> {
+		void accept(T row) throws Exception;
+	}
+
+	// called (from a worker thread) as each chunk finishes:
+	public interface ProgressListener {
+		void chunkDone(ChunkedExtractor extractor, int chunk, long chunkRows);
+	}
+
+	private final ConnectionPool pool;
+	private final String sql;
+	private final String key;
+	private final int chunkParam; // how many ?s come before {chunk}
+	private Object low;
+	private Object high;
+	private int threads;
+	private int chunks;
+	private int fetchSize = 1000;
+	private int queueSize = 1000;
+	private ProgressListener listener;
+
+	// progress of the current (or last) extract:
+	private final LongAdder rows = new LongAdder();
+	private final AtomicInteger chunksDone = new AtomicInteger();
+	private volatile int chunkCount = 0;
+	private volatile long started = 0;
+	private volatile long finished = 0;
+
+	public ChunkedExtractor(ConnectionPool pool, String sql, String key) {
+		int at = sql.indexOf(CHUNK);
+		if(at < 0) {
+			throw new IllegalArgumentException("the query needs a "+CHUNK+" marker where the key range goes");
+		}
+		int params = 0;
+		for(int i = 0; i < at; i++) {
+			if(sql.charAt(i) == '?') {
+				params++;
+			}
+		}
+		this.pool = pool;
+		this.key = key;
+		this.chunkParam = params;
+		this.sql = sql.replace(CHUNK, "("+key+" >= ? AND "+key+" < ?)");
+		// leave a connection for the thread that started us:
+		this.threads = Math.max(1, pool.getMaxSize() - 1);
+		this.chunks = threads * 4;
+	}
+
+	/**
+	 * the range to extract, both ends included: Numbers, or java.util.Dates
+	 * (Timestamps, sql Dates).  Numeric keys have to fit in a long, so e.g. a
+	 * BIGINT UNSIGNED past Long.MAX_VALUE is rejected rather than cut wrong.
+	 */
+	public void setRange(Object low, Object high) {
+		if(low instanceof Number && high instanceof Number) {
+			try {
+				Math.subtractExact(Math.addExact(toLong((Number) high), 1), toLong((Number) low));
+			} catch (ArithmeticException e) {
+				throw new IllegalArgumentException("can't chunk on "+key+", the range "+low+" to "+high+" doesn't fit in a long");
+			}
+		}
+		this.low = low;
+		this.high = high;
+	}
+
+	/**
+	 * look the range up with SELECT MIN(key), MAX(key) FROM table
+	 */
+	public void findRange(String table) throws SQLException {
+		Connection c = pool.borrow();
+		try {
+			Statement st = c.createStatement();
+			try {
+				ResultSet rs = st.executeQuery("SELECT MIN("+key+"), MAX("+key+") FROM "+table);
+				if(rs.next()) {
+					setRange(rs.getObject(1), rs.getObject(2));
+				}
+				rs.close();
+			} finally {
+				st.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	// how many chunks run at once (each needs a connection from the pool):
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	// how many pieces to cut the range into; more than threads evens out skewed keys:
+	public void setChunks(int chunks) {
+		this.chunks = Math.max(1, chunks);
+	}
+
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	// rows buffered per chunk for extractOrdered:
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	public long getRowCount() {
+		return rows.sum();
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	public int getChunksDone() {
+		return chunksDone.get();
+	}
+
+	// rows per second so far:
+	public double getRate() {
+		long end = (finished > 0) ? finished : System.currentTimeMillis();
+		long ms = end - started;
+		return (started == 0 || ms <= 0) ? 0 : rows.sum() * 1000.0 / ms;
+	}
+
+	/**
+	 * run every chunk, handing each row to the sink on the worker thread that
+	 * read it.  Returns the number of rows.
+	 */
+	public long extractUnordered(final Sink<RowView> sink, final Object... params) throws SQLException {
+		return run(chunkBounds(), new ChunkTask() {
+			public long run(int chunk, RowView row, Failure failure) throws Exception {
+				long count = 0;
+				while(row.next() && !failure.isSet()) {
+					sink.accept(row);
+					rows.increment();
+					count++;
+				}
+				return count;
+			}
+		}, null, params);
+	}
+
+	/**
+	 * run every chunk, handing the rows (copied out as arrays) to the sink on
+	 * this thread, chunk by chunk in key order.  Returns the number of rows.
+	 */
+	public long extractOrdered(final Sink<Object[]> sink, final Object... params) throws SQLException {
+		final List<Object[]> bounds = chunkBounds();
+		final List<ArrayBlockingQueue<Object[]>> queues = new ArrayList<ArrayBlockingQueue<Object[]>>();
+		for(int i = 0; i < bounds.size(); i++) {
+			queues.add(new ArrayBlockingQueue<Object[]>(queueSize));
+		}
+		return run(bounds, new ChunkTask() {
+			public long run(int chunk, RowView row, Failure failure) throws Exception {
+				ArrayBlockingQueue<Object[]> queue = queues.get(chunk);
+				long count = 0;
+				try {
+					while(row.next()) {
+						if(!put(queue, row.toArray(), failure)) {
+							break;
+						}
+						rows.increment();
+						count++;
+					}
+					return count;
+				} finally {
+					put(queue, END, failure);
+				}
+			}
+		}, new Drain() {
+			public void drain(Failure failure) throws Exception {
+				for(int i = 0; i < queues.size() && !failure.isSet(); i++) {
+					ArrayBlockingQueue<Object[]> queue = queues.get(i);
+					while(!failure.isSet()) {
+						Object[] values = queue.poll(100, TimeUnit.MILLISECONDS);
+						if(values == END) {
+							break;
+						}
+						if(values != null) {
+							sink.accept(values);
+						}
+					}
+				}
+			}
+		}, params);
+	}
+
+	private interface ChunkTask {
+		long run(int chunk, RowView row, Failure failure) throws Exception;
+	}
+
+	private interface Drain {
+		void drain(Failure failure) throws Exception;
+	}
+
+	// the first thing that went wrong, which stops everything else:
+	private static class Failure {
+		private final AtomicReference<Throwable> first = new AtomicReference<Throwable>();
+
+		void set(Throwable t) {
+			first.compareAndSet(null, t);
+		}
+
+		boolean isSet() {
+			return first.get() != null;
+		}
+
+		void rethrow() throws SQLException {
+			Throwable t = first.get();
+			if(t == null) { return; }
+			if(t instanceof SQLException) { throw (SQLException) t; }
+			if(t instanceof DbException) { throw ((DbException) t).getSQLException(); }
+			if(t instanceof RuntimeException) { throw (RuntimeException) t; }
+			if(t instanceof Error) { throw (Error) t; }
+			throw new RuntimeException(t);
+		}
+	}
+
+	// wait for room in a chunk's queue, giving up if something else failed:
+	private static boolean put(ArrayBlockingQueue<Object[]> queue, Object[] values, Failure failure) throws InterruptedException {
+		while(!failure.isSet()) {
+			if(queue.offer(values, 100, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long run(final List<Object[]> bounds, final ChunkTask task, Drain drain, final Object[] params) throws SQLException {
+		final Failure failure = new Failure();
+		rows.reset();
+		chunksDone.set(0);
+		chunkCount = bounds.size();
+		started = System.currentTimeMillis();
+		finished = 0;
+
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, bounds.size())), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "chronessan-extract-"+threadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			// submitted in order, so the chunk being drained is always one of the running ones:
+			for(int i = 0; i < bounds.size(); i++) {
+				final int chunk = i;
+				executor.execute(new Runnable() {
+					public void run() {
+						runChunk(task, chunk, bounds.get(chunk), params, failure);
+					}
+				});
+			}
+			executor.shutdown();
+
+			if(drain != null) {
+				try {
+					drain.drain(failure);
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			}
+			while(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				debug("extract: "+chunksDone.get()+"/"+chunkCount+" chunks, "+rows.sum()+" rows");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure.set(e);
+		} finally {
+			executor.shutdownNow();
+			finished = System.currentTimeMillis();
+		}
+
+		failure.rethrow();
+		return rows.sum();
+	}
+
+	private void runChunk(ChunkTask task, int chunk, Object[] range, Object[] params, Failure failure) {
+		if(failure.isSet()) {
+			return;
+		}
+		long chunkRows;
+		try {
+			Connection c = pool.borrow();
+			try {
+				Object[] all = new Object[params.length + 2];
+				System.arraycopy(params, 0, all, 0, chunkParam);
+				all[chunkParam] = range[0];
+				all[chunkParam + 1] = range[1];
+				System.arraycopy(params, chunkParam, all, chunkParam + 2, params.length - chunkParam);
+
+				PreparedStatement ps = RowView.prepareStreaming(c, sql, fetchSize, all);
+				try {
+					ResultSet rs = ps.executeQuery();
+					try {
+						chunkRows = task.run(chunk, new RowView(rs), failure);
+					} finally {
+						rs.close();
+					}
+				} finally {
+					ps.close();
+				}
+			} finally {
+				c.close();
+			}
+		} catch (Throwable e) {
+			failure.set(e);
+			return;
+		}
+
+		chunksDone.incrementAndGet();
+		debug("extract chunk "+(chunk + 1)+"/"+chunkCount+" done, "+rows.sum()+" rows so far");
+		if(listener != null) {
+			listener.chunkDone(this, chunk, chunkRows);
+		}
+	}
+
+	/**
+	 * the [from, to) pairs for each chunk.  Empty if the range isn't known (e.g. an empty table).
+	 */
+	public List<Object[]> chunkBounds() {
+		List<Object[]> bounds = new ArrayList<Object[]>();
+		if(low == null || high == null) {
+			return bounds;
+		}
+
+		boolean dates = low instanceof java.util.Date;
+		long from = dates ? ((java.util.Date) low).getTime() : toLong((Number) low);
+		long to = dates ? ((java.util.Date) high).getTime() : toLong((Number) high);
+		to++; // exclusive
+
+		long span = to - from;
+		int n = (int) Math.max(1, Math.min(chunks, span));
+		long size = span / n + ((span % n == 0) ? 0 : 1);
+		for(long start = from; start < to; start += size) {
+			long end = Math.min(start + size, to);
+			if(dates) {
+				bounds.add(new Object[] { new Timestamp(start), new Timestamp(end) });
+			} else {
+				bounds.add(new Object[] { start, end });
+			}
+		}
+		return bounds;
+	}
+
+	// a numeric key rounded down, exactly (longValue() would quietly wrap a big BigInteger):
+	private static long toLong(Number n) {
+		if(n instanceof BigInteger) {
+			return ((BigInteger) n).longValueExact();
+		}
+		if(n instanceof BigDecimal) {
+			return ((BigDecimal) n).setScale(0, RoundingMode.FLOOR).longValueExact();
+		}
+		if(n instanceof Double || n instanceof Float) {
+			double d = Math.floor(n.doubleValue());
+			if(Double.isNaN(d) || d < Long.MIN_VALUE || d >= 0x1p63) {
+				throw new ArithmeticException(n+" doesn't fit in a long");
+			}
+			return (long) d;
+		}
+		return n.longValue();
+	}
+}
@@ -0,0 +1,60 @@
+// the column labels and types of a ResultSet, read from ResultSetMetaData
+// once so that per-row code never has to go back to the driver for them.
+package com.dynamodan.dbhelper;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+public class ColumnIndex {
+	private final String[] labels;
+	private final int[] types;
+	private final HashMap<String, Integer> positions;
+	
+	public ColumnIndex(ResultSetMetaData md) throws SQLException {
+		int count = md.getColumnCount();
+		labels = new String[count + 1];
+		types = new int[count + 1];
+		positions = new HashMap<String, Integer>(count * 2);
+		for(int i = 1; i <= count; i++) {
+			labels[i] = md.getColumnLabel(i);
+			types[i] = md.getColumnType(i);
+			// first one wins, like ResultSet.findColumn():
+			if(!positions.containsKey(labels[i])) {
+				positions.put(labels[i], i);
+			}
+			String lower = labels[i].toLowerCase();
+			if(!positions.containsKey(lower)) {
+				positions.put(lower, i);
+			}
+		}
+	}
+	
+	public static ColumnIndex of(ResultSet rs) throws SQLException {
+		return new ColumnIndex(rs.getMetaData());
+	}
+	
+	public int size() {
+		return labels.length - 1;
+	}
+	
+	// 1-based, like jdbc:
+	public String label(int column) {
+		return labels[column];
+	}
+	
+	// a java.sql.Types constant:
+	public int type(int column) {
+		return types[column];
+	}
+	
+	// the 1-based position of a column label (exact match first, then case-insensitive), or -1
+	public int indexOf(String label) {
+		Integer pos = positions.get(label);
+		if(pos == null) {
+			pos = positions.get(label.toLowerCase());
+		}
+		return (pos == null) ? -1 : pos.intValue();
+	}
+}
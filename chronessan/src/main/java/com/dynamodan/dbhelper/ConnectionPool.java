@@ -0,0 +1,519 @@
+// a small, bounded JDBC connection pool.  Connections handed out by borrow()
+// are proxies whose close() returns the physical connection to the pool, so
+// the usual try/finally (or try-with-resources) pattern is all a worker
+// thread needs.  Idle connections are validated on borrow, evicted after
+// sitting idle too long, and replaced transparently when they've gone stale.
+package com.dynamodan.dbhelper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dynamodan.metrichelper.Gauge;
+import com.dynamodan.metrichelper.Histogram;
+import com.dynamodan.metrichelper.Metrics;
+
+import static com.dynamodan.loghelper.Wrapper.debug;
+import static com.dynamodan.loghelper.Wrapper.warning;
+
+public class ConnectionPool {
+	// pools are shared per url+user, so every caller in the jvm draws from the same one:
+	private static final ConcurrentHashMap<String, ConnectionPool> pools = new ConcurrentHashMap<String, ConnectionPool>();
+	private static volatile ScheduledExecutorService evictor = null;
+	private static final long EVICT_PERIOD = 10000;
+
+	// a connection that was in use this recently is assumed to still be alive,
+	// which saves an isValid() round trip when borrowing in a tight loop:
+	private static final long VALIDATION_BYPASS = 500;
+
+	private final String name;
+	private final String url;
+	private final Properties info;
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private final PoolSemaphore permits;
+	private final AtomicInteger open = new AtomicInteger();
+	private final ThreadLocal<Connection> threadConnection = new ThreadLocal<Connection>();
+	private final Set<Lease> threadLeases = ConcurrentHashMap.newKeySet();
+	// every connection lent out and not given back yet, so close() can reach them:
+	private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+
+	private volatile int maxSize;
+	private volatile long idleTimeout = 300000;
+	private volatile long borrowTimeout = 30000;
+	private volatile int validationTimeout = 5;
+	private volatile int connectAttempts = 3;
+	private volatile boolean closed = false;
+	// times the statements run on this pool's connections, if set:
+	private volatile QueryStats queryStats = null;
+
+	// db.<name>.wait is the time borrow() spent getting a connection, db.<name>.connect the time opening new ones:
+	private final Histogram waitTime;
+	private final Histogram connectTime;
+
+	protected ConnectionPool(String name, String url, Properties info, int maxSize) {
+		this.name = name;
+		this.url = url;
+		this.info = info;
+		this.maxSize = maxSize;
+		this.permits = new PoolSemaphore(maxSize);
+		this.waitTime = Metrics.histogram("db."+name+".wait");
+		this.connectTime = Metrics.histogram("db."+name+".connect");
+		Metrics.gauge("db."+name+".open", new Gauge() {
+			public double value() {
+				return getOpenCount();
+			}
+		});
+		Metrics.gauge("db."+name+".active", new Gauge() {
+			public double value() {
+				return getActiveCount();
+			}
+		});
+	}
+
+	/**
+	 * get the shared pool for a url and user, creating it if needed.  The user
+	 * and pass may be null when the credentials are embedded in the url.
+	 */
+	public static ConnectionPool getPool(String name, String url, String user, String pass, int maxSize) {
+		String key = url + "|" + user;
+		ConnectionPool pool = pools.get(key);
+		if(pool != null && !pool.closed) {
+			return pool;
+		}
+
+		Properties info = new Properties();
+		if(user != null) { info.put("user", user); }
+		if(pass != null) { info.put("password", pass); }
+
+		synchronized(pools) {
+			pool = pools.get(key);
+			if(pool == null || pool.closed) {
+				pool = new ConnectionPool(name, url, info, maxSize);
+				pools.put(key, pool);
+				scheduleEviction();
+			}
+		}
+		return pool;
+	}
+
+	// give back whatever connections the calling thread holds from any pool, e.g. when a job run on a shared thread ends:
+	public static void releaseAllThreadConnections() {
+		for(ConnectionPool pool : pools.values()) {
+			pool.releaseThreadConnection();
+		}
+	}
+
+	// close every pool, e.g. at the end of a run:
+	public static void closeAll() {
+		releaseAllThreadConnections();
+		for(ConnectionPool pool : pools.values()) {
+			pool.close();
+		}
+		pools.clear();
+	}
+
+	/**
+	 * borrow a connection, waiting up to the borrow timeout if the pool is
+	 * exhausted.  Call close() on the returned connection to give it back.
+	 */
+	public Connection borrow() throws SQLException {
+		if(closed) {
+			throw new SQLException("Connection pool "+name+" is closed");
+		}
+
+		long start = System.nanoTime();
+		try {
+			if(!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+				throw new SQLException("Timed out after "+borrowTimeout+"ms waiting for a connection from pool "+name+" ("+maxSize+" max, "+open.get()+" open)");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection from pool "+name);
+		}
+
+		try {
+			PooledConnection pc;
+			while((pc = idle.pollFirst()) != null) {
+				if(validate(pc)) {
+					Connection c = lend(pc);
+					waitTime.recordSince(start);
+					return c;
+				}
+				discard(pc);
+			}
+			Connection c = lend(new PooledConnection(connect()));
+			waitTime.recordSince(start);
+			return c;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * the connection bound to the calling thread, borrowing one the first time
+	 * and replacing it if it has gone stale.  This backs the single-connection
+	 * getters on Chronessan so that each worker thread gets its own connection.
+	 */
+	public Connection getThreadConnection() throws SQLException {
+		Connection c = threadConnection.get();
+		if(c != null) {
+			Lease lease = (Lease) Proxy.getInvocationHandler(c);
+			if(lease.returned) {
+				releaseThreadConnection();
+			} else if(validate(lease.pooled)) {
+				return c;
+			} else {
+				lease.pooled.broken = true;
+				releaseThreadConnection();
+			}
+		}
+
+		c = borrow();
+		threadConnection.set(c);
+		threadLeases.add((Lease) Proxy.getInvocationHandler(c));
+		return c;
+	}
+
+	// give the calling thread's connection back to the pool:
+	public void releaseThreadConnection() {
+		Connection c = threadConnection.get();
+		if(c == null) {
+			return;
+		}
+		threadConnection.remove();
+		threadLeases.remove((Lease) Proxy.getInvocationHandler(c));
+		try {
+			c.close();
+		} catch (SQLException e) {
+			debug("Error returning connection to pool "+name+": "+e.getMessage());
+		}
+	}
+
+	// grow or shrink the pool.  Shrinking takes effect as connections come back.
+	public synchronized void setMaxSize(int size) {
+		if(size < 1) { size = 1; }
+		int diff = size - maxSize;
+		maxSize = size;
+		if(diff > 0) {
+			permits.release(diff);
+		} else if(diff < 0) {
+			permits.reducePermits(-diff);
+		}
+		// drop idle connections above the new size:
+		while(open.get() > size) {
+			PooledConnection pc = idle.pollLast();
+			if(pc == null) { break; }
+			discard(pc);
+		}
+	}
+
+	public int getMaxSize() { return maxSize; }
+
+	// in seconds, like the config keys:
+	public void setIdleTimeout(long seconds) { this.idleTimeout = seconds * 1000; }
+	public void setBorrowTimeout(long seconds) { this.borrowTimeout = seconds * 1000; }
+	public void setValidationTimeout(int seconds) { this.validationTimeout = seconds; }
+	public void setConnectAttempts(int attempts) { this.connectAttempts = (attempts < 1) ? 1 : attempts; }
+	// time statements into stats from now on (null to stop); statements already cached stay as they are:
+	public void setQueryStats(QueryStats stats) { this.queryStats = stats; }
+	public QueryStats getQueryStats() { return queryStats; }
+
+	public String getName() { return name; }
+	public int getOpenCount() { return open.get(); }
+	public int getIdleCount() { return idle.size(); }
+	public int getActiveCount() { return open.get() - idle.size(); }
+
+	/**
+	 * close the idle connections, and the ones still lent out too: a borrower
+	 * that carries on using one gets an SQLException saying it was returned.
+	 */
+	public void close() {
+		closed = true;
+		PooledConnection pc;
+		while((pc = idle.pollFirst()) != null) {
+			discard(pc);
+		}
+		for(Lease lease : leases) {
+			debug("Closing connection from pool "+name+" still held by thread "+lease.owner.getName());
+			lease.giveBack();
+		}
+		threadLeases.clear();
+	}
+
+	public String toString() {
+		return "ConnectionPool["+name+" open="+open.get()+" idle="+idle.size()+" max="+maxSize+"]";
+	}
+
+	// open a physical connection, retrying a few times in case the server blipped:
+	private Connection connect() throws SQLException {
+		SQLException last = null;
+		for(int attempt = 1; attempt <= connectAttempts; attempt++) {
+			long start = System.nanoTime();
+			try {
+				Connection c = DriverManager.getConnection(url, info);
+				connectTime.recordSince(start);
+				open.incrementAndGet();
+				debug("Opened connection "+open.get()+" for pool "+name);
+				return c;
+			} catch (SQLException e) {
+				last = e;
+				debug("Connect attempt "+attempt+" for pool "+name+" failed: "+e.getMessage());
+				if(attempt < connectAttempts) {
+					try {
+						Thread.sleep(250L * attempt);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+		}
+		throw last;
+	}
+
+	private boolean validate(PooledConnection pc) {
+		if(pc.broken) {
+			return false;
+		}
+		if(System.currentTimeMillis() - pc.lastUsed < VALIDATION_BYPASS) {
+			return true;
+		}
+		try {
+			return pc.physical.isValid(validationTimeout);
+		} catch (SQLException e) {
+			return false;
+		} catch (AbstractMethodError e) {
+			// pre-JDBC4 driver, fall back to isClosed():
+			try {
+				return !pc.physical.isClosed();
+			} catch (SQLException e2) {
+				return false;
+			}
+		}
+	}
+
+	private Connection lend(PooledConnection pc) {
+		Lease lease = new Lease(pc);
+		pc.lastUsed = System.currentTimeMillis();
+		leases.add(lease);
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, lease);
+	}
+
+	private void giveBack(PooledConnection pc) {
+		try {
+			if(!pc.broken && pc.dirty && !pc.physical.getAutoCommit()) {
+				// don't leak someone's open transaction to the next borrower:
+				pc.physical.rollback();
+				pc.physical.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			pc.broken = true;
+		}
+		pc.dirty = false;
+
+		if(pc.broken || closed || open.get() > maxSize) {
+			discard(pc);
+		} else {
+			pc.lastUsed = System.currentTimeMillis();
+			idle.offerFirst(pc);
+		}
+		permits.release();
+	}
+
+	private void discard(PooledConnection pc) {
+		open.decrementAndGet();
+		if(pc.statements != null) {
+			pc.statements.close();
+		}
+		try {
+			pc.physical.close();
+		} catch (SQLException e) {
+			debug("Error closing connection for pool "+name+": "+e.getMessage());
+		}
+	}
+
+	// close connections that have sat idle too long, and reclaim thread-bound
+	// connections whose thread has died without giving them back:
+	private void evict() {
+		long cutoff = System.currentTimeMillis() - idleTimeout;
+		Iterator<PooledConnection> it = idle.descendingIterator();
+		while(it.hasNext()) {
+			PooledConnection pc = it.next();
+			if(pc.lastUsed < cutoff && idle.remove(pc)) {
+				debug("Evicting idle connection from pool "+name);
+				discard(pc);
+			}
+		}
+
+		for(Lease lease : threadLeases) {
+			if(!lease.owner.isAlive()) {
+				threadLeases.remove(lease);
+				warning("Reclaiming connection from pool "+name+" left open by finished thread "+lease.owner.getName());
+				lease.giveBack();
+			}
+		}
+	}
+
+	private static void scheduleEviction() {
+		if(evictor != null) {
+			return;
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "chronessan-pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for(ConnectionPool pool : pools.values()) {
+					try {
+						pool.evict();
+					} catch (RuntimeException e) {
+						debug("Pool eviction failed: "+e.getMessage());
+					}
+				}
+			}
+		}, EVICT_PERIOD, EVICT_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	// the statement cache of a pooled connection's physical connection, preparing through c, or null if c isn't from a pool:
+	static StatementCache statementCache(Connection c, int maxSize) {
+		if(!Proxy.isProxyClass(c.getClass())) {
+			return null;
+		}
+		InvocationHandler handler = Proxy.getInvocationHandler(c);
+		if(!(handler instanceof Lease)) {
+			return null;
+		}
+		PooledConnection pc = ((Lease) handler).pooled;
+		synchronized(pc) {
+			if(pc.statements == null) {
+				pc.statements = new StatementCache(c, maxSize);
+			} else {
+				pc.statements.setConnection(c);
+			}
+			return pc.statements;
+		}
+	}
+	
+	// SQLState class 08 is "connection exception"; anything else leaves the connection usable
+	private static boolean isFatal(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && state.startsWith("08");
+	}
+
+	// a physical connection and its bookkeeping:
+	class PooledConnection {
+		final Connection physical;
+		volatile long lastUsed = System.currentTimeMillis();
+		volatile boolean broken = false;
+		volatile boolean dirty = false;
+		StatementCache statements = null;
+
+		PooledConnection(Connection physical) {
+			this.physical = physical;
+		}
+	}
+
+	// one borrow of a pooled connection.  Each borrow gets its own proxy, so a
+	// stale reference kept after close() can't touch the next borrower's session.
+	class Lease implements InvocationHandler {
+		final PooledConnection pooled;
+		final Thread owner = Thread.currentThread();
+		volatile boolean returned = false;
+
+		Lease(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		ConnectionPool pool() {
+			return ConnectionPool.this;
+		}
+
+		synchronized void giveBack() {
+			if(!returned) {
+				returned = true;
+				leases.remove(this);
+				ConnectionPool.this.giveBack(pooled);
+			}
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String m = method.getName();
+			if("close".equals(m)) {
+				giveBack();
+				return null;
+			}
+			if("isClosed".equals(m)) {
+				return returned || pooled.physical.isClosed();
+			}
+			if("equals".equals(m)) {
+				return proxy == args[0];
+			}
+			if("hashCode".equals(m)) {
+				return System.identityHashCode(proxy);
+			}
+			if("toString".equals(m)) {
+				return "Pooled("+name+")@"+Integer.toHexString(System.identityHashCode(proxy));
+			}
+			if(returned) {
+				throw new SQLException("Connection has already been returned to pool "+name);
+			}
+			if("setAutoCommit".equals(m)) {
+				pooled.dirty = true;
+			}
+
+			pooled.lastUsed = System.currentTimeMillis();
+			try {
+				Object result = method.invoke(pooled.physical, args);
+				QueryStats stats = queryStats;
+				if(stats != null && result instanceof Statement && QueryProxy.makesStatement(m)) {
+					String sql = (args != null && args.length > 0 && args[0] instanceof String) ? (String) args[0] : null;
+					return QueryProxy.statement((Statement) result, sql, stats, name, (Connection) proxy);
+				}
+				return result;
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof SQLException && isFatal((SQLException) cause)) {
+					pooled.broken = true;
+				}
+				throw cause;
+			}
+		}
+	}
+
+	// Semaphore.reducePermits() is protected, and we need it to shrink the pool:
+	static class PoolSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+		
+		PoolSemaphore(int permits) {
+			super(permits, true);
+		}
+
+		public void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+}
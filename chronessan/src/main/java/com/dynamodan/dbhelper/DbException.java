@@ -0,0 +1,20 @@
+package com.dynamodan.dbhelper;
+
+import java.sql.SQLException;
+
+// unchecked wrapper for SQLException, for the places (streams, iterators)
+// where a checked exception can't be thrown.
+public class DbException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	
+	public DbException(String msg, SQLException cause) {
+		super(msg, cause);
+	}
+	public DbException(SQLException cause) {
+		super(cause.getMessage(), cause);
+	}
+	
+	public SQLException getSQLException() {
+		return (SQLException) getCause();
+	}
+}
@@ -0,0 +1,166 @@
+// caches the ColumnIndex of each live ResultSet, for row mappers like
+// Chronessan.getRowHash() that get called once per row with nothing but the
+// ResultSet.  Entries are keyed by the ResultSet object itself (by identity,
+// through a weak reference), so they go away once the ResultSet is garbage,
+// and the cache never holds more than maxSize of them.
+package com.dynamodan.dbhelper;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class MetaDataCache {
+	// each Key maps to itself, and carries its ColumnIndex:
+	private final ConcurrentHashMap<Object, Key> entries = new ConcurrentHashMap<Object, Key>();
+	private final ConcurrentLinkedQueue<Key> order = new ConcurrentLinkedQueue<Key>();
+	private final ReferenceQueue<ResultSet> collected = new ReferenceQueue<ResultSet>();
+	private volatile int maxSize;
+	
+	// row loops nearly always ask about the same ResultSet over and over, so
+	// each thread remembers its last hit and skips the map for it:
+	private final ThreadLocal<Key> last = new ThreadLocal<Key>();
+	// and looks the others up with the same probe, so only a miss makes a Key:
+	private final ThreadLocal<Probe> probes = new ThreadLocal<Probe>() {
+		protected Probe initialValue() {
+			return new Probe();
+		}
+	};
+	
+	public MetaDataCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * the column index for a ResultSet, reading its metadata the first time
+	 */
+	public ColumnIndex get(ResultSet rs) throws SQLException {
+		Key recent = last.get();
+		if(recent != null && recent.get() == rs && recent.columns != null) {
+			return recent.columns;
+		}
+		
+		expunge();
+		Key key = lookup(rs, false);
+		if(key == null) {
+			Key fresh = new Key(rs, collected);
+			fresh.columns = ColumnIndex.of(rs);
+			key = entries.putIfAbsent(fresh, fresh);
+			if(key == null) {
+				key = fresh;
+				order.add(key);
+				evict();
+			}
+		}
+		last.set(key);
+		return key.columns;
+	}
+	
+	// forget a ResultSet, e.g. right after closing it:
+	public void invalidate(ResultSet rs) {
+		Key key = lookup(rs, true);
+		if(key != null) {
+			order.remove(key);
+		}
+		Key recent = last.get();
+		if(recent != null && recent.get() == rs) {
+			last.remove();
+		}
+	}
+	
+	public void clear() {
+		entries.clear();
+		order.clear();
+		last.remove();
+	}
+	
+	public int size() {
+		expunge();
+		return entries.size();
+	}
+	
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		evict();
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	// the Key stored for rs, or null:
+	private Key lookup(ResultSet rs, boolean remove) {
+		Probe probe = probes.get();
+		probe.rs = rs;
+		probe.hash = System.identityHashCode(rs);
+		try {
+			return remove ? entries.remove(probe) : entries.get(probe);
+		} finally {
+			// don't keep the ResultSet from being collected:
+			probe.rs = null;
+		}
+	}
+	
+	// drop entries for ResultSets that have been garbage collected:
+	private void expunge() {
+		Reference<? extends ResultSet> ref;
+		while((ref = collected.poll()) != null) {
+			entries.remove(ref);
+			order.remove(ref);
+		}
+	}
+	
+	// oldest first, once we're over the size bound:
+	private void evict() {
+		while(entries.size() > maxSize) {
+			Key oldest = order.poll();
+			if(oldest == null) {
+				break;
+			}
+			entries.remove(oldest);
+		}
+	}
+	
+	// a weak reference that compares by the identity of what it refers to:
+	static class Key extends WeakReference<ResultSet> {
+		private final int hash;
+		ColumnIndex columns;
+		
+		Key(ResultSet rs, ReferenceQueue<ResultSet> queue) {
+			super(rs, queue);
+			this.hash = System.identityHashCode(rs);
+		}
+		
+		public int hashCode() {
+			return hash;
+		}
+		
+		public boolean equals(Object o) {
+			if(this == o) {
+				return true;
+			}
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Object referent = get();
+			return referent != null && referent == ((Key) o).get();
+		}
+	}
+	
+	// what a lookup is done with: equal to the Key of the same ResultSet
+	static class Probe {
+		ResultSet rs;
+		int hash;
+		
+		public int hashCode() {
+			return hash;
+		}
+		
+		public boolean equals(Object o) {
+			return (o instanceof Key) && rs != null && ((Key) o).get() == rs;
+		}
+	}
+}
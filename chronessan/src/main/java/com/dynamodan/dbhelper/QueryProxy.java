@@ -0,0 +1,229 @@
+// the proxies behind QueryStats: a connection whose statements are wrapped,
+// statements that time their executes, and result sets that time and count
+// their rows.  A statement keeps the fingerprint of its sql from when it was
+// prepared, so running it again doesn't look anything up.
+package com.dynamodan.dbhelper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+class QueryProxy {
+
+	static Connection connection(Connection c, QueryStats stats, String pool) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new ConnectionHandler(c, stats, pool));
+	}
+
+	/**
+	 * s, timed.  sql is what it was prepared with (null for a plain Statement),
+	 * and owner what its getConnection() should say.
+	 */
+	static Statement statement(Statement s, String sql, QueryStats stats, String pool, Connection owner) {
+		Class<?> type = (s instanceof CallableStatement) ? CallableStatement.class : (s instanceof PreparedStatement) ? PreparedStatement.class : Statement.class;
+		return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] { type }, new StatementHandler(s, sql, stats, pool, owner));
+	}
+
+	// whether a connection method makes a statement that should be wrapped:
+	static boolean makesStatement(String method) {
+		return "createStatement".equals(method) || "prepareStatement".equals(method) || "prepareCall".equals(method);
+	}
+
+	private static Object call(Method method, Object target, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	static class ConnectionHandler implements InvocationHandler {
+		private final Connection target;
+		private final QueryStats stats;
+		private final String pool;
+
+		ConnectionHandler(Connection target, QueryStats stats, String pool) {
+			this.target = target;
+			this.stats = stats;
+			this.pool = pool;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object result = call(method, target, args);
+			if(result instanceof Statement && makesStatement(method.getName())) {
+				String sql = (args != null && args.length > 0 && args[0] instanceof String) ? (String) args[0] : null;
+				return statement((Statement) result, sql, stats, pool, (Connection) proxy);
+			}
+			return result;
+		}
+	}
+
+	static class StatementHandler implements InvocationHandler {
+		private final Statement target;
+		private final QueryStats stats;
+		private final String pool;
+		private final Connection owner;
+		private final QueryStats.Stat prepared;
+		private String batchSql = null;
+		// a query run by execute(), waiting for getResultSet():
+		private QueryStats.Stat pending = null;
+		private long pendingNanos = 0;
+		private ResultSet current = null;
+		private ResultSetHandler currentHandler = null;
+		private ResultSet currentProxy = null;
+
+		StatementHandler(Statement target, String sql, QueryStats stats, String pool, Connection owner) {
+			this.target = target;
+			this.stats = stats;
+			this.pool = pool;
+			this.owner = owner;
+			this.prepared = (sql == null) ? null : stats.stat(pool, sql);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String m = method.getName();
+			if(m.startsWith("execute")) {
+				return execute(proxy, method, args);
+			}
+			if("getResultSet".equals(m)) {
+				ResultSet rs = (ResultSet) call(method, target, args);
+				if(rs == null || rs == current) {
+					return (rs == null) ? null : currentProxy;
+				}
+				QueryStats.Stat stat = (pending != null) ? pending : (prepared != null) ? prepared : stats.stat(pool, batchSql);
+				long nanos = (pending != null) ? pendingNanos : 0;
+				pending = null;
+				return resultSet(rs, stat, nanos, proxy);
+			}
+			if("addBatch".equals(m) && args != null && args.length == 1 && args[0] instanceof String) {
+				batchSql = (String) args[0];
+			} else if("close".equals(m)) {
+				finishCurrent();
+			} else if("getConnection".equals(m) && owner != null) {
+				return owner;
+			}
+			return call(method, target, args);
+		}
+
+		private Object execute(Object proxy, Method method, Object[] args) throws Throwable {
+			QueryStats.Stat stat = (args != null && args.length > 0 && args[0] instanceof String) ? stats.stat(pool, (String) args[0])
+				: (prepared != null) ? prepared : stats.stat(pool, batchSql);
+			finishCurrent();
+			pending = null;
+
+			long start = System.nanoTime();
+			Object result;
+			try {
+				result = method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				stats.failed(stat, System.nanoTime() - start);
+				throw e.getCause();
+			}
+			long nanos = System.nanoTime() - start;
+
+			if(result instanceof ResultSet) {
+				stats.executed(stat, nanos, 0);
+				return resultSet((ResultSet) result, stat, nanos, proxy);
+			}
+			long rows = 0;
+			if(result instanceof Number) {
+				rows = ((Number) result).longValue();
+			} else if(result instanceof int[]) {
+				for(int n : (int[]) result) { rows += Math.max(n, 0); }
+			} else if(result instanceof long[]) {
+				for(long n : (long[]) result) { rows += Math.max(n, 0); }
+			}
+			stats.executed(stat, nanos, rows);
+			if(Boolean.TRUE.equals(result)) {
+				// the rows come with getResultSet()
+				pending = stat;
+				pendingNanos = nanos;
+			} else {
+				stats.finished(stat, nanos, rows, 0);
+			}
+			return result;
+		}
+
+		private ResultSet resultSet(ResultSet rs, QueryStats.Stat stat, long execNanos, Object statement) {
+			current = rs;
+			currentHandler = new ResultSetHandler(rs, stat, stats, execNanos, (Statement) statement);
+			currentProxy = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, currentHandler);
+			return currentProxy;
+		}
+
+		// the statement moving on closes its last result set:
+		private void finishCurrent() {
+			if(currentHandler != null) {
+				currentHandler.finish();
+			}
+			current = null;
+			currentHandler = null;
+			currentProxy = null;
+		}
+	}
+
+	static class ResultSetHandler implements InvocationHandler {
+		private final ResultSet target;
+		private final QueryStats.Stat stat;
+		private final QueryStats stats;
+		private final long execNanos;
+		private final Statement statement;
+		private long fetchNanos = 0;
+		private long rows = 0;
+		private long bytes = 0;
+		private boolean finished = false;
+
+		ResultSetHandler(ResultSet target, QueryStats.Stat stat, QueryStats stats, long execNanos, Statement statement) {
+			this.target = target;
+			this.stat = stat;
+			this.stats = stats;
+			this.execNanos = execNanos;
+			this.statement = statement;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String m = method.getName();
+			if("next".equals(m)) {
+				long start = System.nanoTime();
+				boolean more = (Boolean) call(method, target, args);
+				fetchNanos += System.nanoTime() - start;
+				if(more) {
+					rows++;
+				} else {
+					finish();
+				}
+				return more;
+			}
+			Object result = call(method, target, args);
+			if(args != null && m.startsWith("get") && result != null) {
+				// a column value; strings count a byte a character, near enough for latin text:
+				if(result instanceof String) {
+					bytes += ((String) result).length();
+				} else if(result instanceof byte[]) {
+					bytes += ((byte[]) result).length;
+				} else if(!(result instanceof Boolean)) {
+					bytes += 8;
+				} else {
+					bytes += 1;
+				}
+			} else if("close".equals(m)) {
+				finish();
+			} else if("getStatement".equals(m) && statement != null) {
+				return statement;
+			}
+			return result;
+		}
+
+		synchronized void finish() {
+			if(!finished) {
+				finished = true;
+				stats.fetched(stat, execNanos, fetchNanos, rows, bytes);
+			}
+		}
+	}
+}
@@ -0,0 +1,295 @@
+// where the sql time goes: every statement run on an instrumented connection
+// is timed (the execute, and fetching its rows) and counted, with its rows and
+// roughly how many bytes were read, under its fingerprint -- the sql with the
+// literals taken out, so "where id = 42" and "where id = 43" add up together.
+// Anything slower than the threshold is logged as it happens, and report()
+// lists the statements that took the most time overall.
+//
+// A pool is instrumented with ConnectionPool.setQueryStats() (Chronessan does
+// this when sql_stats is on); any other connection with wrap().  The cost is
+// a couple of nanoTime() calls per execute and per row, plus a proxy call for
+// each method on the statement and result set.
+package com.dynamodan.dbhelper;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import com.dynamodan.metrichelper.Counter;
+import com.dynamodan.metrichelper.Histogram;
+import com.dynamodan.metrichelper.Metrics;
+import static com.dynamodan.loghelper.Wrapper.log;
+
+public class QueryStats {
+	private static QueryStats instance = null;
+
+	// fingerprints of sql seen before; sql with literals in it rarely repeats, so this is just dropped when full:
+	private static final int FINGERPRINT_CACHE = 4096;
+	private static final Pattern PARAM_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+	private static final Pattern ROW_LIST = Pattern.compile("\\(\\?\\+\\)(?:\\s*,\\s*\\(\\?\\+\\))+");
+
+	private final ConcurrentHashMap<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+	// the same for mysql, where "text" is a string rather than a name:
+	private final ConcurrentHashMap<String, String> mysqlFingerprints = new ConcurrentHashMap<String, String>();
+	private final ConcurrentHashMap<String, Stat> stats = new ConcurrentHashMap<String, Stat>();
+	private volatile long slowNanos = 1000000000L;
+
+	/**
+	 * the totals for one fingerprint on one pool
+	 */
+	public static class Stat {
+		public final String pool;
+		public final String fingerprint;
+		final LongAdder count = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder execNanos = new LongAdder();
+		final LongAdder fetchNanos = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+		final Histogram time;
+		final Counter slow;
+
+		Stat(String pool, String fingerprint) {
+			this.pool = pool;
+			this.fingerprint = fingerprint;
+			this.time = Metrics.histogram("sql."+pool+".time");
+			this.slow = Metrics.counter("sql."+pool+".slow");
+		}
+
+		public long count() { return count.sum(); }
+		public long errors() { return errors.sum(); }
+		public long rows() { return rows.sum(); }
+		public long bytes() { return bytes.sum(); }
+		public long maxNanos() { return maxNanos.get(); }
+
+		// executing and fetching, over every run:
+		public long totalNanos() {
+			return execNanos.sum() + fetchNanos.sum();
+		}
+	}
+
+	public QueryStats() { }
+
+	/**
+	 * the stats that the pools share, and that Chronessan reports at the end of a run
+	 */
+	public static synchronized QueryStats getInstance() {
+		if(instance == null) {
+			instance = new QueryStats();
+		}
+		return instance;
+	}
+
+	// log statements that take longer than this (executing plus fetching), 0 for all of them:
+	public void setSlowThreshold(long millis) {
+		this.slowNanos = millis * 1000000;
+	}
+
+	/**
+	 * a connection whose statements are timed here, under pool as the name.
+	 * For connections that don't come from a ConnectionPool.
+	 */
+	public Connection wrap(Connection c, String pool) {
+		return QueryProxy.connection(c, this, pool);
+	}
+
+	/**
+	 * sql with the literals ('text' and numbers) replaced by ?, comments and
+	 * runs of whitespace taken out, lists of values (even of one) folded to
+	 * (?+), and in lower case.  "names", `names` and [names] are kept as they are.
+	 */
+	public String fingerprint(String sql) {
+		return fingerprint(sql, false);
+	}
+
+	/**
+	 * the same, reading "text" as a string literal, as mysql does, when mysqlQuotes is true
+	 */
+	public String fingerprint(String sql, boolean mysqlQuotes) {
+		if(sql == null) {
+			return "(unknown)";
+		}
+		ConcurrentHashMap<String, String> cache = mysqlQuotes ? mysqlFingerprints : fingerprints;
+		String f = cache.get(sql);
+		if(f == null) {
+			f = normalize(sql, mysqlQuotes);
+			if(cache.size() >= FINGERPRINT_CACHE) {
+				cache.clear();
+			}
+			cache.put(sql, f);
+		}
+		return f;
+	}
+
+	// the pools Chronessan makes for mysql and MariaDB are named after them:
+	static boolean mysqlQuotes(String pool) {
+		return pool != null && (pool.regionMatches(true, 0, "mysql", 0, 5) || pool.regionMatches(true, 0, "mariadb", 0, 7));
+	}
+
+	public Stat stat(String pool, String sql) {
+		String fingerprint = fingerprint(sql, mysqlQuotes(pool));
+		String key = pool+"|"+fingerprint;
+		Stat stat = stats.get(key);
+		if(stat == null) {
+			stat = stats.computeIfAbsent(key, k -> new Stat(pool, fingerprint));
+		}
+		return stat;
+	}
+
+	// every fingerprint, most time taken first:
+	public List<Stat> byTime() {
+		List<Stat> list = new ArrayList<Stat>(stats.values());
+		list.sort((a, b) -> Long.compare(b.totalNanos(), a.totalNanos()));
+		return list;
+	}
+
+	public boolean isEmpty() {
+		return stats.isEmpty();
+	}
+
+	public void clear() {
+		stats.clear();
+	}
+
+	/**
+	 * the top statements by total time, a line each
+	 */
+	public String report(int top) {
+		List<Stat> list = byTime();
+		StringBuilder sb = new StringBuilder("top "+Math.min(top, list.size())+" of "+list.size()+" sql statements by time:");
+		sb.append(String.format("%n  %9s %8s %9s %9s %10s %9s %6s  %s", "total", "count", "mean", "max", "rows", "bytes", "errors", "sql"));
+		for(int i = 0; i < Math.min(top, list.size()); i++) {
+			Stat s = list.get(i);
+			long count = Math.max(1, s.count());
+			sb.append(String.format("%n  %9s %8d %9s %9s %10d %9s %6d  %s: %s", Metrics.time(s.totalNanos()), s.count(), Metrics.time(s.totalNanos() / count),
+				Metrics.time(s.maxNanos()), s.rows(), bytes(s.bytes()), s.errors(), s.pool, shorten(s.fingerprint, 160)));
+		}
+		return sb.toString();
+	}
+
+	// a statement ran, taking nanos to execute; rows is its update count, if it has one:
+	void executed(Stat stat, long nanos, long rows) {
+		stat.count.increment();
+		stat.execNanos.add(nanos);
+		if(rows > 0) {
+			stat.rows.add(rows);
+		}
+	}
+
+	void failed(Stat stat, long nanos) {
+		stat.count.increment();
+		stat.errors.increment();
+		stat.execNanos.add(nanos);
+		finished(stat, nanos, 0, 0);
+	}
+
+	// the rows of a query have been read (or it was closed before the end):
+	void fetched(Stat stat, long execNanos, long fetchNanos, long rows, long bytes) {
+		stat.fetchNanos.add(fetchNanos);
+		stat.rows.add(rows);
+		stat.bytes.add(bytes);
+		finished(stat, execNanos + fetchNanos, rows, bytes);
+	}
+
+	// a statement is done with, all in all taking nanos:
+	void finished(Stat stat, long nanos, long rows, long bytes) {
+		stat.time.record(nanos);
+		long m;
+		while(nanos > (m = stat.maxNanos.get()) && !stat.maxNanos.compareAndSet(m, nanos)) {
+			// lost to another thread, look again
+		}
+		if(nanos >= slowNanos) {
+			stat.slow.inc();
+			log("Slow sql on "+stat.pool+": "+Metrics.time(nanos)+", "+rows+" rows"+((bytes > 0) ? ", "+bytes(bytes) : "")+": "+shorten(stat.fingerprint, 500));
+		}
+	}
+
+	static String normalize(String sql) {
+		return normalize(sql, false);
+	}
+
+	static String normalize(String sql, boolean mysqlQuotes) {
+		StringBuilder sb = new StringBuilder(sql.length());
+		int n = sql.length();
+		boolean space = false;
+		for(int i = 0; i < n; i++) {
+			char c = sql.charAt(i);
+			if(c == '\'' || (c == '"' && mysqlQuotes)) {
+				// a string literal (mysql reads "text" as one too), with '' or \' inside it:
+				for(i++; i < n; i++) {
+					char d = sql.charAt(i);
+					if(d == '\\') {
+						i++;
+					} else if(d == c) {
+						if(i + 1 < n && sql.charAt(i + 1) == c) {
+							i++;
+						} else {
+							break;
+						}
+					}
+				}
+				c = '?';
+			} else if(c == '`' || c == '[' || c == '"') {
+				// a quoted name, kept as it is:
+				char close = (c == '[') ? ']' : c;
+				int end = sql.indexOf(close, i + 1);
+				end = (end < 0) ? n - 1 : end;
+				if(space && sb.length() > 0) { sb.append(' '); }
+				space = false;
+				sb.append(sql, i, end + 1);
+				i = end;
+				continue;
+			} else if(c == '-' && i + 1 < n && sql.charAt(i + 1) == '-') {
+				while(i < n && sql.charAt(i) != '\n') { i++; }
+				space = true;
+				continue;
+			} else if(c == '/' && i + 1 < n && sql.charAt(i + 1) == '*') {
+				int end = sql.indexOf("*/", i + 2);
+				i = (end < 0) ? n : end + 1;
+				space = true;
+				continue;
+			} else if(Character.isWhitespace(c)) {
+				space = true;
+				continue;
+			} else if(Character.isDigit(c) && (space || !partOfName(sb))) {
+				// a number: 42, 4.2, 1e10, 0x2a
+				while(i + 1 < n && (Character.isLetterOrDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) { i++; }
+				c = '?';
+			} else {
+				c = Character.toLowerCase(c);
+			}
+			if(space && sb.length() > 0) {
+				sb.append(' ');
+			}
+			space = false;
+			sb.append(c);
+		}
+		String s = PARAM_LIST.matcher(sb).replaceAll("(?+)");
+		return ROW_LIST.matcher(s).replaceAll("(?+), ...");
+	}
+
+	// whether a digit here would carry on a name like t1 or col_2:
+	private static boolean partOfName(StringBuilder sb) {
+		if(sb.length() == 0) {
+			return false;
+		}
+		char p = sb.charAt(sb.length() - 1);
+		return Character.isLetterOrDigit(p) || p == '_' || p == '$';
+	}
+
+	static String bytes(long n) {
+		if(n < 1024) { return n+"B"; }
+		if(n < 1024 * 1024) { return String.format("%.1fkB", n / 1024.0); }
+		if(n < 1024L * 1024 * 1024) { return String.format("%.1fMB", n / 1048576.0); }
+		return String.format("%.2fGB", n / 1073741824.0);
+	}
+
+	private static String shorten(String s, int max) {
+		return (s.length() > max) ? s.substring(0, max - 3)+"..." : s;
+	}
+}
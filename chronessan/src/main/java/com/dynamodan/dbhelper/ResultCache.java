@@ -0,0 +1,391 @@
+// query results kept on disk between runs, for reference data that a program
+// running every few minutes would otherwise read from the database each time:
+//
+//   CachedResult codes = cache.query(c, "select code, name from country", 3600000,
+//       "select max(updated_at) from country");
+//   for(int row = 0; row < codes.rowCount(); row++) { ... codes.getString(row, "name") ... }
+//
+// Each query (its sql and parameters, on its database) is a file in the cache
+// directory, in the compact format described in CachedResult, and is read
+// back by mapping the file, not parsing it.  A cached result is used while
+// it's younger than its ttl and, if there's a version query, while that
+// query still gives what it gave when the rows were read -- a max(updated_at)
+// or a count(*) that costs the database a lot less than the query itself.
+// The directory is kept under a size by removing the least recently used
+// files after each write.
+//
+// Programs can share a directory.  Files are written under a temporary name
+// and renamed into place, so a reader sees either the old file or the new one.
+// Anything wrong with the cache (a corrupt file, a full disk) makes it fall
+// back to the database, with a log line; it never fails the query.
+package com.dynamodan.dbhelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.dynamodan.metrichelper.Counter;
+import com.dynamodan.metrichelper.Metrics;
+import static com.dynamodan.loghelper.Wrapper.debug;
+import static com.dynamodan.loghelper.Wrapper.log;
+
+public class ResultCache {
+	private static final String SUFFIX = ".rc";
+	private static final Counter hits = Metrics.counter("cache.hits");
+	private static final Counter misses = Metrics.counter("cache.misses");
+	private static final Counter stale = Metrics.counter("cache.stale");
+
+	private final File dir;
+	private volatile long maxBytes;
+
+	public ResultCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * the rows of sql, from the cache if they're there and still good,
+	 * otherwise from c (and then cached).  ttlMillis of 0 or less keeps them
+	 * until the version changes (or they're evicted); versionSql may be null
+	 * to go by the ttl alone.
+	 */
+	public CachedResult query(Connection c, String sql, long ttlMillis, String versionSql, Object... params) throws SQLException {
+		String key = key(c, sql, params);
+		String version = (versionSql == null) ? "" : version(c, versionSql);
+		CachedResult cached = get(key, ttlMillis, version);
+		if(cached != null) {
+			return cached;
+		}
+
+		try (PreparedStatement ps = c.prepareStatement(sql)) {
+			for(int i = 0; i < params.length; i++) {
+				ps.setObject(i + 1, params[i]);
+			}
+			try (ResultSet rs = ps.executeQuery()) {
+				return put(key, version, rs);
+			}
+		}
+	}
+
+	/**
+	 * the cached rows for key, or null if there are none, they're older than
+	 * ttlMillis (when that's more than 0) or were read at another version
+	 */
+	public CachedResult get(String key, long ttlMillis, String version) {
+		File file = file(key);
+		if(!file.exists()) {
+			misses.inc();
+			return null;
+		}
+		CachedResult cached;
+		try {
+			cached = new CachedResult(map(file), true);
+		} catch (IOException | RuntimeException e) {
+			log("Dropping unreadable result cache file "+file+": "+e);
+			file.delete();
+			misses.inc();
+			return null;
+		}
+		if(!cached.getKey().equals(hash(key))
+			|| (ttlMillis > 0 && System.currentTimeMillis() - cached.getCreated() >= ttlMillis)
+			|| (version != null && !version.equals(cached.getVersion()))) {
+			stale.inc();
+			return null;
+		}
+		// for the least recently used eviction:
+		file.setLastModified(System.currentTimeMillis());
+		hits.inc();
+		return cached;
+	}
+
+	/**
+	 * read the rest of rs into the cache under key, and give back the rows.
+	 * If the file can't be written, the rows still come back.
+	 */
+	public CachedResult put(String key, String version, ResultSet rs) throws SQLException {
+		byte[] bytes;
+		try {
+			bytes = encode(hash(key), (version == null) ? "" : version, rs);
+		} catch (IOException e) {
+			// writing to memory doesn't do that
+			throw new IllegalStateException(e);
+		}
+
+		File file = file(key);
+		if(bytes.length > maxBytes) {
+			debug("Not caching "+bytes.length+" bytes of rows, the result cache only holds "+maxBytes);
+			file.delete();
+			return new CachedResult(ByteBuffer.wrap(bytes), false);
+		}
+		File temp = null;
+		try {
+			Files.createDirectories(dir.toPath());
+			temp = File.createTempFile(file.getName(), ".tmp", dir);
+			try (OutputStream out = new FileOutputStream(temp)) {
+				out.write(bytes);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			evict();
+		} catch (IOException e) {
+			log("Can't write the result cache file "+file+": "+e.getMessage());
+			if(temp != null) {
+				temp.delete();
+			}
+		}
+		return new CachedResult(ByteBuffer.wrap(bytes), false);
+	}
+
+	// forget the cached rows of one query:
+	public void invalidate(Connection c, String sql, Object... params) throws SQLException {
+		file(key(c, sql, params)).delete();
+	}
+
+	public void clear() {
+		for(File f : files()) {
+			f.delete();
+		}
+	}
+
+	// how many bytes the cache files take up:
+	public long size() {
+		long total = 0;
+		for(File f : files()) {
+			total += f.length();
+		}
+		return total;
+	}
+
+	/**
+	 * the key a query is cached under: its database, sql and parameters
+	 */
+	public static String key(Connection c, String sql, Object... params) throws SQLException {
+		StringBuilder sb = new StringBuilder(c.getMetaData().getURL()).append('\u0000').append(sql);
+		for(Object p : params) {
+			sb.append('\u0000');
+			if(p == null) {
+				sb.append("\u0001null");
+			} else {
+				sb.append(p.getClass().getName()).append(':');
+				appendParam(sb, p);
+			}
+		}
+		return sb.toString();
+	}
+
+	// arrays by what's in them, not by their identity hash (a byte[] as hex):
+	private static void appendParam(StringBuilder sb, Object p) {
+		if(p instanceof byte[]) {
+			for(byte b : (byte[]) p) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+		} else if(p.getClass().isArray()) {
+			String wrapped = Arrays.deepToString(new Object[] { p });
+			sb.append(wrapped, 1, wrapped.length() - 1);
+		} else {
+			sb.append(p);
+		}
+	}
+
+	// the first row of the version query, as one string:
+	static String version(Connection c, String versionSql) throws SQLException {
+		try (PreparedStatement ps = c.prepareStatement(versionSql); ResultSet rs = ps.executeQuery()) {
+			if(!rs.next()) {
+				return "";
+			}
+			StringBuilder sb = new StringBuilder();
+			int count = rs.getMetaData().getColumnCount();
+			for(int i = 1; i <= count; i++) {
+				sb.append((i > 1) ? "\u0000" : "").append(rs.getString(i));
+			}
+			return sb.toString();
+		}
+	}
+
+	// the key is only stored as its hash, since connection urls can have passwords in them:
+	static byte[] encode(String hash, String version, ResultSet rs) throws SQLException, IOException {
+		ResultSetMetaData md = rs.getMetaData();
+		int count = md.getColumnCount();
+		boolean[] numbers = new boolean[count + 1];
+		boolean[] binary = new boolean[count + 1];
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		writeInt(out, CachedResult.MAGIC);
+		out.write(CachedResult.FORMAT);
+		writeLong(out, System.currentTimeMillis());
+		writeString(out, hash);
+		writeString(out, version);
+		writeVarLong(out, count);
+		for(int i = 1; i <= count; i++) {
+			writeString(out, md.getColumnLabel(i));
+			int type = md.getColumnType(i);
+			numbers[i] = type == Types.TINYINT || type == Types.SMALLINT || type == Types.INTEGER || type == Types.BIGINT;
+			binary[i] = type == Types.BINARY || type == Types.VARBINARY || type == Types.LONGVARBINARY || type == Types.BLOB;
+		}
+
+		// the row count goes in the header, so the rows are written after it's known:
+		ByteArrayOutputStream data = new ByteArrayOutputStream(8192);
+		int[] offsets = new int[64];
+		int rows = 0;
+		while(rs.next()) {
+			if(rows == offsets.length) {
+				offsets = Arrays.copyOf(offsets, rows * 2);
+			}
+			offsets[rows++] = data.size();
+			for(int i = 1; i <= count; i++) {
+				if(binary[i]) {
+					byte[] b = rs.getBytes(i);
+					if(b == null) {
+						data.write(CachedResult.NULL);
+					} else {
+						data.write(CachedResult.BYTES);
+						writeBytes(data, b);
+					}
+					continue;
+				}
+				String s = rs.getString(i);
+				Long number = numbers[i] ? asLong(s) : null;
+				if(s == null) {
+					data.write(CachedResult.NULL);
+				} else if(number != null) {
+					data.write(CachedResult.NUMBER);
+					writeVarLong(data, number);
+				} else {
+					data.write(CachedResult.STRING);
+					writeString(data, s);
+				}
+			}
+		}
+		writeVarLong(out, rows);
+
+		int start = out.size();
+		data.writeTo(out);
+		int offsetsAt = out.size();
+		for(int i = 0; i < rows; i++) {
+			writeInt(out, start + offsets[i]);
+		}
+		writeLong(out, offsetsAt);
+		return out.toByteArray();
+	}
+
+	// remove the least recently used files until the rest fit in maxBytes:
+	private synchronized void evict() {
+		File[] files = files();
+		long total = 0;
+		for(File f : files) {
+			total += f.length();
+		}
+		if(total <= maxBytes) {
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for(File f : files) {
+			if(total <= maxBytes) {
+				break;
+			}
+			long length = f.length();
+			if(f.delete()) {
+				total -= length;
+				debug("Evicted "+f.getName()+" from the result cache");
+			}
+		}
+	}
+
+	private File[] files() {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		return (files == null) ? new File[0] : files;
+	}
+
+	private File file(String key) {
+		return new File(dir, hash(key)+SUFFIX);
+	}
+
+	// the mapping stays valid after the channel is closed, and after the file is replaced or removed:
+	private static MappedByteBuffer map(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	// s as a number, if it reads back the same (so "007" or an unsigned bigint past the long range stay strings):
+	private static Long asLong(String s) {
+		if(s == null) {
+			return null;
+		}
+		try {
+			long v = Long.parseLong(s);
+			return Long.toString(v).equals(s) ? v : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int v) {
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+
+	private static void writeLong(ByteArrayOutputStream out, long v) {
+		writeInt(out, (int) (v >>> 32));
+		writeInt(out, (int) v);
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long v) {
+		long raw = (v << 1) ^ (v >> 63);
+		while((raw & ~0x7fL) != 0) {
+			out.write((int) ((raw & 0x7f) | 0x80));
+			raw >>>= 7;
+		}
+		out.write((int) raw);
+	}
+
+	private static void writeBytes(ByteArrayOutputStream out, byte[] b) {
+		writeVarLong(out, b.length);
+		out.write(b, 0, b.length);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for(byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every jvm has sha-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,442 @@
+// streams a ResultSet straight out to JSON Lines, CSV or YAML, one row at a
+// time, so dumping a table takes the same memory whether it has a hundred rows
+// or a few hundred million.  Each row is formatted into one reused
+// StringBuilder, utf-8 encoded by hand into one reused byte buffer, and the
+// buffer goes to the channel (or through gzip) whenever it fills up.
+//
+// Formatting goes by the column's sql type, decided once per export: numbers
+// and booleans come out bare, dates and timestamps as "yyyy-MM-dd" and
+// "yyyy-MM-dd HH:mm:ss[.fraction]" (what MySQL reads back in), binary columns
+// as base64, and everything else as an escaped string.  NULL is null in JSON
+// and YAML, and the null text (empty by default, \N for LOAD DATA) in CSV,
+// where an empty string is written as "" to tell the two apart.
+package com.dynamodan.dbhelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+public class ResultSetExporter {
+	public enum Format {
+		JSONL, CSV, YAML;
+
+		/**
+		 * the format for a file name: .jsonl/.json, .csv or .yaml/.yml, optionally followed by .gz
+		 */
+		public static Format forFile(String name) {
+			String n = name.toLowerCase();
+			if(n.endsWith(".gz")) {
+				n = n.substring(0, n.length() - 3);
+			}
+			if(n.endsWith(".jsonl") || n.endsWith(".json")) { return JSONL; }
+			if(n.endsWith(".csv")) { return CSV; }
+			if(n.endsWith(".yaml") || n.endsWith(".yml")) { return YAML; }
+			throw new IllegalArgumentException("can't tell the export format of "+name+" (use .jsonl, .csv or .yaml)");
+		}
+	}
+
+	// how a column is read and written:
+	private static final int TEXT = 0;
+	private static final int NUMBER = 1;
+	private static final int FLOAT = 2;
+	private static final int BOOLEAN = 3;
+	private static final int DATE = 4;
+	private static final int TIMESTAMP = 5;
+	private static final int BINARY = 6;
+
+	// yaml keys that can go unquoted:
+	private static final Pattern PLAIN_KEY = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+	private static final Pattern YAML_WORDS = Pattern.compile("(?i)true|false|yes|no|on|off|null|y|n");
+
+	private final Format format;
+	private boolean gzip = false;
+	private int bufferSize = 256 * 1024;
+	private char delimiter = ',';
+	private boolean header = true;
+	private String nullText = "";
+
+	public ResultSetExporter(Format format) {
+		this.format = format;
+	}
+
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = Math.max(bufferSize, 4096);
+	}
+
+	public void setDelimiter(char delimiter) {
+		this.delimiter = delimiter;
+	}
+
+	// whether csv starts with a row of column labels (default true):
+	public void setHeader(boolean header) {
+		this.header = header;
+	}
+
+	// what csv writes for NULL (default empty):
+	public void setNullText(String nullText) {
+		this.nullText = nullText;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * run a query with a streaming statement (see RowView.prepareStreaming) and export its rows to a file
+	 */
+	public long export(Connection c, String sql, int fetchSize, Path file, Object... params) throws SQLException, IOException {
+		PreparedStatement ps = RowView.prepareStreaming(c, sql, fetchSize, params);
+		try {
+			ResultSet rs = ps.executeQuery();
+			try {
+				return export(rs, file);
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * export the remaining rows to a file, replacing it.  A file name ending in
+	 * .gz is gzipped whatever setGzip says.
+	 */
+	public long export(ResultSet rs, Path file) throws SQLException, IOException {
+		boolean zip = gzip || file.getFileName().toString().toLowerCase().endsWith(".gz");
+		FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			return export(rs, ch, zip);
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * export the remaining rows to a channel, which is left open.  Returns the number of rows.
+	 */
+	public long export(ResultSet rs, WritableByteChannel out) throws SQLException, IOException {
+		return export(rs, out, gzip);
+	}
+
+	private long export(ResultSet rs, WritableByteChannel channel, boolean zip) throws SQLException, IOException {
+		ColumnIndex columns = ColumnIndex.of(rs);
+		int count = columns.size();
+		int[] kinds = new int[count + 1];
+		String[] keys = new String[count + 1];
+		for(int i = 1; i <= count; i++) {
+			kinds[i] = kind(columns.type(i));
+			keys[i] = key(columns.label(i));
+		}
+
+		GZIPOutputStream zipped = zip ? new GZIPOutputStream(Channels.newOutputStream(channel), 64 * 1024) : null;
+		Output out = new Output(channel, zipped, bufferSize);
+		StringBuilder sb = new StringBuilder(1024);
+
+		if(format == Format.YAML) {
+			sb.append("---\n");
+		} else if(format == Format.CSV && header) {
+			for(int i = 1; i <= count; i++) {
+				if(i > 1) { sb.append(delimiter); }
+				appendCsv(sb, columns.label(i));
+			}
+			sb.append('\n');
+		}
+
+		long rows = 0;
+		while(rs.next()) {
+			switch(format) {
+				case JSONL: sb.append('{'); break;
+				case YAML: sb.append("- "); break;
+				default:
+			}
+			for(int i = 1; i <= count; i++) {
+				appendColumn(sb, rs, i, kinds[i], keys[i]);
+			}
+			switch(format) {
+				case JSONL: sb.append("}\n"); break;
+				case CSV: sb.append('\n'); break;
+				default:
+			}
+			out.write(sb);
+			sb.setLength(0);
+			rows++;
+		}
+
+		if(format == Format.YAML && rows == 0) {
+			sb.append("[]\n");
+		}
+		out.write(sb);
+		out.finish();
+		return rows;
+	}
+
+	private void appendColumn(StringBuilder sb, ResultSet rs, int i, int kind, String key) throws SQLException {
+		switch(format) {
+			case JSONL:
+				if(i > 1) { sb.append(','); }
+				sb.append(key);
+				break;
+			case YAML:
+				if(i > 1) { sb.append("  "); }
+				sb.append(key);
+				break;
+			default:
+				if(i > 1) { sb.append(delimiter); }
+		}
+
+		String value;
+		boolean bare = false;
+		switch(kind) {
+			case NUMBER:
+				value = rs.getString(i);
+				bare = true;
+				break;
+			case FLOAT:
+				value = rs.getString(i);
+				// NaN and Infinity aren't json numbers
+				bare = value != null && value.indexOf('N') < 0 && value.indexOf('I') < 0;
+				break;
+			case BOOLEAN:
+				boolean b = rs.getBoolean(i);
+				value = rs.wasNull() ? null : (b ? "true" : "false");
+				bare = true;
+				break;
+			case DATE:
+				Date d = rs.getDate(i);
+				value = (d == null) ? null : d.toString();
+				break;
+			case TIMESTAMP:
+				Timestamp ts = rs.getTimestamp(i);
+				value = (ts == null) ? null : timestamp(ts);
+				break;
+			case BINARY:
+				byte[] bytes = rs.getBytes(i);
+				value = (bytes == null) ? null : Base64.getEncoder().encodeToString(bytes);
+				break;
+			default:
+				value = rs.getString(i);
+		}
+
+		if(format == Format.CSV) {
+			if(value == null) {
+				sb.append(nullText);
+			} else if(value.isEmpty()) {
+				sb.append("\"\"");
+			} else {
+				appendCsv(sb, value);
+			}
+		} else {
+			if(value == null) {
+				sb.append("null");
+			} else if(bare) {
+				sb.append(value);
+			} else {
+				appendQuoted(sb, value);
+			}
+			if(format == Format.YAML) {
+				sb.append('\n');
+			}
+		}
+	}
+
+	// "label": for json, label: (quoted if it has to be) for yaml:
+	private String key(String label) {
+		StringBuilder sb = new StringBuilder();
+		if(format == Format.YAML && PLAIN_KEY.matcher(label).matches() && !YAML_WORDS.matcher(label).matches()) {
+			sb.append(label);
+		} else {
+			appendQuoted(sb, label);
+		}
+		return sb.append(format == Format.JSONL ? ":" : ": ").toString();
+	}
+
+	private static int kind(int type) {
+		switch(type) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				return NUMBER;
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return FLOAT;
+			case Types.BIT:
+			case Types.BOOLEAN:
+				return BOOLEAN;
+			case Types.DATE:
+				return DATE;
+			case Types.TIMESTAMP:
+			case Types.TIMESTAMP_WITH_TIMEZONE:
+				return TIMESTAMP;
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+			case Types.BLOB:
+				return BINARY;
+			default:
+				return TEXT;
+		}
+	}
+
+	// yyyy-MM-dd HH:mm:ss, plus the fraction (trailing zeros trimmed) if there is one:
+	static String timestamp(Timestamp ts) {
+		LocalDateTime t = ts.toLocalDateTime();
+		StringBuilder sb = new StringBuilder(26);
+		pad(sb, t.getYear(), 4).append('-');
+		pad(sb, t.getMonthValue(), 2).append('-');
+		pad(sb, t.getDayOfMonth(), 2).append(' ');
+		pad(sb, t.getHour(), 2).append(':');
+		pad(sb, t.getMinute(), 2).append(':');
+		pad(sb, t.getSecond(), 2);
+		int nanos = t.getNano();
+		if(nanos != 0) {
+			int digits = 9;
+			while(nanos % 10 == 0) {
+				nanos /= 10;
+				digits--;
+			}
+			pad(sb.append('.'), nanos, digits);
+		}
+		return sb.toString();
+	}
+
+	private static StringBuilder pad(StringBuilder sb, int value, int width) {
+		String s = Integer.toString(value);
+		for(int i = s.length(); i < width; i++) {
+			sb.append('0');
+		}
+		return sb.append(s);
+	}
+
+	// a json string, which is also a valid yaml double-quoted scalar:
+	static void appendQuoted(StringBuilder sb, String s) {
+		sb.append('"');
+		for(int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			switch(c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if(c < 0x20) {
+						sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+		sb.append('"');
+	}
+
+	// rfc 4180: quoted only if it has to be, with quotes doubled
+	private void appendCsv(StringBuilder sb, String s) {
+		boolean quote = false;
+		for(int i = 0, n = s.length(); i < n && !quote; i++) {
+			char c = s.charAt(i);
+			quote = c == delimiter || c == '"' || c == '\n' || c == '\r';
+		}
+		if(!quote) {
+			sb.append(s);
+			return;
+		}
+		sb.append('"');
+		for(int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if(c == '"') {
+				sb.append('"');
+			}
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	// the byte buffer and where it drains to:
+	private static class Output {
+		private final WritableByteChannel channel;
+		private final GZIPOutputStream zipped;
+		private final byte[] buf;
+		private final ByteBuffer wrapped;
+		private int pos = 0;
+
+		Output(WritableByteChannel channel, GZIPOutputStream zipped, int size) {
+			this.channel = channel;
+			this.zipped = zipped;
+			this.buf = new byte[size];
+			this.wrapped = ByteBuffer.wrap(buf);
+		}
+
+		// utf-8, by hand, straight into the buffer:
+		void write(CharSequence s) throws IOException {
+			for(int i = 0, n = s.length(); i < n; i++) {
+				if(pos > buf.length - 4) {
+					drain();
+				}
+				char c = s.charAt(i);
+				if(c < 0x80) {
+					buf[pos++] = (byte) c;
+				} else if(c < 0x800) {
+					buf[pos++] = (byte) (0xc0 | (c >> 6));
+					buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				} else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					buf[pos++] = (byte) (0xf0 | (cp >> 18));
+					buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+				} else if(Character.isSurrogate(c)) {
+					buf[pos++] = '?'; // half a surrogate pair isn't encodable
+				} else {
+					buf[pos++] = (byte) (0xe0 | (c >> 12));
+					buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+		}
+
+		void drain() throws IOException {
+			if(zipped != null) {
+				zipped.write(buf, 0, pos);
+			} else {
+				wrapped.clear();
+				wrapped.limit(pos);
+				while(wrapped.hasRemaining()) {
+					channel.write(wrapped);
+				}
+			}
+			pos = 0;
+		}
+
+		void finish() throws IOException {
+			drain();
+			if(zipped != null) {
+				zipped.finish();
+				zipped.flush();
+			}
+		}
+	}
+}
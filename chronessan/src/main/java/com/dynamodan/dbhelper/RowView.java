@@ -0,0 +1,281 @@
+// a reusable, allocation-free view of the current row of a ResultSet.
+// Column labels are resolved once up front, and the typed getters go straight
+// to the driver's primitive getters, so walking millions of rows doesn't
+// build a map (or box a number) per row the way getRowHash does.
+//
+// The same RowView instance is handed out for every row of a stream, so copy
+// out whatever you need to keep (toMap() or the getters) before moving on.
+package com.dynamodan.dbhelper;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class RowView {
+	private final ResultSet rs;
+	private final ColumnIndex columns;
+	
+	public RowView(ResultSet rs) throws SQLException {
+		this(rs, ColumnIndex.of(rs));
+	}
+	
+	public RowView(ResultSet rs, ColumnIndex columns) {
+		this.rs = rs;
+		this.columns = columns;
+	}
+	
+	/**
+	 * stream the remaining rows of a ResultSet.  The stream hands out this same
+	 * view for every row, and closing the stream closes the ResultSet.
+	 */
+	public static Stream<RowView> stream(ResultSet rs) throws SQLException {
+		return new RowView(rs).stream();
+	}
+	
+	// as above, asking the driver to fetch fetchSize rows per round trip:
+	public static Stream<RowView> stream(ResultSet rs, int fetchSize) throws SQLException {
+		rs.setFetchSize(fetchSize);
+		return stream(rs);
+	}
+	
+	/**
+	 * run a query and stream its rows without holding the whole result in memory.
+	 * Closing the stream closes the statement.
+	 */
+	public static Stream<RowView> query(Connection c, String sql, int fetchSize, Object... params) throws SQLException {
+		final PreparedStatement ps = prepareStreaming(c, sql, fetchSize, params);
+		try {
+			return stream(ps.executeQuery()).onClose(new Runnable() {
+				public void run() {
+					try {
+						ps.close();
+					} catch (SQLException e) {
+						throw new DbException(e);
+					}
+				}
+			});
+		} catch (SQLException e) {
+			ps.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * a statement set up so the driver streams its results instead of reading
+	 * them all in first: forward-only and read-only, and for MySQL Connector/J
+	 * the special Integer.MIN_VALUE fetch size.
+	 */
+	public static PreparedStatement prepareStreaming(Connection c, String sql, int fetchSize, Object... params) throws SQLException {
+		PreparedStatement ps = c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			if(fetchSize > 0) {
+				String driver = c.getMetaData().getDriverName();
+				ps.setFetchSize((driver != null && driver.startsWith("MySQL Connector")) ? Integer.MIN_VALUE : fetchSize);
+			}
+			for(int i = 0; i < params.length; i++) {
+				ps.setObject(i + 1, params[i]);
+			}
+			return ps;
+		} catch (SQLException e) {
+			ps.close();
+			throw e;
+		}
+	}
+	
+	public Stream<RowView> stream() {
+		final RowView row = this;
+		Spliterator<RowView> split = new Spliterators.AbstractSpliterator<RowView>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+			public boolean tryAdvance(Consumer<? super RowView> action) {
+				if(!row.next()) {
+					return false;
+				}
+				action.accept(row);
+				return true;
+			}
+		};
+		return StreamSupport.stream(split, false).onClose(new Runnable() {
+			public void run() {
+				try {
+					rs.close();
+				} catch (SQLException e) {
+					throw new DbException(e);
+				}
+			}
+		});
+	}
+	
+	// advance to the next row:
+	public boolean next() {
+		try {
+			return rs.next();
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public ColumnIndex getColumns() {
+		return columns;
+	}
+	
+	public ResultSet getResultSet() {
+		return rs;
+	}
+	
+	public int size() {
+		return columns.size();
+	}
+	
+	public String getString(int column) {
+		try {
+			return rs.getString(column);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public String getString(String label) {
+		return getString(column(label));
+	}
+	
+	public int getInt(int column) {
+		try {
+			return rs.getInt(column);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public int getInt(String label) {
+		return getInt(column(label));
+	}
+	
+	public long getLong(int column) {
+		try {
+			return rs.getLong(column);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public long getLong(String label) {
+		return getLong(column(label));
+	}
+	
+	public double getDouble(int column) {
+		try {
+			return rs.getDouble(column);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public double getDouble(String label) {
+		return getDouble(column(label));
+	}
+	
+	public boolean getBoolean(int column) {
+		try {
+			return rs.getBoolean(column);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public boolean getBoolean(String label) {
+		return getBoolean(column(label));
+	}
+	
+	public BigDecimal getBigDecimal(int column) {
+		try {
+			return rs.getBigDecimal(column);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public BigDecimal getBigDecimal(String label) {
+		return getBigDecimal(column(label));
+	}
+	
+	public Timestamp getTimestamp(int column) {
+		try {
+			return rs.getTimestamp(column);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public Timestamp getTimestamp(String label) {
+		return getTimestamp(column(label));
+	}
+	
+	public byte[] getBytes(int column) {
+		try {
+			return rs.getBytes(column);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public Object getObject(int column) {
+		try {
+			return rs.getObject(column);
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	public Object getObject(String label) {
+		return getObject(column(label));
+	}
+	
+	// whether the last primitive getter read a sql NULL:
+	public boolean wasNull() {
+		try {
+			return rs.wasNull();
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+	
+	/**
+	 * copy the current row into a map of label to string, with NULL as "".
+	 * This is what getRowHash has always returned.
+	 */
+	public LinkedHashMap<String, String> toMap() {
+		int count = columns.size();
+		LinkedHashMap<String, String> output = new LinkedHashMap<String, String>(count * 2);
+		for(int i = 1; i <= count; i++) {
+			String fieldValue = getString(i);
+			output.put(columns.label(i), (fieldValue == null) ? "" : fieldValue);
+		}
+		return output;
+	}
+	
+	// copy the current row's values out, for holding on to after next():
+	public Object[] toArray() {
+		int count = columns.size();
+		Object[] values = new Object[count];
+		for(int i = 1; i <= count; i++) {
+			values[i - 1] = getObject(i);
+		}
+		return values;
+	}
+	
+	private int column(String label) {
+		int pos = columns.indexOf(label);
+		if(pos < 0) {
+			throw new DbException(new SQLException("No column labelled "+label));
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,153 @@
+// a per-connection LRU cache of PreparedStatements keyed by their sql, so a
+// prepare-execute loop only pays for the prepare once.  Statements handed out
+// here belong to the cache: don't close them, just clear or overwrite their
+// parameters (prepare() clears them for you).
+//
+// Connections from a ConnectionPool keep their cache for as long as the
+// physical connection lives, across borrows, and prepare through the borrow
+// that asked for the cache (so the pool sees the connection being used, and
+// times the statements when it has QueryStats).  For any other connection
+// the cache lives until closeFor() is called or the connection is closed.
+package com.dynamodan.dbhelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.dynamodan.loghelper.Wrapper.debug;
+
+public class StatementCache {
+	public static final int DEFAULT_SIZE = 64;
+	
+	// caches for connections that didn't come from a pool:
+	private static final IdentityHashMap<Connection, StatementCache> unpooled = new IdentityHashMap<Connection, StatementCache>();
+	
+	private Connection connection;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private volatile int maxSize;
+	private long hits = 0;
+	private long misses = 0;
+	
+	public StatementCache(Connection connection, int maxSize) {
+		this.connection = connection;
+		this.maxSize = maxSize;
+		// access-ordered, so the eldest entry is the least recently used one:
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if(size() > StatementCache.this.maxSize) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * the statement cache for a connection, creating it the first time
+	 */
+	public static StatementCache forConnection(Connection c) {
+		return forConnection(c, DEFAULT_SIZE);
+	}
+	
+	public static StatementCache forConnection(Connection c, int maxSize) {
+		StatementCache cache = ConnectionPool.statementCache(c, maxSize);
+		if(cache != null) {
+			return cache;
+		}
+		
+		synchronized(unpooled) {
+			cache = unpooled.get(c);
+			if(cache == null) {
+				// a good moment to forget about connections that have been closed since:
+				Iterator<Map.Entry<Connection, StatementCache>> it = unpooled.entrySet().iterator();
+				while(it.hasNext()) {
+					Map.Entry<Connection, StatementCache> entry = it.next();
+					try {
+						if(entry.getKey().isClosed()) {
+							it.remove();
+						}
+					} catch (SQLException e) {
+						it.remove();
+					}
+				}
+				cache = new StatementCache(c, maxSize);
+				unpooled.put(c, cache);
+			}
+		}
+		return cache;
+	}
+	
+	// close and forget the cache of an unpooled connection:
+	public static void closeFor(Connection c) {
+		StatementCache cache;
+		synchronized(unpooled) {
+			cache = unpooled.remove(c);
+		}
+		if(cache != null) {
+			cache.close();
+		}
+	}
+	
+	/**
+	 * a prepared statement for sql, with its parameters cleared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = statements.get(sql);
+		if(ps != null && !ps.isClosed()) {
+			hits++;
+			ps.clearParameters();
+			return ps;
+		}
+		
+		misses++;
+		ps = connection.prepareStatement(sql);
+		statements.put(sql, ps);
+		return ps;
+	}
+	
+	// prepare through c from now on, e.g. the pool's next borrow of the same connection:
+	synchronized void setConnection(Connection c) {
+		this.connection = c;
+	}
+	
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		Iterator<PreparedStatement> it = statements.values().iterator();
+		while(statements.size() > maxSize && it.hasNext()) {
+			closeQuietly(it.next());
+			it.remove();
+		}
+	}
+	
+	public synchronized int size() {
+		return statements.size();
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized void close() {
+		for(PreparedStatement ps : statements.values()) {
+			closeQuietly(ps);
+		}
+		statements.clear();
+	}
+	
+	private static void closeQuietly(PreparedStatement ps) {
+		try {
+			ps.close();
+		} catch (SQLException e) {
+			debug("Error closing cached statement: "+e.getMessage());
+		}
+	}
+}
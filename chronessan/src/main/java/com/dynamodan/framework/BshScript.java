@@ -0,0 +1,254 @@
+// a beanshell script parsed once into its statements, so running it again
+// (from a runner job, or a script sourced in a loop) skips the parser.
+// Parsed scripts are cached by a hash of their text, so an edited file is
+// simply a new script.
+//
+// run() evaluates the statements one at a time, the way Interpreter.eval()
+// does, and times each one.  Beanshell keeps its syntax tree classes package
+// private, so the nodes are driven through reflection; that's looked up once.
+package com.dynamodan.framework;
+
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import bsh.CallStack;
+import bsh.EvalError;
+import bsh.Interpreter;
+import bsh.Parser;
+import bsh.Primitive;
+
+public class BshScript {
+	private static final int CACHE_SIZE = 64;
+	private static final Map<String, BshScript> cache = Collections.synchronizedMap(new LinkedHashMap<String, BshScript>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, BshScript> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	});
+
+	private static Method evalNode;
+	private static Method lineNumber;
+	private static Method nodeText;
+	private static Class<?> returnControl;
+	private static Field returnValue;
+
+	private final String name;
+	private final String hash;
+	private final List<Object> statements;
+	private final int[] lines;
+	private final String[] texts;
+
+	/**
+	 * what one run() did: the value of the last statement (or of a top level
+	 * return), and the time each statement took
+	 */
+	public static class Result {
+		public final BshScript script;
+		public final Object value;
+		public final long[] nanos;
+		// the statement that failed, or -1:
+		public final int failedAt;
+		public final EvalError error;
+
+		Result(BshScript script, Object value, long[] nanos, int failedAt, EvalError error) {
+			this.script = script;
+			this.value = value;
+			this.nanos = nanos;
+			this.failedAt = failedAt;
+			this.error = error;
+		}
+
+		public boolean ok() {
+			return error == null;
+		}
+
+		public long totalNanos() {
+			long total = 0;
+			for(long n : nanos) {
+				total += n;
+			}
+			return total;
+		}
+
+		/**
+		 * the slowest statements, one line each, slowest first
+		 */
+		public String slowest(int count) {
+			Integer[] order = new Integer[nanos.length];
+			for(int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Long.compare(nanos[b], nanos[a]));
+			StringBuilder sb = new StringBuilder();
+			for(int k = 0; k < Math.min(count, order.length) && nanos[order[k]] > 0; k++) {
+				int i = order[k];
+				sb.append(String.format("%10.3f ms  line %d: %s%n", nanos[i] / 1e6, script.lines[i], script.texts[i]));
+			}
+			return sb.toString();
+		}
+	}
+
+	private BshScript(String name, String hash, List<Object> statements, int[] lines, String[] texts) {
+		this.name = name;
+		this.hash = hash;
+		this.statements = statements;
+		this.lines = lines;
+		this.texts = texts;
+	}
+
+	/**
+	 * the parsed script for this text, from the cache if it has been parsed before
+	 */
+	public static BshScript parse(String name, String source) throws EvalError {
+		String hash = hash(source);
+		BshScript script = cache.get(hash);
+		if(script != null) {
+			return script;
+		}
+
+		reflect();
+		Parser parser = new Parser(new StringReader(source));
+		List<Object> statements = new ArrayList<Object>();
+		List<Integer> lineList = new ArrayList<Integer>();
+		List<String> textList = new ArrayList<String>();
+		try {
+			while(!parser.Line()) {
+				Object node = parser.popNode();
+				if(node == null) {
+					continue;
+				}
+				statements.add(node);
+				lineList.add((Integer) lineNumber.invoke(node));
+				textList.add(shorten((String) nodeText.invoke(node)));
+			}
+		} catch (ReflectiveOperationException e) {
+			throw new EvalError(name+": "+e, null, null);
+		}
+
+		int[] lines = new int[lineList.size()];
+		for(int i = 0; i < lines.length; i++) {
+			lines[i] = lineList.get(i);
+		}
+		script = new BshScript(name, hash, statements, lines, textList.toArray(new String[0]));
+		cache.put(hash, script);
+		return script;
+	}
+
+	/**
+	 * run the statements in the interpreter's global namespace, stopping at
+	 * the first that fails or at a top level return
+	 */
+	public Result run(Interpreter interpreter) {
+		long[] nanos = new long[statements.size()];
+		CallStack callstack = new CallStack(interpreter.getNameSpace());
+		Object value = null;
+		for(int i = 0; i < statements.size(); i++) {
+			long start = System.nanoTime();
+			try {
+				value = evalNode.invoke(statements.get(i), callstack, interpreter);
+			} catch (InvocationTargetException e) {
+				nanos[i] = System.nanoTime() - start;
+				return new Result(this, null, nanos, i, evalError(e.getCause(), i));
+			} catch (IllegalAccessException e) {
+				return new Result(this, null, nanos, i, evalError(e, i));
+			} finally {
+				callstack.clear();
+				callstack.push(interpreter.getNameSpace());
+			}
+			nanos[i] = System.nanoTime() - start;
+
+			if(returnControl.isInstance(value)) {
+				try {
+					value = returnValue.get(value);
+				} catch (IllegalAccessException e) {
+					value = null;
+				}
+				break;
+			}
+		}
+		return new Result(this, (value == Primitive.VOID) ? null : Primitive.unwrap(value), nanos, -1, null);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public int size() {
+		return statements.size();
+	}
+
+	public int getLine(int statement) {
+		return lines[statement];
+	}
+
+	public String getText(int statement) {
+		return texts[statement];
+	}
+
+	public static void clearCache() {
+		cache.clear();
+	}
+
+	private EvalError evalError(Throwable e, int i) {
+		if(e instanceof EvalError) {
+			return (EvalError) e;
+		}
+		return new EvalError(name+" line "+lines[i]+": "+e, null, null);
+	}
+
+	private static String shorten(String text) {
+		String s = (text == null) ? "" : text.replaceAll("\\s+", " ").trim();
+		return (s.length() > 80) ? s.substring(0, 77)+"..." : s;
+	}
+
+	private static String hash(String source) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for(byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every jvm has sha-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static synchronized void reflect() throws EvalError {
+		if(evalNode != null) {
+			return;
+		}
+		try {
+			Class<?> node = Class.forName("bsh.SimpleNode");
+			Method eval = node.getMethod("eval", CallStack.class, Interpreter.class);
+			Method line = node.getMethod("getLineNumber");
+			Method text = node.getMethod("getText");
+			returnControl = Class.forName("bsh.ReturnControl");
+			returnValue = returnControl.getField("value");
+			returnValue.setAccessible(true);
+			eval.setAccessible(true);
+			line.setAccessible(true);
+			text.setAccessible(true);
+			lineNumber = line;
+			nodeText = text;
+			evalNode = eval;
+		} catch (ReflectiveOperationException e) {
+			throw new EvalError("This beanshell can't run parsed scripts: "+e, null, null);
+		}
+	}
+}
@@ -24,17 +24,13 @@ import java.util.Iterator;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.Properties;
+import java.util.stream.Stream;
 import java.net.InetAddress;
 
 // command line and repl stuff:
 import org.apache.commons.cli.*;
 import bsh.Interpreter;
 import bsh.EvalError;
-import jline.console.ConsoleReader;
-import jline.TerminalFactory;
-import jline.UnixTerminal;
-import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.json.JsonHierarchicalStreamDriver;
 
 // mssql libs:
 import java.sql.DriverManager;
@@ -47,44 +43,70 @@ import java.sql.ResultSetMetaData;
 
 // logging stuff:
 import com.dynamodan.loghelper.Wrapper;
+import com.dynamodan.loghelper.WarningStore;
 import static com.dynamodan.loghelper.Wrapper.log;
 import static com.dynamodan.loghelper.Wrapper.warning;
 import static com.dynamodan.loghelper.Wrapper.debug;
 import org.apache.log4j.*;
 
-// yaml dumper:
-import com.fasterxml.jackson.dataformat.yaml.snakeyaml.DumperOptions;
-import com.fasterxml.jackson.dataformat.yaml.snakeyaml.Yaml;
-
 import com.dynamodan.framework.ConfigSingleton; // the config is a singleton so that SoapCredentialLoader can get it
 import com.dynamodan.framework.ConfigSingletonException;
 
+// pooled db connections:
+import com.dynamodan.dbhelper.ConnectionPool;
+import com.dynamodan.dbhelper.MetaDataCache;
+import com.dynamodan.dbhelper.RowView;
+import com.dynamodan.dbhelper.DbException;
+import com.dynamodan.dbhelper.StatementCache;
+import com.dynamodan.dbhelper.BatchWriter;
+import com.dynamodan.dbhelper.ResultSetExporter;
+import com.dynamodan.dbhelper.ChunkedExtractor;
+import com.dynamodan.dbhelper.QueryStats;
+import com.dynamodan.dbhelper.ResultCache;
+import com.dynamodan.dbhelper.CachedResult;
+
 // smtp so we can send out warnings:
 import javax.mail.*;
 import javax.activation.*;
+import com.dynamodan.mailhelper.AlertDispatcher;
+
+// counters and timings:
+import com.dynamodan.metrichelper.Metrics;
 
 public class Chronessan {
 	public static Chronessan self = null;
 	protected String version = "0.01";
 	public Options options = new Options();
+	// every warning as text, only filled with warnings_writer: true:
 	public StringWriter warnings = new StringWriter();
+	// the last warnings_max of them, for the report:
+	public WarningStore warningStore = new WarningStore(1000);
 	public CommandLine cmd = null;
 	public Object config = null;
+	// the same config, parsed once into typed, dotted-path lookups (see ConfigSnapshot).
+	// Swapped for a new one when the file changes, if config_watch is on.
+	public volatile ConfigSnapshot settings = ConfigSnapshot.empty();
 	public Connection mssql_connection = null;
 	public Connection mysql_connection = null;
 	public Connection MariaDBConnection = null;
-	public LinkedHashMap<String, LinkedHashMap<String, Object>> sqlMetaData = new LinkedHashMap();
+	public volatile ConnectionPool mssqlPool = null;
+	public volatile ConnectionPool mysqlPool = null;
+	public volatile ConnectionPool MariaDBPool = null;
+	public volatile AlertDispatcher alertDispatcher = null;
+	public volatile ResultCache resultCache = null;
+	public PidLock pidLock = null;
+	public MetaDataCache sqlMetaData = new MetaDataCache(256);
 	
 	
 	/**
 	 * Beginning of methods that are intended to be overridden:
 	 */
 	public String setLogPropName() {
-		return self.getProgramClass()+".log4j.properties";
+		return this.getProgramClass()+".log4j.properties";
 	}
 	
 	public String getCwd() {
-		String cwd = self.getClass().getProtectionDomain().getCodeSource().getLocation().getPath();
+		String cwd = this.getClass().getProtectionDomain().getCodeSource().getLocation().getPath();
 		// determine if we're running from jar or class directory:
 		File jarFile = new File(cwd);
 		if(!jarFile.isDirectory()) {
@@ -104,19 +126,19 @@ public class Chronessan {
 	}
 	
 	public String setConfigFileName() {
-		return self.getProgramClass()+".yaml.conf";
+		return this.getProgramClass()+".yaml.conf";
 	}
 	
 	public String getVersion() {
-		return self.getProgramClass()+" v"+self.version;
+		return this.getProgramClass()+" v"+this.version;
 	}
 	
 	public String getProgramName() {
-		return self.getProgramClass()+".java";
+		return this.getProgramClass()+".java";
 	}
 	
 	public String getProgramClass() {
-		return self.getClass().getSimpleName();
+		return this.getClass().getSimpleName();
 	}
 	
 	public void configureBeanShell(Interpreter i) {
@@ -128,121 +150,148 @@ public class Chronessan {
 		}
 	}
 	
-	// secure and release pid file for concurrency checking.  Individual scripts implement this
+	/**
+	 * secure and release pid file for concurrency checking.  Off unless configured
+	 * (or overridden by the individual script):
+	 *   pid_lock: true                (or a number N: allow up to N copies at once on this host)
+	 *   pid_file: <path>              (default <Program>.pid next to the config; .1 ... .N with slots)
+	 *   pid_lock_wait: 0              (seconds to wait for a running copy to finish before giving up)
+	 * The lock is an OS file lock, so it's released however this process ends.
+	 */
 	public void securePID() {
-		return;
+		ConfigSnapshot config = this.settings;
+		Object setting = config.get("pid_lock");
+		if(setting == null || setting instanceof Boolean && !(Boolean) setting) {
+			return;
+		}
+		int slots = (setting instanceof Boolean) ? 1 : config.getInt("pid_lock", 1);
+		if(slots < 1) {
+			return;
+		}
+		File file = new File(config.getString("pid_file", this.getCwd()+"../../"+this.getProgramClass()+".pid"));
+		PidLock lock = new PidLock(file, slots);
+		boolean got;
+		try {
+			got = lock.acquire(config.getLong("pid_lock_wait", 0) * 1000);
+		} catch (IOException e) {
+			warning("Can't lock "+file+": "+e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if(!got) {
+			log("Already running (pid "+lock.describeHolders()+"), "+file+" is locked.  Exiting.");
+			System.exit(1);
+		}
+		debug("Locked "+lock.getHeldFile());
+		this.pidLock = lock;
 	}
 	
 	public void releasePID() {
-		return;
+		if(this.pidLock != null) {
+			this.pidLock.release();
+			this.pidLock = null;
+		}
 	}
 	
 	public void run() {
 		// nothing to do here, you should override this in your derived class
 	}
 	
-	// send out an email:
+	// send out an email.  The mail is spooled and sent from a background thread,
+	// see getAlertDispatcher().
 	public void report() {
-		LinkedHashMap config = null;
+		ConfigSnapshot config = this.settings;
 		
-		if(this.config instanceof LinkedHashMap) {
-			config = (LinkedHashMap) self.config;
-		} else {
-			log("config should be a LinkedHashMap.  It was a "+this.config.getClass());
+		if(!config.isMap()) {
+			log("config should be a map of settings.  It was "+((this.config == null) ? "not loaded" : "a "+this.config.getClass()));
 			log("Can't report anything.");
 			return;
 		}
 		
 		// Recipient's email ID needs to be mentioned.
-    	String to = (String) config.get("email_recipient");
+    	String to = config.getString("email_recipient");
     	
     	// Sender's email ID needs to be mentioned
-    	String from = (String) config.get("email_sender");
-    	
-    	// SMTP host:
-    	String host = (String) config.get("smtp_host");
-    	final String pass = (String) config.get("smtp_pass");
-    	final String user = (String) config.get("smtp_user");
+    	String from = config.getString("email_sender");
     	
-    	// set up the properties
-    	Properties properties = new Properties();
-    	properties.put("mail.smtp.host", host);
-    	
-		// set up auth:
-		javax.mail.Authenticator auth = new javax.mail.Authenticator() {
-			protected PasswordAuthentication getPasswordAuthentication() {
-				return new PasswordAuthentication(user, pass);
-			}
-		};
-		if(pass != null) {
-    		properties.put("mail.smtp.auth", true);
-    	}
+		if(to == null || from == null || !config.has("smtp_host")) {
+			warning("Can't send report, the config needs email_recipient, email_sender and smtp_host settings.");
+			return;
+		}
 		
-		// Get a Session object.
-		Session session = null;
+		String hostip = "";
+		try {
+			hostip = " on "+InetAddress.getLocalHost().toString();
+		} catch (java.net.UnknownHostException e) {
+			// do nothing
+		}
 		
-		if(pass != null) {
-			debug("getting smtp session with auth");
-			session = Session.getInstance(properties, auth);
+		// set up the subject and body:
+		String subject;
+		String body;
+		if(!this.warningStore.isEmpty()) {
+			subject = "ALERT: "+this.getProgramName()+hostip+" ran with warnings";
+			body = "The java program ran with the following warnings:\n\n" + this.warningStore.format();
 		} else {
-			debug("getting smtp session without auth");
-			session = Session.getInstance(properties);
+			subject = "Report from "+this.getProgramName()+hostip;
+			body = "The java program ran ok without warnings. (This message may be expanded to include more information in the future)";
 		}
-		if(self.cmd.hasOption("debug")) { session.setDebug(true); }
-
-		try {
-			// Create a default MimeMessage object.
-			javax.mail.internet.MimeMessage message = new javax.mail.internet.MimeMessage(session);
-			
-			// Set From: header field of the header.
-			message.setFrom(new javax.mail.internet.InternetAddress(from));
-			
-			// Set To: header field of the header.
-			message.addRecipients(Message.RecipientType.TO, to);
-			
-			String hostip = "";
-			try {
-				hostip = " on "+InetAddress.getLocalHost().toString();
-			} catch (java.net.UnknownHostException e) {
-				// do nothing
-			}
-			
-			// set up the subject and body:
-			if(self.warnings.getBuffer().length() > 0) {
-				message.setSubject("ALERT: "+self.getProgramName()+hostip+" ran with warnings");
-				String body = "";
-				for(String w : self.warnings.toString().split("\\|{3}")) {
-					body = body + w;
-				}
-				message.setText("The java program ran with the following warnings:\n\n" + body);
-			} else {
-				message.setSubject("Report from "+self.getProgramName()+hostip);
-				message.setText("The java program ran ok without warnings. (This message may be expanded to include more information in the future)");
-			}
-			
-			// Now set the actual message
-			
-			// Send message
-			Transport.send(message);
-			System.out.println("Sent message successfully....");
+		if(config.getBoolean("metrics_summary", true)) {
+			body += "\n\n" + Metrics.summary();
 		}
-      
-		catch(AuthenticationFailedException authError) {
-			warning("Got an SMTP authentication error: "+authError.getMessage());
+		Metrics.counter("report.mails").inc();
+		
+		try {
+			getAlertDispatcher().submit(from, to, subject, body);
+		} catch (IOException e) {
+			warning("Couldn't spool the report mail: "+e.getMessage());
 		}
-      
-		catch (MessagingException mex) {
-		   
-			warning("Got an SMTP error: "+mex.getMessage());
+	}
+	
+	/**
+	 * the dispatcher that report() hands its mail to.  Settings:
+	 *   smtp_host, smtp_port, smtp_user, smtp_pass
+	 *   alert_spool: <dir>            (default <Program>.alerts next to the config; share it between
+	 *                                  programs to rate limit and digest across them)
+	 *   alert_min_interval: 0         (seconds between mails to one recipient, the rest are digested)
+	 *   alert_max_age: 604800         (seconds before an unsendable alert is dropped)
+	 *   alert_send_wait: 5            (seconds to wait for the mail to go out at exit)
+	 */
+	public synchronized AlertDispatcher getAlertDispatcher() {
+		if(this.alertDispatcher != null) {
+			return this.alertDispatcher;
 		}
 		
-		catch (NullPointerException e) {
-			warning("Got a NullPointerException trying to send report: "+e.getMessage());
-			warning("Perhaps there are problems with your SMTP config. Stack trace:");
-			StringWriter sw = new StringWriter();
-			e.printStackTrace(new PrintWriter(sw));
-			warning(sw.toString());
+		ConfigSnapshot config = this.settings;
+		boolean debug = this.cmd != null && this.cmd.hasOption("debug");
+		Session session = AlertDispatcher.createSession(config.getString("smtp_host"), config.get("smtp_port"),
+			config.getString("smtp_user"), config.getString("smtp_pass"), debug);
+		
+		String spool = config.getString("alert_spool", this.getCwd()+"../../"+this.getProgramClass()+".alerts");
+		this.alertDispatcher = new AlertDispatcher(session, new File(spool));
+		if(config.has("alert_min_interval")) {
+			this.alertDispatcher.setMinInterval(config.getLong("alert_min_interval", 0));
+		}
+		if(config.has("alert_max_age")) {
+			this.alertDispatcher.setMaxAge(config.getLong("alert_max_age", 604800));
+		}
+		return this.alertDispatcher;
+	}
+	
+	// start sending whatever earlier runs left in the alert spool:
+	protected void resumeAlerts() {
+		if(!this.settings.has("smtp_host")) {
+			return;
+		}
+		getAlertDispatcher().resume();
+	}
+	
+	// give spooled mail a few seconds to go out; whatever doesn't goes with the next run:
+	protected void awaitAlerts() {
+		if(this.alertDispatcher == null) {
+			return;
 		}
+		this.alertDispatcher.awaitDelivery(this.settings.getLong("alert_send_wait", 5) * 1000);
 	}
 	
 	/**
@@ -258,10 +307,11 @@ public class Chronessan {
         
 		// set up log wrapper
 		Wrapper lw = Wrapper.getInstance(instance.getCwd()+"../../"+instance.setLogPropName(), instance.getCwd()+"../../");
-		lw.setCallerWriter(instance.warnings); // this enables us to capture warnings so they can be sent
+		lw.setWarningStore(instance.warningStore); // this enables us to capture warnings so they can be sent
         
 		// set up to read the common cli switches:
 		instance.options.addOption(new Option("repl", "repl", false, "Enter a Beanshell Read-Eval-Print-Loop"));
+		instance.options.addOption(new Option("script", "script", true, "Run a Beanshell script file (- for stdin) instead of run()"));
 		instance.options.addOption(new Option("debug", "debug", false, "Print debugging messages to screen and log"));
 		instance.options.addOption(new Option("d", "dryrun", false, "Do a dry run, i.e. read-only, no changes"));
 		instance.options.addOption(new Option("h", "help", false, "display this help message"));
@@ -291,143 +341,71 @@ public class Chronessan {
 		
 		// load the configuration yaml:
 		instance.loadConfig();
+		instance.configureLogging();
+		instance.configureMetrics();
+		instance.resumeAlerts();
 
-		// get the root logger:
-		Logger rl = LogManager.getRootLogger();
-		
 		// write a pid file, if so equipped:
 		instance.securePID();
 		
-		// start a JLine-wrapped beanshell:
-		if(instance.cmd.hasOption("repl")) {
-			
-			// turn off console logging, it doesn't need to echo into the
-			// repl.  It already echos via beanshell and ConsoleReader
-			ConsoleAppender appender = (ConsoleAppender) rl.getAppender("CA");
-			// appender.setThreshold(Level.OFF);
-			
-			// set a new layout that only echoes the message, and maybe the pid:
-			PatternLayout appenderLayout = (PatternLayout) appender.getLayout();
-			String origPattern = appenderLayout.getConversionPattern();
-			appenderLayout.setConversionPattern("[%X{PID}] %m%n");
-			// appender.setLayout(newLayout);
-			
-			
-			// set up the console reader:
-			ConsoleReader console = null;
-			
-			try {
-				console = new ConsoleReader();
-			} catch (IOException e) {
-				warning("Got IOException: ");
-				warning(e.getMessage());
-			}
-			
-			// set up a Beanshell interpreter:
-			Interpreter i = new bsh.Interpreter();
-			try {
-				i.set("console", console);
-				i.set("cmd", instance.cmd);
-				i.set("version", instance.version);
-				i.set("self", instance);
-				i.set("lw", lw);
-				
-				instance.configureBeanShell(i);
-				
-				i.eval("void exit() { print(\"Use CTRL-d to exit.\"); }");
-			} catch (EvalError e) {
-				log(e.getMessage());
-			}
-			
-			System.out.println("Press CTRL-c or CTRL-d (or type quit) to exit.");
-			
-			console.setHandleUserInterrupt(true);
-			console.setPrompt("beanshell> ");
-            
-			String line = null;
-			Object evalResult = null;
-			int maxChar = 300;
-
-			try {
-				while ((line = console.readLine()) != null) {
-					try {
-						
-						appender.setThreshold(Level.OFF);
-						log("beanshell> "+line);
-						if("quit".equals(line)) {
-							log("Bye");
-							break;
-						}
-						appender.setThreshold(Level.ALL);
-						
-						
-						evalResult = i.eval(line);
-						if(evalResult != null) {  // check first, it could be null!!
-							// console.println(evalResult.toString());
-							String logString = evalResult.toString();
-							int maxLength = (logString.length() < maxChar)?logString.length():maxChar;
-							log("beanshell> "+logString.substring(0,maxLength));
-						}
-					}	catch (EvalError e) {
-						String errstr = e.getMessage();
-						warning("beanshell> "+errstr);
-						// console.println(errstr);
-					}	catch (Exception e) {
-						String errstr = e.getMessage();
-						warning("beanshell> "+errstr);
-					}
-					
-				}
-				
-			} catch(IOException e) {
-				warning("Got IOException: ");
-				warning(e.getMessage());
-			} catch (jline.console.UserInterruptException e) {
-				appender.setThreshold(Level.ALL);
-				log("Caught CTRL-c");
-			} finally {
-				try {
-					TerminalFactory.get().restore();
-				} catch(Exception e) {
-					e.printStackTrace();
-				}
-			}
-
-			appenderLayout.setConversionPattern(origPattern);
-			appender.setThreshold(Level.ALL);
-			log("exiting beanshell");
-			
+		// how long the jvm, the config and the rest took to get this far:
+		long runStart = System.nanoTime();
+		Metrics.histogram("run.startup").record((System.currentTimeMillis() - java.lang.management.ManagementFactory.getRuntimeMXBean().getStartTime()) * 1000000);
+		
+		// start a JLine-wrapped beanshell, or run a script through it:
+		if(instance.cmd.hasOption("script")) {
+			new Repl(instance, lw).runScript(instance.cmd.getOptionValue("script"));
+		}
+		
+		else if(instance.cmd.hasOption("repl")) {
+			new Repl(instance, lw).interact();
 		}
 		
 		else {
 			// no repl or anything that would stop us, so, just go right into the run function:
 			instance.run();
 		}
+		Metrics.histogram("run.time").recordSince(runStart);
+		
+		// make sure anything still queued for the log has been written before reporting:
+		Wrapper.flush();
 		
-		int warningSize = instance.warnings.toString().split("\\|{3}").length;
-		int warningsLength = instance.warnings.toString().length();
-		if(warningsLength > 0) {
+		long warningSize = instance.warningStore.count();
+		if(warningSize > 0) {
 			log("Ran successfully, but with "+warningSize+" warnings.");
 			
-			// setup an SMTP connection, and mail out the warning:
+			// spool the warnings mail:
 			instance.report();
 		} else {
 			log("Run completed without warnings.");
 		}
+		// give it, and anything left over from earlier runs, a moment to go out:
+		instance.awaitAlerts();
+		
+		Metrics.stopReporting();
+		if(instance.settings.getBoolean("metrics_summary", true)) {
+			log(Metrics.summary());
+		}
+		if(instance.settings.getBoolean("sql_stats", false) && !QueryStats.getInstance().isEmpty()) {
+			log(QueryStats.getInstance().report(instance.settings.getInt("sql_top", 10)));
+		}
+		Metrics.unregisterJmx();
 		
 		instance.releasePID();
 		
+		ConnectionPool.closeAll();
 	}
 	
 		// try to load the config.  Return an empty object if not.  (TODO, make this throw an exception in true java style!)
 	// this should actually return a java.util.LinkedHashMap
 	public void loadConfig() {
-		String configPath = self.getCwd()+"../../"+self.setConfigFileName();
+		String configPath = this.getCwd()+"../../"+this.setConfigFileName();
 		ConfigSingleton cnf = ConfigSingleton.getInstance();
 		cnf.setConfigPath(configPath);
 		
 		try {
-			self.config = cnf.loadConfig();
+			this.config = cnf.loadConfig();
+			this.settings = ConfigSingleton.get();
 		}
 		
 		catch (ConfigSingletonException e) {
@@ -435,189 +413,437 @@ public class Chronessan {
 			warning(e.getMessage());
 		}
 		
+		// long running programs (a repl, a daemon) can pick up config changes without a restart:
+		if(this.settings.getBoolean("config_watch", false)) {
+			final Chronessan me = this;
+			ConfigSingleton.addListener(new ConfigSingleton.ConfigListener() {
+				public void configChanged(ConfigSnapshot previous, ConfigSnapshot current) {
+					me.configChanged(previous, current);
+				}
+			});
+			try {
+				ConfigSingleton.startWatching();
+			} catch (IOException e) {
+				warning("Can't watch the config for changes: "+e.getMessage());
+			}
+		}
 	}
 	
-	// get a mssql connection.  This assumes that loadConfig() has already been called.
-	public Connection getMssqlConnection() {
-		LinkedHashMap config = null;
-		if(this.mssql_connection != null) {
-			return this.mssql_connection;
+	/**
+	 * called (on the watcher thread) with each new version of the config once
+	 * it has been swapped in.  Picks up the settings that can change on the fly:
+	 * pool sizes and timeouts, warnings_max, the log repeat limits and the alert
+	 * rate limits.  Connection settings (hosts, users) only apply to new pools,
+	 * i.e. after a restart.  Override to react to your own settings, and call
+	 * super.configChanged() to keep these.
+	 */
+	protected void configChanged(ConfigSnapshot previous, ConfigSnapshot current) {
+		this.config = ConfigSingleton.getRaw();
+		this.settings = current;
+		
+		int warningsMax = current.getInt("warnings_max", 1000);
+		if(previous == null || warningsMax != previous.getInt("warnings_max", 1000)) {
+			this.warningStore.setCapacity(warningsMax);
+		}
+		if(current.has("log_repeat_burst") || current.has("log_repeat_window")) {
+			Wrapper.setRepeatLimit(current.getInt("log_repeat_burst", 0), current.getLong("log_repeat_window", 1000));
 		}
 		
-		if(this.config == null) {
-			log("Configuration not loaded yet for getMssqlConnection.  Run loadConfig() first.");
-			return this.mssql_connection;
+		if(this.mssqlPool != null) { configurePool(this.mssqlPool, current, "mssql"); }
+		if(this.mysqlPool != null) { configurePool(this.mysqlPool, current, "mysql"); }
+		if(this.MariaDBPool != null) { configurePool(this.MariaDBPool, current, "mysql"); }
+		
+		AlertDispatcher alerts = this.alertDispatcher;
+		if(alerts != null) {
+			alerts.setMinInterval(current.getLong("alert_min_interval", 0));
+			alerts.setMaxAge(current.getLong("alert_max_age", 604800));
 		}
+	}
+	
+	// set how many warnings are kept for the report, set up repeat suppression, and switch the log over to a background writer
+	// thread if the config asks for it:
+	//   warnings_max: 1000              (the most recent ones are kept, all of them are counted)
+	//   warnings_writer: false          (true to also copy every warning into the warnings StringWriter, which grows without bound)
+	//   log_repeat_burst: 0             (same-shaped messages let through per window; 0, the default, only
+	//                                    collapses the same message repeated in a row, -1 logs everything)
+	//   log_repeat_window: 1000         (ms)
+	//   log_async: true
+	//   log_async_capacity: 8192        (messages queued before backpressure kicks in)
+	//   log_async_backpressure: block   (or drop, or sample)
+	//   log_async_sample: 10            (with sample, keep 1 in this many when full)
+	//   log_async_location: true        (false if the log layouts don't use %F:%L)
+	public void configureLogging() {
+		ConfigSnapshot config = this.settings;
+		if(config.has("warnings_max")) {
+			this.warningStore.setCapacity(config.getInt("warnings_max", 1000));
+		}
+		Wrapper.getInstance().setCallerWriter(config.getBoolean("warnings_writer", false) ? this.warnings : null);
 		
-		if(this.config instanceof LinkedHashMap) {
-			config = (LinkedHashMap) this.config;
-		} else {
-			log("config should be a LinkedHashMap.  It was a "+this.config.getClass());
-			return this.mssql_connection;
+		if(config.has("log_repeat_burst") || config.has("log_repeat_window")) {
+			Wrapper.setRepeatLimit(config.getInt("log_repeat_burst", 0), config.getLong("log_repeat_window", 1000));
 		}
 		
-		if(config.get("mssql_host") == null) {
-			log("Configuration doesn't contain mssql_host setting.");
-		} else {
+		if(!config.getBoolean("log_async", false)) {
+			return;
+		}
+		
+		int capacity = config.getInt("log_async_capacity", 8192);
+		String backpressure = config.getString("log_async_backpressure", "block");
+		Wrapper.startAsync(capacity, backpressure, config.getInt("log_async_sample", 10), config.getBoolean("log_async_location", true));
+		debug("Logging asynchronously, queue of "+capacity+", "+backpressure+" when full");
+	}
+	
+	/**
+	 * where the metrics go besides the end of run summary.  Settings:
+	 *   metrics_summary: true   (log the summary at the end of the run, and add it to the report mail)
+	 *   metrics_interval: 0     (seconds between summaries in the log, for long runs)
+	 *   metrics_jmx: false      (show the metrics over JMX, as com.dynamodan:type=Metrics)
+	 */
+	public void configureMetrics() {
+		ConfigSnapshot config = this.settings;
+		if(config.getBoolean("metrics_jmx", false)) {
 			try {
-				String port;
-				if(config.get("mssql_port") == null) { port = ""; } else { port = ":" + config.get("mssql_port").toString(); }
-				Class.forName("com.microsoft.sqlserver.jdbc.SQLServerDriver");
-				this.mssql_connection = DriverManager.getConnection(
-					"jdbc:sqlserver://"+config.get("mssql_host") + port
-					+";user="+config.get("mssql_user")
-					+";password="+config.get("mssql_pass")
-					+";database="+config.get("mssql_schema")
-				);
-			} catch (ClassNotFoundException e) {
-				warning("ClassNotFound: "+e.getMessage());
-				
-			} catch (SQLException e) {
-				warning(e.getMessage());
+				Metrics.registerJmx(this.getProgramClass());
+			} catch (Exception e) {
+				warning("Can't show the metrics over JMX: "+e.getMessage());
 			}
 		}
+		long interval = config.getLong("metrics_interval", 0);
+		if(interval > 0) {
+			Metrics.startReporting(interval * 1000, summary -> log(summary));
+		}
+	}
+	
+	// get a mssql connection.  This assumes that loadConfig() has already been called.
+	// Each thread gets its own connection out of the mssql pool.
+	public Connection getMssqlConnection() {
+		this.mssql_connection = threadConnection(getMssqlPool());
 		return this.mssql_connection;
 	}
 	
 	// get a mysql connection to a MariaDB db.  This assumes that loadConfig() has already been called.
+	// Each thread gets its own connection out of the MariaDB pool.
 	public Connection getMariaDBConnection() {
-		LinkedHashMap config = null;
-		if(this.MariaDBConnection != null) {
-			return this.MariaDBConnection;
+		this.MariaDBConnection = threadConnection(getMariaDBPool());
+		return this.MariaDBConnection;
+	}
+	
+	// get a mysql connection.  This assumes that loadConfig() has already been called.
+	// Each thread gets its own connection out of the mysql pool.
+	public Connection getMysqlConnection() {
+		this.mysql_connection = threadConnection(getMysqlPool());
+		return this.mysql_connection;
+	}
+	
+	// the pools behind the getters above.  Worker threads that want a connection
+	// for a short while can borrow() one and close() it to give it back.
+	public ConnectionPool getMssqlPool() {
+		if(this.mssqlPool != null) {
+			return this.mssqlPool;
 		}
 		
-		if(this.config == null) {
-			log("Configuration not loaded yet for getMariaDBConnection.  Run loadConfig() first.");
-			return this.MariaDBConnection;
+		ConfigSnapshot config = getSettings("getMssqlConnection");
+		if(config == null) {
+			return null;
 		}
 		
-		if(this.config instanceof LinkedHashMap) {
-			config = (LinkedHashMap) this.config;
-		} else {
-			log("config should be a LinkedHashMap.  It was a "+this.config.getClass());
-			return this.MariaDBConnection;
+		if(!config.has("mssql_host")) {
+			log("Configuration doesn't contain mssql_host setting.");
+			return null;
 		}
 		
-		if(config.get("mysql_host") == null) {
-			log("Configuration doesn't contain mysql_host setting.");
-		} else {
-			try {
-				String port;
-				if(config.get("mysql_port") == null) { port = ""; } else { port = ":" + config.get("mysql_port").toString(); }
-				//Class.forName("org.mariadb.jdbc.Driver");
-				String url = "jdbc:mariadb://"+config.get("mysql_host") + port + "/" + config.get("mysql_schema")+"?zeroDateTimeBehavior=convertToNull;alwaysAutoGeneratedKeys=TRUE";
-				this.MariaDBConnection = DriverManager.getConnection(url, (String) config.get("mysql_user"), (String) config.get("mysql_pass"));
-			} catch (SQLException e) {
-				warning(e.getMessage());
-			} catch (Exception e) {
-				warning(e.getMessage());
-			}
+		try {
+			Class.forName("com.microsoft.sqlserver.jdbc.SQLServerDriver");
+		} catch (ClassNotFoundException e) {
+			warning("ClassNotFound: "+e.getMessage());
+			return null;
 		}
-		return this.MariaDBConnection;
+		
+		String port = config.has("mssql_port") ? ":" + config.getString("mssql_port") : "";
+		String url = "jdbc:sqlserver://"+config.getString("mssql_host") + port
+			+";user="+config.getString("mssql_user")
+			+";password="+config.getString("mssql_pass")
+			+";database="+config.getString("mssql_schema");
+		this.mssqlPool = configurePool(ConnectionPool.getPool("mssql", url, null, null, poolSetting(config, "mssql", "size", 8)), config, "mssql");
+		return this.mssqlPool;
 	}
 	
-	// get a mysql connection.  This assumes that loadConfig() has already been called.
-	public Connection getMysqlConnection() {
-		LinkedHashMap config = null;
-		if(this.mysql_connection != null) {
-			return this.mysql_connection;
+	public ConnectionPool getMariaDBPool() {
+		if(this.MariaDBPool != null) {
+			return this.MariaDBPool;
 		}
 		
-		if(this.config == null) {
-			log("Configuration not loaded yet for getMysqlConnection.  Run loadConfig() first.");
-			return this.mysql_connection;
+		ConfigSnapshot config = getSettings("getMariaDBConnection");
+		if(config == null) {
+			return null;
 		}
 		
-		if(this.config instanceof LinkedHashMap) {
-			config = (LinkedHashMap) this.config;
-		} else {
-			log("config should be a LinkedHashMap.  It was a "+this.config.getClass());
-			return this.mysql_connection;
+		if(!config.has("mysql_host")) {
+			log("Configuration doesn't contain mysql_host setting.");
+			return null;
 		}
 		
-		if(config.get("mysql_host") == null) {
+		String port = config.has("mysql_port") ? ":" + config.getString("mysql_port") : "";
+		String url = "jdbc:mariadb://"+config.getString("mysql_host") + port + "/" + config.getString("mysql_schema")+"?zeroDateTimeBehavior=convertToNull;alwaysAutoGeneratedKeys=TRUE";
+		this.MariaDBPool = configurePool(ConnectionPool.getPool("mariadb", url, config.getString("mysql_user"), config.getString("mysql_pass"), poolSetting(config, "mysql", "size", 8)), config, "mysql");
+		return this.MariaDBPool;
+	}
+	
+	public ConnectionPool getMysqlPool() {
+		if(this.mysqlPool != null) {
+			return this.mysqlPool;
+		}
+		
+		ConfigSnapshot config = getSettings("getMysqlConnection");
+		if(config == null) {
+			return null;
+		}
+		
+		if(!config.has("mysql_host")) {
 			log("Configuration doesn't contain mysql_host setting.");
+			return null;
+		}
+		
+		try {
+			Class.forName("com.mysql.jdbc.Driver");
+		} catch (ClassNotFoundException e) {
+			warning("ClassNotFound: "+e.getMessage());
+			return null;
+		}
+		
+		String port = config.has("mysql_port") ? ":" + config.getString("mysql_port") : "";
+		String url = "jdbc:mysql://"+config.getString("mysql_host") + port + "/" + config.getString("mysql_schema");
+		this.mysqlPool = configurePool(ConnectionPool.getPool("mysql", url, config.getString("mysql_user"), config.getString("mysql_pass"), poolSetting(config, "mysql", "size", 8)), config, "mysql");
+		return this.mysqlPool;
+	}
+	
+	// the loaded settings, or null (with a log line saying why) if they aren't loaded or aren't a map:
+	protected ConfigSnapshot getSettings(String caller) {
+		if(this.config == null) {
+			log("Configuration not loaded yet for "+caller+".  Run loadConfig() first.");
+			return null;
+		}
+		
+		if(!this.settings.isMap()) {
+			log("config should be a map of settings.  It was a "+this.config.getClass());
+			return null;
+		}
+		return this.settings;
+	}
+	
+	// pool settings are read from <prefix>_pool_size, <prefix>_pool_idle_timeout and so on.
+	// The statements run on every pool can be timed too (see QueryStats):
+	//   sql_stats: false        (time them, log the slow ones, and the top ones at the end of the run)
+	//   sql_slow_ms: 1000       (log statements that take longer than this)
+	//   sql_top: 10             (how many statements the end of run report lists)
+	protected int poolSetting(ConfigSnapshot config, String prefix, String name, int defaultValue) {
+		return config.getInt(prefix+"_pool_"+name, defaultValue);
+	}
+	
+	protected ConnectionPool configurePool(ConnectionPool pool, ConfigSnapshot config, String prefix) {
+		pool.setMaxSize(poolSetting(config, prefix, "size", pool.getMaxSize()));
+		pool.setIdleTimeout(poolSetting(config, prefix, "idle_timeout", 300));
+		pool.setBorrowTimeout(poolSetting(config, prefix, "borrow_timeout", 30));
+		pool.setValidationTimeout(poolSetting(config, prefix, "validation_timeout", 5));
+		pool.setConnectAttempts(poolSetting(config, prefix, "connect_attempts", 3));
+		if(config.getBoolean("sql_stats", false)) {
+			QueryStats stats = QueryStats.getInstance();
+			stats.setSlowThreshold(config.getLong("sql_slow_ms", 1000));
+			pool.setQueryStats(stats);
 		} else {
-			try {
-				String port;
-				if(config.get("mysql_port") == null) { port = ""; } else { port = ":" + config.get("mysql_port").toString(); }
-				Class.forName("com.mysql.jdbc.Driver");
-				String url = "jdbc:mysql://"+config.get("mysql_host") + port + "/" + config.get("mysql_schema");
-				this.mysql_connection = DriverManager.getConnection(url, (String) config.get("mysql_user"), (String) config.get("mysql_pass"));
-			} catch (ClassNotFoundException e) {
-				warning("ClassNotFound: "+e.getMessage());
-				
-			} catch (SQLException e) {
-				warning(e.getMessage());
-			}
+			pool.setQueryStats(null);
+		}
+		return pool;
+	}
+	
+	private Connection threadConnection(ConnectionPool pool) {
+		if(pool == null) {
+			return null;
+		}
+		long start = System.nanoTime();
+		try {
+			Connection c = pool.getThreadConnection();
+			Metrics.histogram("db."+pool.getName()+".get").recordSince(start);
+			return c;
+		} catch (SQLException e) {
+			Metrics.counter("db."+pool.getName()+".errors").inc();
+			warning(e.getMessage());
+			return null;
 		}
-		return this.mysql_connection;
 	}
 	
 	/**
-		when given a ResultSet (after the .next() function was called), reads a row and fetches each field into a string
+		when given a ResultSet (after the .next() function was called), reads a row and fetches each field into a string.
+		For big extracts, RowView.stream() or streamRows() walk the rows without building a map per row.
 	*/
 	public LinkedHashMap<String, String> getRowHash(ResultSet rs) {
-		// cache some metadata because it's probably expensive and may run calls on the sql connection:
-		String ihc = Integer.toHexString(System.identityHashCode(rs));
-		LinkedHashMap<String, Object> hm = new LinkedHashMap();
-		LinkedHashMap<String, String> output = new LinkedHashMap();
+		// the column labels are cached because reading the metadata is probably expensive and may run calls on the sql connection:
 		try {
-			if(self.sqlMetaData.get(ihc) == null) {
-				ResultSetMetaData md = rs.getMetaData();
-				int colCount = md.getColumnCount();
-				hm = new LinkedHashMap();
-				hm.put("metaData", md);
-				hm.put("colCount", new Integer(colCount));
-				self.sqlMetaData.put(ihc, hm);
-			} else {
-				hm = self.sqlMetaData.get(ihc);
-			}
-			
-			Integer colCount = (Integer) hm.get("colCount");
-			for(int i = 1; i <= colCount; i++) {
-				String fieldValue = rs.getString(i);
-				String fieldName = ((ResultSetMetaData) hm.get("metaData")).getColumnLabel(i);
-				if(fieldValue == null) {
-					output.put(fieldName, "");
-				} else {
-					output.put(fieldName, fieldValue);
-				}
-			}
+			return new RowView(rs, this.sqlMetaData.get(rs)).toMap();
 		} catch (SQLException e) {
 			warning(e.getMessage());
-			return output;
+		} catch (DbException e) {
+			warning(e.getMessage());
 		}
-		return output;
-		
+		return new LinkedHashMap<String, String>();
+	}
+	
+	// run a query and stream its rows, fetchSize at a time.  Close the stream (try-with-resources) when done.
+	public Stream<RowView> streamRows(Connection c, String sql, int fetchSize, Object... params) throws SQLException {
+		return RowView.query(c, sql, fetchSize, params);
+	}
+
+	// a cached prepared statement for this connection.  Don't close it, it belongs to the cache.
+	public PreparedStatement prepareCached(Connection c, String sql) throws SQLException {
+		return StatementCache.forConnection(c).prepare(sql);
+	}
+	
+	// a batch writer for sql, sized from the batch_size, batch_flush_interval (ms) and
+	// batch_rewrite_inserts config settings.  Close it when done to send the last rows.
+	public BatchWriter batchWriter(Connection c, String sql) throws SQLException {
+		ConfigSnapshot config = this.settings;
+		return new BatchWriter(c, sql, config.getInt("batch_size", 1000), config.getLong("batch_flush_interval", 0), config.getBoolean("batch_rewrite_inserts", false));
+	}
+
+	/**
+	 * a ChunkedExtractor that splits sql (which needs a {chunk} marker) by
+	 * ranges of key and runs the pieces in parallel on connections from pool,
+	 * logging its progress as chunks finish.  Call findRange() or setRange() on
+	 * it, then extractOrdered() or extractUnordered().
+	 */
+	public ChunkedExtractor chunkedExtractor(ConnectionPool pool, String sql, String key) {
+		ChunkedExtractor extractor = new ChunkedExtractor(pool, sql, key);
+		ConfigSnapshot config = this.settings;
+		if(config.has("extract_threads")) { extractor.setThreads(config.getInt("extract_threads", 1)); }
+		if(config.has("extract_chunks")) { extractor.setChunks(config.getInt("extract_chunks", 1)); }
+		extractor.setFetchSize(config.getInt("extract_fetch_size", 1000));
+		extractor.setQueueSize(config.getInt("extract_queue_size", 1000));
+		extractor.setProgressListener(new ChunkedExtractor.ProgressListener() {
+			public void chunkDone(ChunkedExtractor x, int chunk, long chunkRows) {
+				log("extract: "+x.getChunksDone()+"/"+x.getChunkCount()+" chunks, "+x.getRowCount()+" rows, "+(long) x.getRate()+" rows/s");
+			}
+		});
+		return extractor;
+	}
+
+	/**
+	 * the rows of a query, from the result cache on disk when an earlier run
+	 * (of this or another program sharing the cache) has read them recently
+	 * enough and, given a versionSql (may be null), the version hasn't changed
+	 * since.  See ResultCache.  Settings:
+	 *   query_cache_dir: <dir>      (default <Program>.cache next to the config; share it between programs)
+	 *   query_cache_ttl: 300        (seconds a result is good for, 0 to go by the version query alone)
+	 *   query_cache_max_mb: 64      (least recently used results are removed past this)
+	 */
+	public CachedResult cachedQuery(Connection c, String sql, String versionSql, Object... params) throws SQLException {
+		return getResultCache().query(c, sql, this.settings.getLong("query_cache_ttl", 300) * 1000, versionSql, params);
+	}
+	
+	public synchronized ResultCache getResultCache() {
+		ConfigSnapshot config = this.settings;
+		long maxBytes = config.getLong("query_cache_max_mb", 64) * 1024 * 1024;
+		if(this.resultCache == null) {
+			String dir = config.getString("query_cache_dir", this.getCwd()+"../../"+this.getProgramClass()+".cache");
+			this.resultCache = new ResultCache(new File(dir), maxBytes);
+		} else {
+			this.resultCache.setMaxBytes(maxBytes);
+		}
+		return this.resultCache;
 	}
 
+	/**
+	 * a TaskScope for running subtasks concurrently (see there), close it when done.  Settings:
+	 *   task_virtual: true      (use virtual threads where the jvm has them)
+	 *   task_threads: 32        (otherwise, the size of the pool all scopes share)
+	 *   task_timeout: 0         (seconds before join() gives up on the rest, 0 to wait)
+	 */
+	public TaskScope taskScope(String name) {
+		ConfigSnapshot config = this.settings;
+		TaskScope scope = new TaskScope(name, config.getInt("task_threads", 32), config.getBoolean("task_virtual", true));
+		return scope.withTimeout(config.getLong("task_timeout", 0) * 1000);
+	}
+
+	public TaskScope taskScope() {
+		return taskScope(this.getProgramClass());
+	}
+
+	/**
+	 * stream a query straight into a file, without building its rows in
+	 * memory.  The format goes by the file name: .jsonl, .csv or .yaml, with
+	 * .gz on the end for gzip.  Returns the number of rows written.
+	 */
+	public long export(Connection c, String sql, String file, Object... params) throws SQLException, IOException {
+		ResultSetExporter exporter = exporter(file);
+		long start = System.currentTimeMillis();
+		long rows = exporter.export(c, sql, this.settings.getInt("export_fetch_size", 1000), new File(file).toPath(), params);
+		log("exported "+rows+" rows to "+file+" in "+(System.currentTimeMillis() - start)+"ms");
+		return rows;
+	}
+	
+	// the same, for the rest of a ResultSet you already have:
+	public long export(ResultSet rs, String file) throws SQLException, IOException {
+		ResultSetExporter exporter = exporter(file);
+		long start = System.currentTimeMillis();
+		long rows = exporter.export(rs, new File(file).toPath());
+		log("exported "+rows+" rows to "+file+" in "+(System.currentTimeMillis() - start)+"ms");
+		return rows;
+	}
+	
+	protected ResultSetExporter exporter(String file) {
+		ResultSetExporter exporter = new ResultSetExporter(ResultSetExporter.Format.forFile(file));
+		ConfigSnapshot config = this.settings;
+		exporter.setBufferSize(config.getInt("export_buffer_size", 256 * 1024));
+		exporter.setNullText(config.getString("export_csv_null", ""));
+		String delimiter = config.getString("export_csv_delimiter", ",");
+		if(delimiter == null || delimiter.length() != 1) {
+			warning("export_csv_delimiter should be a single character, not \""+delimiter+"\"; using a comma");
+			delimiter = ",";
+		}
+		exporter.setDelimiter(delimiter.charAt(0));
+		return exporter;
+	}
+	
 	// utility functions to try dumping out java objects, useful in beanshell
 	// an inspector like Data::Dumper
 	
 	// Pretty-Print XML:
 	public String pp (Object o) {
-		XStream dumper = new XStream();
-		return dumper.toXML(o);
+		return Dumper.pp(o);
 	}
 	
 	// Pretty-Print Yaml: 
 	public String ppy (Object o) {
-		DumperOptions options = new DumperOptions();
-		options.setCanonical(false);
-		options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-		options.setExplicitStart(true);
-		options.setExplicitEnd(false);
-		// options.setWidth(YAML_LINE_WIDTH);
-
-		Yaml yaml = new Yaml(options);
-		return yaml.dump(o);
+		return Dumper.ppy(o);
 	}
 	
 	// Pretty-Print JSON:
 	public String ppj (Object o) {
-		XStream dumper = new XStream(new JsonHierarchicalStreamDriver());
-		return dumper.toXML(o);
+		return Dumper.ppj(o);
+	}
+	
+	// the streaming versions, for dumping something big straight to a file
+	// (see Dumper for channels, and for dumping an iterator of rows):
+	public void pp (Object o, Writer out) throws IOException {
+		Dumper.pp(o, out);
+	}
+	
+	public void ppy (Object o, Writer out) throws IOException {
+		Dumper.ppy(o, out);
+	}
+	
+	public void ppj (Object o, Writer out) throws IOException {
+		Dumper.ppj(o, out);
+	}
+	
+	public void pp (Object o, OutputStream out) throws IOException {
+		Dumper.pp(o, out);
+	}
+	
+	public void ppy (Object o, OutputStream out) throws IOException {
+		Dumper.ppy(o, out);
+	}
+	
+	public void ppj (Object o, OutputStream out) throws IOException {
+		Dumper.ppj(o, out);
 	}
 }
-
@@ -0,0 +1,339 @@
+// builds the config out of layers, each one merged over the ones before it:
+//
+//   1. the base file, with its include: fragments merged underneath it
+//   2. <Name>.<env>.yaml.conf next to it, if there is one (env from the
+//      CHRONESSAN_ENV variable, -Dchronessan.env, or an env: setting)
+//   3. <Name>.<host>.yaml.conf, for the short host name
+//   4. environment variables: CHRONESSAN_CONF_MYSQL_HOST=db2 sets mysql_host,
+//      and a double underscore goes down a level (NIGHTLY_JOB__TABLE)
+//   5. system properties: -Dchronessan.conf.nightly_job.table=orders
+//
+// include: is a file name or a list of them, relative to the file that
+// includes it, and applies to overlays too.  Maps are merged key by key (keys
+// keep the order they were first seen in), anything else is replaced, and a
+// key set to null in a later layer is removed.  Override values are read as
+// yaml scalars, so "8" is a number and "true" a boolean.
+//
+// Parsed files are cached in memory by path and a digest of their contents,
+// so a reload only re-parses what changed, even when an edit keeps the size
+// and lands within the timestamp's resolution.
+package com.dynamodan.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import static com.dynamodan.loghelper.Wrapper.debug;
+
+public class ConfigLoader {
+	public static final String INCLUDE = "include";
+	public static final String ENV_PREFIX = "CHRONESSAN_CONF_";
+	public static final String PROPERTY_PREFIX = "chronessan.conf.";
+
+	// path -> the last parse of it:
+	private static final ConcurrentHashMap<String, Fragment> fragments = new ConcurrentHashMap<String, Fragment>();
+
+	private final Map<String, String> env;
+	private final Properties properties;
+	private final String host;
+	// every file looked at (including overlays that don't exist), for the watcher:
+	private final LinkedHashSet<File> files = new LinkedHashSet<File>();
+
+	public ConfigLoader() {
+		this(System.getenv(), System.getProperties(), LocalHost.NAME);
+	}
+
+	public ConfigLoader(Map<String, String> env, Properties properties, String host) {
+		this.env = env;
+		this.properties = properties;
+		this.host = host;
+	}
+
+	private static class Fragment {
+		final byte[] digest;
+		final Object parsed;
+
+		Fragment(byte[] digest, Object parsed) {
+			this.digest = digest;
+			this.parsed = parsed;
+		}
+	}
+
+	// the host name lookup can take a while when dns is slow, so it's done once:
+	private static class LocalHost {
+		static final String NAME = shortHostName();
+	}
+
+	/**
+	 * load the base file and every layer over it.  Throws if the base file (or
+	 * an include) is missing or doesn't parse; overlays that don't exist are
+	 * skipped.
+	 */
+	public Object load(String path) throws ConfigSingletonException {
+		File base = new File(path).getAbsoluteFile();
+		Object merged = withIncludes(base, new ArrayList<File>());
+
+		String envName = firstOf(env.get("CHRONESSAN_ENV"), properties.getProperty("chronessan.env"), setting(merged, "env"));
+		for(String tag : new String[] { envName, host }) {
+			if(tag == null || tag.isEmpty()) {
+				continue;
+			}
+			File overlay = overlayFile(base, tag);
+			files.add(overlay);
+			if(overlay.isFile()) {
+				debug("Config overlay "+overlay);
+				merged = merge(merged, withIncludes(overlay, new ArrayList<File>()));
+			}
+		}
+
+		// TreeMaps, so the overrides apply in the same order every time:
+		TreeMap<String, Object> overrides = new TreeMap<String, Object>();
+		for(Map.Entry<String, String> e : env.entrySet()) {
+			if(e.getKey().startsWith(ENV_PREFIX) && e.getKey().length() > ENV_PREFIX.length()) {
+				overrides.put(e.getKey().substring(ENV_PREFIX.length()).toLowerCase().replace("__", "."), scalar(e.getValue()));
+			}
+		}
+		merged = applyOverrides(merged, overrides);
+
+		overrides.clear();
+		for(String name : properties.stringPropertyNames()) {
+			if(name.startsWith(PROPERTY_PREFIX) && name.length() > PROPERTY_PREFIX.length()) {
+				overrides.put(name.substring(PROPERTY_PREFIX.length()), scalar(properties.getProperty(name)));
+			}
+		}
+		return applyOverrides(merged, overrides);
+	}
+
+	// the files the last load() read or looked for:
+	public List<File> getFiles() {
+		return new ArrayList<File>(files);
+	}
+
+	/**
+	 * something that changes whenever any of these files is created, removed or
+	 * modified: the digest of what's in each, as the timestamp and size can stay
+	 * the same across an edit
+	 */
+	public static String signature(List<File> files) {
+		StringBuilder sb = new StringBuilder();
+		for(File f : files) {
+			sb.append(f.getPath()).append('=');
+			try {
+				for(byte b : digest(Files.readAllBytes(f.toPath()))) {
+					sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+				}
+			} catch (IOException e) {
+				// not there (an overlay that doesn't exist), or not readable right now
+				sb.append('-');
+			}
+			sb.append(';');
+		}
+		return sb.toString();
+	}
+
+	// forget the parsed fragments:
+	public static void clearCache() {
+		fragments.clear();
+	}
+
+	// a file merged over the files it includes:
+	private Object withIncludes(File file, List<File> chain) throws ConfigSingletonException {
+		if(chain.contains(file)) {
+			throw new ConfigSingletonException("config include loop: "+chain+" -> "+file);
+		}
+		chain.add(file);
+		files.add(file);
+
+		Object own = parse(file);
+		Object merged = null;
+		if(own instanceof Map && ((Map<?, ?>) own).get(INCLUDE) != null) {
+			Object include = ((Map<?, ?>) own).get(INCLUDE);
+			List<?> names = (include instanceof List) ? (List<?>) include : Collections.singletonList(include);
+			for(Object name : names) {
+				File f = new File(name.toString());
+				if(!f.isAbsolute()) {
+					f = new File(file.getParentFile(), name.toString());
+				}
+				merged = merge(merged, withIncludes(f.getAbsoluteFile(), chain));
+			}
+			LinkedHashMap<Object, Object> rest = new LinkedHashMap<Object, Object>((Map<?, ?>) own);
+			rest.remove(INCLUDE);
+			own = rest;
+		}
+		chain.remove(chain.size() - 1);
+		return merge(merged, own);
+	}
+
+	/**
+	 * b merged over a, without touching either (they may be cached fragments)
+	 */
+	@SuppressWarnings("unchecked")
+	public static Object merge(Object a, Object b) {
+		if(!(a instanceof Map) || !(b instanceof Map)) {
+			return (b == null) ? copy(a) : copy(b);
+		}
+		LinkedHashMap<Object, Object> merged = new LinkedHashMap<Object, Object>();
+		for(Map.Entry<Object, Object> e : ((Map<Object, Object>) a).entrySet()) {
+			merged.put(e.getKey(), copy(e.getValue()));
+		}
+		for(Map.Entry<Object, Object> e : ((Map<Object, Object>) b).entrySet()) {
+			if(e.getValue() == null) {
+				merged.remove(e.getKey());
+			} else if(merged.get(e.getKey()) instanceof Map && e.getValue() instanceof Map) {
+				merged.put(e.getKey(), merge(merged.get(e.getKey()), e.getValue()));
+			} else {
+				merged.put(e.getKey(), copy(e.getValue()));
+			}
+		}
+		return merged;
+	}
+
+	// a deep copy of maps and lists, so nothing handed out shares structure with the cache:
+	@SuppressWarnings("unchecked")
+	private static Object copy(Object value) {
+		if(value instanceof Map) {
+			LinkedHashMap<Object, Object> copy = new LinkedHashMap<Object, Object>();
+			for(Map.Entry<Object, Object> e : ((Map<Object, Object>) value).entrySet()) {
+				copy.put(e.getKey(), copy(e.getValue()));
+			}
+			return copy;
+		}
+		if(value instanceof List) {
+			ArrayList<Object> copy = new ArrayList<Object>();
+			for(Object o : (List<Object>) value) {
+				copy.add(copy(o));
+			}
+			return copy;
+		}
+		return value;
+	}
+
+	// set each dotted path, making sections along the way:
+	@SuppressWarnings("unchecked")
+	private static Object applyOverrides(Object config, TreeMap<String, Object> overrides) {
+		if(overrides.isEmpty()) {
+			return config;
+		}
+		Map<Object, Object> root = (config instanceof Map) ? (Map<Object, Object>) config : new LinkedHashMap<Object, Object>();
+		for(Map.Entry<String, Object> e : overrides.entrySet()) {
+			String[] parts = e.getKey().split("\\.");
+			Map<Object, Object> section = root;
+			for(int i = 0; i < parts.length - 1; i++) {
+				Object next = section.get(parts[i]);
+				if(!(next instanceof Map)) {
+					next = new LinkedHashMap<Object, Object>();
+					section.put(parts[i], next);
+				}
+				section = (Map<Object, Object>) next;
+			}
+			if(e.getValue() == null) {
+				section.remove(parts[parts.length - 1]);
+			} else {
+				section.put(parts[parts.length - 1], e.getValue());
+			}
+		}
+		return root;
+	}
+
+	private static Object scalar(String value) {
+		try {
+			Object parsed = new Yaml().load(value);
+			return (parsed instanceof Map || parsed instanceof List) ? value : parsed;
+		} catch (YAMLException e) {
+			return value;
+		}
+	}
+
+	private Object parse(File file) throws ConfigSingletonException {
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file.toPath());
+		} catch (NoSuchFileException e) {
+			throw new ConfigSingletonException(file+" (No such file or directory)");
+		} catch (IOException e) {
+			throw new ConfigSingletonException(file+": "+e.getMessage());
+		}
+		byte[] digest = digest(bytes);
+		String key = file.getPath();
+		Fragment cached = fragments.get(key);
+		if(cached != null && MessageDigest.isEqual(cached.digest, digest)) {
+			return cached.parsed;
+		}
+
+		try {
+			cached = new Fragment(digest, new Yaml().load(new InputStreamReader(new ByteArrayInputStream(bytes))));
+		} catch (YAMLException e) {
+			throw new ConfigSingletonException(file+": "+e.getMessage());
+		}
+		fragments.put(key, cached);
+		return cached.parsed;
+	}
+
+	private static byte[] digest(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			// every jvm has sha-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Foo.yaml.conf -> Foo.<tag>.yaml.conf (or Foo.<tag>.yaml, Foo.conf.<tag>)
+	static File overlayFile(File base, String tag) {
+		String name = base.getName();
+		int at = name.indexOf(".yaml");
+		if(at < 0) {
+			at = name.lastIndexOf('.');
+		}
+		String overlay = (at <= 0) ? name+"."+tag : name.substring(0, at)+"."+tag+name.substring(at);
+		return new File(base.getParentFile(), overlay);
+	}
+
+	private static String setting(Object config, String key) {
+		if(config instanceof Map && ((Map<?, ?>) config).get(key) != null) {
+			return ((Map<?, ?>) config).get(key).toString();
+		}
+		return null;
+	}
+
+	private static String firstOf(String... values) {
+		for(String v : values) {
+			if(v != null && !v.isEmpty()) {
+				return v;
+			}
+		}
+		return null;
+	}
+
+	static String shortHostName() {
+		String host = null;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			host = System.getenv("HOSTNAME");
+		}
+		if(host == null) {
+			return null;
+		}
+		int dot = host.indexOf('.');
+		return (dot > 0) ? host.substring(0, dot) : host;
+	}
+}
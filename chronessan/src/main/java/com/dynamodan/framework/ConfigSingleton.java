@@ -1,63 +1,249 @@
 package com.dynamodan.framework;
 
 import java.io.*;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.error.YAMLException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import com.dynamodan.framework.ConfigSingletonException;
 
+import static com.dynamodan.loghelper.Wrapper.log;
+import static com.dynamodan.loghelper.Wrapper.warning;
+
+// The config is loaded into an immutable ConfigSnapshot held in an
+// AtomicReference.  startWatching() re-reads the file in the background
+// whenever it changes; a new version that parses, is a map of settings and
+// passes the validators is swapped in whole, and the listeners are told.
+// Readers just get() the current snapshot, and never lock or see half a
+// reload.
 public class ConfigSingleton {
-	private static ConfigSingleton instance = null;
-	private static String configPath = null;
-	
+	private static final ConfigSingleton instance = new ConfigSingleton();
+	private static volatile String configPath = null;
+
+	// the raw yaml and its snapshot, swapped together:
+	private static final AtomicReference<Loaded> current = new AtomicReference<Loaded>(new Loaded(null, ConfigSnapshot.empty(), new ArrayList<File>()));
+	private static final List<ConfigListener> listeners = new CopyOnWriteArrayList<ConfigListener>();
+	private static final List<ConfigValidator> validators = new CopyOnWriteArrayList<ConfigValidator>();
+	private static WatchService watcher = null;
+
+	// told about every new snapshot, on the watcher thread:
+	public interface ConfigListener {
+		void configChanged(ConfigSnapshot previous, ConfigSnapshot current);
+	}
+
+	// throw to reject a new config; the old one stays in place:
+	public interface ConfigValidator {
+		void validate(ConfigSnapshot candidate) throws ConfigSingletonException;
+	}
+
+	private static class Loaded {
+		final Object raw;
+		final ConfigSnapshot snapshot;
+		final List<File> files;
+		final String signature;
+
+		Loaded(Object raw, ConfigSnapshot snapshot, List<File> files) {
+			this.raw = raw;
+			this.snapshot = snapshot;
+			this.files = files;
+			this.signature = ConfigLoader.signature(files);
+		}
+	}
+
 	protected ConfigSingleton() {
-		
+
 	}
-	
+
 	public static ConfigSingleton getInstance() {
-		if(instance == null) {
-			instance = new ConfigSingleton();
-		}
 		return instance;
 	}
-	
+
 	public void setConfigPath(String path) {
-		getInstance().configPath = path;
+		configPath = path;
 	}
-	
+
 	public String getConfigPath() {
-		return getInstance().configPath;
+		return configPath;
 	}
-	
+
 	// try to load the config.  Return an empty object if not.  (TODO, make this throw an exception in true java style!)
 	// this should actually return a java.util.LinkedHashMap
 	public static Object loadConfig() throws ConfigSingletonException  {
-		if(getInstance().configPath == null) {
+		if(configPath == null) {
 			// System.out.println("configPath not set.  Use setConfigPath() to set it.");
 			throw new ConfigSingletonException("configPath not set.  Use setConfigPath() to set it.");
 		}
-		
-		Yaml yaml = new Yaml();
-		String document = null;
-		FileReader fr = null;
-		
+
+		String path = configPath;
+		ConfigLoader loader = new ConfigLoader();
+		Object raw;
 		try {
-			fr = new FileReader(getInstance().configPath);
+			raw = loader.load(path);
 		}
-		
-		catch (FileNotFoundException e) {
+
+		catch (ConfigSingletonException e) {
 			System.out.println(e.getMessage());
 			return new Object();
 		}
-		
+
+		current.set(new Loaded(raw, new ConfigSnapshot(raw, path), loader.getFiles()));
+		return raw;
+	}
+
+	// the config as a ConfigSnapshot, for typed lookups by dotted path:
+	public static ConfigSnapshot loadSnapshot() throws ConfigSingletonException {
+		loadConfig();
+		return current.get().snapshot;
+	}
+
+	/**
+	 * the current snapshot (empty until something is loaded).  Cheap enough to call every time.
+	 */
+	public static ConfigSnapshot get() {
+		return current.get().snapshot;
+	}
+
+	// the yaml the current snapshot was made from, as the yaml parser returned it:
+	public static Object getRaw() {
+		return current.get().raw;
+	}
+
+	/**
+	 * re-read the file now.  The new version replaces the current one only if
+	 * it parses, is a map of settings and passes every validator; otherwise the
+	 * reason is logged as a warning and false is returned.
+	 */
+	public static synchronized boolean reload() {
+		String path = configPath;
+		if(path == null) {
+			return false;
+		}
+
+		Loaded previous = current.get();
+		ConfigLoader loader = new ConfigLoader();
+		ConfigSnapshot candidate;
+		Object raw;
 		try {
-			return yaml.load(fr);
+			raw = loader.load(path);
+			candidate = new ConfigSnapshot(raw, path);
+			if(!candidate.isMap()) {
+				throw new ConfigSingletonException(path+" should be a map of settings");
+			}
+			for(ConfigValidator v : validators) {
+				v.validate(candidate);
+			}
+		} catch (ConfigSingletonException e) {
+			warning("Config reload rejected, keeping the old one: "+e.getMessage());
+			return false;
 		}
-		
-		catch (YAMLException e) {
-			System.out.println(e.getMessage());
-			return new Object();
+
+		if(candidate.getRoot().equals(previous.snapshot.getRoot())) {
+			// touched but not changed
+			current.set(new Loaded(previous.raw, previous.snapshot, loader.getFiles()));
+			return false;
+		}
+
+		current.set(new Loaded(raw, candidate, loader.getFiles()));
+		log("Config reloaded from "+path);
+		for(ConfigListener l : listeners) {
+			try {
+				l.configChanged(previous.snapshot, candidate);
+			} catch (RuntimeException e) {
+				warning("Config listener failed: "+e);
+			}
 		}
-		
-	}	
-	
+		return true;
+	}
+
+	public static void addListener(ConfigListener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(ConfigListener listener) {
+		listeners.remove(listener);
+	}
+
+	public static void addValidator(ConfigValidator validator) {
+		validators.add(validator);
+	}
+
+	/**
+	 * watch the directories of the config files (includes and overlays too) and
+	 * reload() when one of them changes.  Events come in bursts while an editor
+	 * saves, so they're collected for a moment and the config is only reloaded
+	 * if what's in one of its files changed.
+	 */
+	public static synchronized void startWatching() throws IOException {
+		if(watcher != null || configPath == null) {
+			return;
+		}
+		final WatchService ws = FileSystems.getDefault().newWatchService();
+		watchDirectories(ws);
+		watcher = ws;
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(true) {
+						WatchKey key = ws.take();
+						// let the writer finish, and collect whatever else came with it:
+						Thread.sleep(200);
+						key.pollEvents();
+						key.reset();
+						WatchKey more;
+						while((more = ws.poll(50, TimeUnit.MILLISECONDS)) != null) {
+							more.pollEvents();
+							more.reset();
+						}
+						Loaded loaded = current.get();
+						if(!ConfigLoader.signature(loaded.files).equals(loaded.signature) && reload()) {
+							// a new include may live somewhere else:
+							watchDirectories(ws);
+						}
+					}
+				} catch (ClosedWatchServiceException e) {
+					// stopWatching()
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "chronessan-config-watcher");
+		t.setDaemon(true);
+		t.start();
+		log("Watching "+configPath+" for changes");
+	}
+
+	private static void watchDirectories(WatchService ws) {
+		HashSet<File> dirs = new HashSet<File>();
+		dirs.add(new File(configPath).getAbsoluteFile().getParentFile());
+		for(File f : current.get().files) {
+			dirs.add(f.getParentFile());
+		}
+		for(File dir : dirs) {
+			try {
+				dir.toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			} catch (IOException e) {
+				warning("Can't watch "+dir+" for config changes: "+e.getMessage());
+			}
+		}
+	}
+
+	public static synchronized void stopWatching() {
+		if(watcher == null) {
+			return;
+		}
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			warning(e.getMessage());
+		}
+		watcher = null;
+	}
 }
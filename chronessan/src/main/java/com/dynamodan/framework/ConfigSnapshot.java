@@ -0,0 +1,404 @@
+// a parsed config, frozen.  The yaml is walked once when the snapshot is made:
+// maps and lists are copied into unmodifiable ones, and every value is indexed
+// by its dotted path ("mysql_host", "jobs.0.table", "smtp.port"), so a lookup
+// is one hash probe with no casting at the call site.
+//
+// The typed getters take a default for when the key is missing (or can't be
+// read as that type, which is logged once per key).  Code that reads config in
+// a hot loop can bind() a section onto a plain object instead and read its
+// fields directly:
+//
+//     public static class Job { public String table; public int batchSize = 1000; }
+//     Job job = self.settings.bind("nightly_job", Job.class);
+//
+// Fields are matched by name, or by the snake_case version of a camelCase
+// name, and keep their initial value when the config doesn't mention them.
+package com.dynamodan.framework;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.dynamodan.loghelper.Wrapper.warning;
+
+public class ConfigSnapshot {
+	private final Object root;
+	private final HashMap<String, Object> paths = new HashMap<String, Object>();
+	private final long loaded = System.currentTimeMillis();
+	private final String source;
+
+	// keys already complained about, so a bad value in a loop isn't logged every time:
+	private final Set<String> complained = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public ConfigSnapshot(Object root) {
+		this(root, null);
+	}
+
+	public ConfigSnapshot(Object root, String source) {
+		this.root = freeze(root, "");
+		this.source = source;
+	}
+
+	public static ConfigSnapshot empty() {
+		return new ConfigSnapshot(new LinkedHashMap<String, Object>());
+	}
+
+	// copy maps and lists into unmodifiable ones, indexing everything by path as we go:
+	private Object freeze(Object value, String path) {
+		if(value instanceof Map) {
+			LinkedHashMap<String, Object> copy = new LinkedHashMap<String, Object>();
+			for(Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+				String key = String.valueOf(e.getKey());
+				copy.put(key, freeze(e.getValue(), path.isEmpty() ? key : path+"."+key));
+			}
+			value = Collections.unmodifiableMap(copy);
+		} else if(value instanceof List) {
+			List<?> list = (List<?>) value;
+			ArrayList<Object> copy = new ArrayList<Object>(list.size());
+			for(int i = 0; i < list.size(); i++) {
+				copy.add(freeze(list.get(i), path.isEmpty() ? String.valueOf(i) : path+"."+i));
+			}
+			value = Collections.unmodifiableList(copy);
+		}
+		if(!path.isEmpty()) {
+			paths.put(path, value);
+		}
+		return value;
+	}
+
+	/**
+	 * the raw yaml value at a dotted path (an unmodifiable Map or List for
+	 * sections), or null
+	 */
+	public Object get(String path) {
+		return paths.get(path);
+	}
+
+	public boolean has(String path) {
+		return paths.get(path) != null;
+	}
+
+	// the whole document, as loaded (unmodifiable):
+	public Object getRoot() {
+		return root;
+	}
+
+	public boolean isMap() {
+		return root instanceof Map;
+	}
+
+	// the top level keys:
+	public Set<String> keys() {
+		if(root instanceof Map) {
+			@SuppressWarnings("unchecked")
+			Set<String> keys = ((Map<String, Object>) root).keySet();
+			return keys;
+		}
+		return Collections.emptySet();
+	}
+
+	// where this came from (the file name), if known:
+	public String getSource() {
+		return source;
+	}
+
+	public long getLoadedAt() {
+		return loaded;
+	}
+
+	public String getString(String path) {
+		return getString(path, null);
+	}
+
+	public String getString(String path, String defaultValue) {
+		Object value = paths.get(path);
+		return (value == null) ? defaultValue : value.toString();
+	}
+
+	public int getInt(String path, int defaultValue) {
+		Object value = paths.get(path);
+		if(value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		Long parsed = parseLong(path, value);
+		return (parsed == null) ? defaultValue : parsed.intValue();
+	}
+
+	public long getLong(String path, long defaultValue) {
+		Object value = paths.get(path);
+		if(value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		Long parsed = parseLong(path, value);
+		return (parsed == null) ? defaultValue : parsed.longValue();
+	}
+
+	public double getDouble(String path, double defaultValue) {
+		Object value = paths.get(path);
+		if(value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if(value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.toString().trim());
+		} catch (NumberFormatException e) {
+			complain(path, value, "a number");
+			return defaultValue;
+		}
+	}
+
+	// true/false, yes/no, on/off or 1/0:
+	public boolean getBoolean(String path, boolean defaultValue) {
+		Object value = paths.get(path);
+		if(value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		if(value == null) {
+			return defaultValue;
+		}
+		Boolean parsed = parseBoolean(value.toString());
+		if(parsed != null) {
+			return parsed;
+		}
+		complain(path, value, "true or false");
+		return defaultValue;
+	}
+
+	// a section, or an empty map:
+	@SuppressWarnings("unchecked")
+	public Map<String, Object> getMap(String path) {
+		Object value = paths.get(path);
+		return (value instanceof Map) ? (Map<String, Object>) value : Collections.<String, Object>emptyMap();
+	}
+
+	// a list, or an empty one.  A single value counts as a list of one.
+	@SuppressWarnings("unchecked")
+	public List<Object> getList(String path) {
+		Object value = paths.get(path);
+		if(value instanceof List) {
+			return (List<Object>) value;
+		}
+		return (value == null) ? Collections.emptyList() : Collections.singletonList(value);
+	}
+
+	/**
+	 * a section of this config as its own snapshot
+	 */
+	public ConfigSnapshot at(String path) {
+		Object value = paths.get(path);
+		return new ConfigSnapshot((value == null) ? new LinkedHashMap<String, Object>() : value, source);
+	}
+
+	/**
+	 * fill a new T from the top level of the config.  See bind(String, Class).
+	 */
+	public <T> T bind(Class<T> type) throws ConfigSingletonException {
+		return bind("", type);
+	}
+
+	/**
+	 * fill a new T (which needs a no-argument constructor) from the section at
+	 * path.  Fields are matched by name or by snake_case name; numbers,
+	 * booleans, Strings, enums, Lists, Maps and nested objects are converted.
+	 */
+	public <T> T bind(String path, Class<T> type) throws ConfigSingletonException {
+		Object section = path.isEmpty() ? root : paths.get(path);
+		T target;
+		try {
+			target = type.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new ConfigSingletonException("can't make a "+type.getName()+" to bind the config to: "+e);
+		}
+		if(section == null) {
+			return target;
+		}
+		if(!(section instanceof Map)) {
+			throw new ConfigSingletonException("config "+path+" should be a section, not '"+section+"'");
+		}
+		bindFields(target, (Map<?, ?>) section, path);
+		return target;
+	}
+
+	private void bindFields(Object target, Map<?, ?> section, String path) throws ConfigSingletonException {
+		for(Class<?> c = target.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+			for(Field f : c.getDeclaredFields()) {
+				int mods = f.getModifiers();
+				if(Modifier.isStatic(mods) || Modifier.isFinal(mods) || Modifier.isTransient(mods) || f.isSynthetic()) {
+					continue;
+				}
+				String key = f.getName();
+				Object value = section.get(key);
+				if(value == null) {
+					key = snakeCase(key);
+					value = section.get(key);
+				}
+				if(value == null) {
+					continue;
+				}
+				String fieldPath = path.isEmpty() ? key : path+"."+key;
+				try {
+					f.setAccessible(true);
+					f.set(target, convert(value, f.getType(), f.getGenericType(), fieldPath));
+				} catch (IllegalAccessException e) {
+					throw new ConfigSingletonException("can't set "+c.getName()+"."+f.getName()+": "+e.getMessage());
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Object convert(Object value, Class<?> type, Type generic, String path) throws ConfigSingletonException {
+		try {
+			if(type == String.class) {
+				return value.toString();
+			}
+			if(type == int.class || type == Integer.class) {
+				return (value instanceof Number) ? ((Number) value).intValue() : Integer.valueOf(value.toString().trim());
+			}
+			if(type == long.class || type == Long.class) {
+				return (value instanceof Number) ? ((Number) value).longValue() : Long.valueOf(value.toString().trim());
+			}
+			if(type == double.class || type == Double.class) {
+				return (value instanceof Number) ? ((Number) value).doubleValue() : Double.valueOf(value.toString().trim());
+			}
+			if(type == float.class || type == Float.class) {
+				return (value instanceof Number) ? ((Number) value).floatValue() : Float.valueOf(value.toString().trim());
+			}
+			if(type == short.class || type == Short.class) {
+				return (value instanceof Number) ? ((Number) value).shortValue() : Short.valueOf(value.toString().trim());
+			}
+			if(type == boolean.class || type == Boolean.class) {
+				if(value instanceof Boolean) {
+					return value;
+				}
+				Boolean parsed = parseBoolean(value.toString());
+				if(parsed == null) {
+					throw new IllegalArgumentException("not true or false");
+				}
+				return parsed;
+			}
+			if(type.isEnum()) {
+				for(Object constant : type.getEnumConstants()) {
+					if(((Enum) constant).name().equalsIgnoreCase(value.toString().trim())) {
+						return constant;
+					}
+				}
+				throw new IllegalArgumentException("not one of "+java.util.Arrays.toString(type.getEnumConstants()));
+			}
+			if(List.class.isAssignableFrom(type)) {
+				Type element = typeArgument(generic, 0);
+				List<Object> list = new ArrayList<Object>();
+				List<?> source = (value instanceof List) ? (List<?>) value : Collections.singletonList(value);
+				for(int i = 0; i < source.size(); i++) {
+					list.add(convert(source.get(i), rawClass(element), element, path+"."+i));
+				}
+				return list;
+			}
+			if(Map.class.isAssignableFrom(type)) {
+				if(!(value instanceof Map)) {
+					throw new IllegalArgumentException("not a section");
+				}
+				Type element = typeArgument(generic, 1);
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				for(Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+					map.put(String.valueOf(e.getKey()), convert(e.getValue(), rawClass(element), element, path+"."+e.getKey()));
+				}
+				return map;
+			}
+			if(type == Object.class || type.isInstance(value)) {
+				return value;
+			}
+			if(value instanceof Map) {
+				Object nested = type.getDeclaredConstructor().newInstance();
+				bindFields(nested, (Map<?, ?>) value, path);
+				return nested;
+			}
+			throw new IllegalArgumentException("can't make a "+type.getSimpleName()+" out of it");
+		} catch (ConfigSingletonException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ConfigSingletonException("config "+path+" = '"+value+"': "+e.getMessage());
+		}
+	}
+
+	private static Type typeArgument(Type generic, int index) {
+		if(generic instanceof ParameterizedType) {
+			Type[] args = ((ParameterizedType) generic).getActualTypeArguments();
+			if(index < args.length) {
+				return args[index];
+			}
+		}
+		return Object.class;
+	}
+
+	private static Class<?> rawClass(Type type) {
+		if(type instanceof Class) {
+			return (Class<?>) type;
+		}
+		if(type instanceof ParameterizedType) {
+			return (Class<?>) ((ParameterizedType) type).getRawType();
+		}
+		return Object.class;
+	}
+
+	// idleTimeout -> idle_timeout
+	static String snakeCase(String name) {
+		StringBuilder sb = new StringBuilder(name.length() + 4);
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(Character.isUpperCase(c)) {
+				if(i > 0) {
+					sb.append('_');
+				}
+				sb.append(Character.toLowerCase(c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	static Boolean parseBoolean(String value) {
+		String s = value.trim().toLowerCase();
+		if(s.equals("true") || s.equals("yes") || s.equals("on") || s.equals("1")) {
+			return Boolean.TRUE;
+		}
+		if(s.equals("false") || s.equals("no") || s.equals("off") || s.equals("0")) {
+			return Boolean.FALSE;
+		}
+		return null;
+	}
+
+	private Long parseLong(String path, Object value) {
+		if(value == null) {
+			return null;
+		}
+		try {
+			return Long.valueOf(value.toString().trim());
+		} catch (NumberFormatException e) {
+			complain(path, value, "a whole number");
+			return null;
+		}
+	}
+
+	private void complain(String path, Object value, String expected) {
+		if(complained.add(path)) {
+			warning("config "+path+" should be "+expected+", not '"+value+"'.  Using the default.");
+		}
+	}
+
+	public String toString() {
+		return String.valueOf(root);
+	}
+}
@@ -0,0 +1,157 @@
+// a crontab style schedule, "minute hour day-of-month month day-of-week", for
+// JobRunner.  Each field takes *, numbers, ranges (1-5), lists (1,15,30) and
+// steps (*/5, 8-18/2); days of the week run 0-7 with both 0 and 7 for sunday,
+// and months and days can be given by name (jan, mon).  Like cron, when both
+// day fields are restricted a day matching either one will do.  @hourly,
+// @daily, @weekly, @monthly and @yearly are understood too.
+package com.dynamodan.framework;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+public class CronSchedule {
+	private static final String[] MONTHS = { "jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec" };
+	private static final String[] DAYS = { "sun", "mon", "tue", "wed", "thu", "fri", "sat" };
+
+	private final String expression;
+	private final BitSet minutes;
+	private final BitSet hours;
+	private final BitSet days;
+	private final BitSet months;
+	private final BitSet weekdays;
+	private final boolean anyDay;
+	private final boolean anyWeekday;
+	private final ZoneId zone;
+
+	public CronSchedule(String expression) {
+		this(expression, ZoneId.systemDefault());
+	}
+
+	public CronSchedule(String expression, ZoneId zone) {
+		this.expression = expression;
+		this.zone = zone;
+		String[] fields = alias(expression.trim()).split("\\s+");
+		if(fields.length != 5) {
+			throw new IllegalArgumentException("cron schedule needs 5 fields (minute hour day month weekday): "+expression);
+		}
+		minutes = parse(fields[0], 0, 59, null);
+		hours = parse(fields[1], 0, 23, null);
+		days = parse(fields[2], 1, 31, null);
+		months = parse(fields[3], 1, 12, MONTHS);
+		weekdays = parse(fields[4], 0, 7, DAYS);
+		if(weekdays.get(7)) {
+			weekdays.set(0);
+		}
+		anyDay = fields[2].equals("*");
+		anyWeekday = fields[4].equals("*");
+	}
+
+	/**
+	 * the first time after the given one (in ms) that the schedule fires, or -1
+	 * if it never does (e.g. the 31st of february)
+	 */
+	public long next(long after) {
+		LocalDateTime t = ZonedDateTime.ofInstant(java.time.Instant.ofEpochMilli(after), zone)
+			.toLocalDateTime().truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+		LocalDateTime limit = t.plusYears(5);
+
+		while(t.isBefore(limit)) {
+			if(!months.get(t.getMonthValue())) {
+				t = t.withDayOfMonth(1).withHour(0).withMinute(0).plusMonths(1);
+				continue;
+			}
+			if(!dayMatches(t)) {
+				t = t.withHour(0).withMinute(0).plusDays(1);
+				continue;
+			}
+			if(!hours.get(t.getHour())) {
+				t = t.withMinute(0).plusHours(1);
+				continue;
+			}
+			if(!minutes.get(t.getMinute())) {
+				t = t.plusMinutes(1);
+				continue;
+			}
+			return t.atZone(zone).toInstant().toEpochMilli();
+		}
+		return -1;
+	}
+
+	public String toString() {
+		return expression;
+	}
+
+	private boolean dayMatches(LocalDateTime t) {
+		boolean day = days.get(t.getDayOfMonth());
+		boolean weekday = weekdays.get(t.getDayOfWeek().getValue() % 7);
+		if(anyDay || anyWeekday) {
+			return day && weekday;
+		}
+		return day || weekday;
+	}
+
+	private static String alias(String expression) {
+		switch(expression) {
+			case "@yearly":
+			case "@annually": return "0 0 1 1 *";
+			case "@monthly": return "0 0 1 * *";
+			case "@weekly": return "0 0 * * 0";
+			case "@daily":
+			case "@midnight": return "0 0 * * *";
+			case "@hourly": return "0 * * * *";
+			default: return expression;
+		}
+	}
+
+	private static BitSet parse(String field, int min, int max, String[] names) {
+		BitSet bits = new BitSet(max + 1);
+		for(String part : field.toLowerCase().split(",")) {
+			int step = 1;
+			int slash = part.indexOf('/');
+			if(slash >= 0) {
+				step = Integer.parseInt(part.substring(slash + 1));
+				part = part.substring(0, slash);
+				if(step < 1) {
+					throw new IllegalArgumentException("bad step in cron field "+field);
+				}
+			}
+
+			int from;
+			int to;
+			if(part.equals("*")) {
+				from = min;
+				to = max;
+			} else {
+				int dash = part.indexOf('-');
+				from = value(dash < 0 ? part : part.substring(0, dash), names, field);
+				to = (dash < 0) ? (slash >= 0 ? max : from) : value(part.substring(dash + 1), names, field);
+			}
+			if(from < min || to > max || from > to) {
+				throw new IllegalArgumentException("cron field "+field+" is out of range "+min+"-"+max);
+			}
+			for(int i = from; i <= to; i += step) {
+				bits.set(i);
+			}
+		}
+		return bits;
+	}
+
+	private static int value(String s, String[] names, String field) {
+		if(names != null) {
+			for(int i = 0; i < names.length; i++) {
+				if(names[i].equals(s)) {
+					// months count from 1, days from 0:
+					return (names.length == 12) ? i + 1 : i;
+				}
+			}
+		}
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("can't read cron field "+field);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+// the serializers behind pp, ppy and ppj, built once instead of on every
+// call.  XStream is expensive to set up (it scans classes and registers its
+// converters) but safe to share between threads once it is, so there is one
+// for xml and one for json.  Yaml instances aren't thread safe, so each thread
+// gets its own.
+//
+// Besides the String versions there are streaming ones that write straight to
+// a Writer, OutputStream or channel, so a big result batch can go to a file
+// without the whole document being built in memory first.
+package com.dynamodan.framework;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.json.JsonHierarchicalStreamDriver;
+import com.fasterxml.jackson.dataformat.yaml.snakeyaml.DumperOptions;
+import com.fasterxml.jackson.dataformat.yaml.snakeyaml.Yaml;
+
+public class Dumper {
+	// holders, so nobody pays for an XStream they never use:
+	private static class Xml {
+		static final XStream XSTREAM = new XStream();
+	}
+
+	private static class Json {
+		static final XStream XSTREAM = new XStream(new JsonHierarchicalStreamDriver());
+	}
+
+	private static final ThreadLocal<Yaml> YAML = new ThreadLocal<Yaml>() {
+		protected Yaml initialValue() {
+			DumperOptions options = new DumperOptions();
+			options.setCanonical(false);
+			options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+			options.setExplicitStart(true);
+			options.setExplicitEnd(false);
+			// options.setWidth(YAML_LINE_WIDTH);
+			return new Yaml(options);
+		}
+	};
+
+	private Dumper() {
+	}
+
+	public static String pp(Object o) {
+		return Xml.XSTREAM.toXML(o);
+	}
+
+	public static String ppy(Object o) {
+		return YAML.get().dump(o);
+	}
+
+	public static String ppj(Object o) {
+		return Json.XSTREAM.toXML(o);
+	}
+
+	public static void pp(Object o, Writer out) throws IOException {
+		Xml.XSTREAM.toXML(o, out);
+		out.flush();
+	}
+
+	public static void ppy(Object o, Writer out) throws IOException {
+		YAML.get().dump(o, out);
+		out.flush();
+	}
+
+	public static void ppj(Object o, Writer out) throws IOException {
+		Json.XSTREAM.toXML(o, out);
+		out.flush();
+	}
+
+	// the OutputStream versions write utf-8, and leave the stream open:
+	public static void pp(Object o, OutputStream out) throws IOException {
+		pp(o, writer(out));
+	}
+
+	public static void ppy(Object o, OutputStream out) throws IOException {
+		ppy(o, writer(out));
+	}
+
+	public static void ppj(Object o, OutputStream out) throws IOException {
+		ppj(o, writer(out));
+	}
+
+	public static void pp(Object o, WritableByteChannel out) throws IOException {
+		pp(o, writer(out));
+	}
+
+	public static void ppy(Object o, WritableByteChannel out) throws IOException {
+		ppy(o, writer(out));
+	}
+
+	public static void ppj(Object o, WritableByteChannel out) throws IOException {
+		ppj(o, writer(out));
+	}
+
+	/**
+	 * one yaml document per item, each starting with "---", pulling the items
+	 * from the iterator as it goes (e.g. RowView.stream(rs).map(RowView::toMap).iterator())
+	 */
+	public static void ppyEach(Iterator<?> items, Writer out) throws IOException {
+		YAML.get().dumpAll(items, out);
+		out.flush();
+	}
+
+	/**
+	 * one json document per item, separated by newlines, pulling the items
+	 * from the iterator as it goes
+	 */
+	public static void ppjEach(Iterator<?> items, Writer out) throws IOException {
+		while(items.hasNext()) {
+			Json.XSTREAM.toXML(items.next(), out);
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+	/**
+	 * a one line description of o, at most about maxChars long, for echoing
+	 * things that may be huge.  Collections, maps and arrays are walked only as
+	 * far as fits ("... (N more)" for the rest), and strings are cut without
+	 * being copied whole; anything else is its toString(), cut.
+	 */
+	public static String brief(Object o, int maxChars) {
+		StringBuilder sb = new StringBuilder(Math.min(maxChars, 1024) + 32);
+		try {
+			brief(o, sb, maxChars, 0);
+		} catch (Full e) {
+			// that's all that fits
+		}
+		if(sb.length() > maxChars + 32) {
+			sb.setLength(maxChars);
+			sb.append("...");
+		}
+		return sb.toString();
+	}
+
+	// thrown to stop walking once brief() has enough:
+	private static class Full extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Full() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final Full FULL = new Full();
+
+	private static void brief(Object o, StringBuilder sb, int max, int depth) {
+		if(sb.length() >= max) {
+			sb.append("...");
+			throw FULL;
+		}
+		if(o == null) {
+			sb.append("null");
+		} else if(o instanceof CharSequence) {
+			CharSequence cs = (CharSequence) o;
+			int room = max - sb.length();
+			sb.append(cs, 0, Math.min(cs.length(), room));
+			if(cs.length() > room) {
+				sb.append("... (").append(cs.length()).append(" chars)");
+				throw FULL;
+			}
+		} else if(depth > 8) {
+			sb.append("...");
+		} else if(o instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) o;
+			sb.append('{');
+			int k = 0;
+			for(Map.Entry<?, ?> e : map.entrySet()) {
+				if(k > 0) { sb.append(", "); }
+				more(sb, max, map.size() - k);
+				brief(e.getKey(), sb, max, depth + 1);
+				sb.append('=');
+				brief(e.getValue(), sb, max, depth + 1);
+				k++;
+			}
+			sb.append('}');
+		} else if(o instanceof Collection) {
+			Collection<?> c = (Collection<?>) o;
+			sb.append('[');
+			int k = 0;
+			for(Object item : c) {
+				if(k > 0) { sb.append(", "); }
+				more(sb, max, c.size() - k);
+				brief(item, sb, max, depth + 1);
+				k++;
+			}
+			sb.append(']');
+		} else if(o.getClass().isArray()) {
+			int length = Array.getLength(o);
+			sb.append('[');
+			for(int k = 0; k < length; k++) {
+				if(k > 0) { sb.append(", "); }
+				more(sb, max, length - k);
+				brief(Array.get(o, k), sb, max, depth + 1);
+			}
+			sb.append(']');
+		} else {
+			String text = o.toString();
+			int room = max - sb.length();
+			sb.append(text, 0, Math.min(text.length(), room));
+			if(text.length() > room) {
+				sb.append("...");
+				throw FULL;
+			}
+		}
+	}
+
+	private static void more(StringBuilder sb, int max, int left) {
+		if(sb.length() >= max) {
+			sb.append("... (").append(left).append(" more)");
+			throw FULL;
+		}
+	}
+
+	public static Writer writer(OutputStream out) {
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+	}
+
+	public static Writer writer(WritableByteChannel out) {
+		return Channels.newWriter(out, StandardCharsets.UTF_8.newEncoder(), 64 * 1024);
+	}
+}
@@ -0,0 +1,430 @@
+//bin/true; bash "`dirname \"$0\"`/chronessan-launch.sh" "`dirname \"$0\"`" com.dynamodan.framework.JobRunner "$@"
+//bin/true; exec echo "Done"
+/**
+ * Chronessan resident job runner
+ * <p>
+ * Runs several Chronessan programs inside one long lived jvm instead of one
+ * jvm per cron entry, so the startup, the config parsing and the database
+ * connections are paid for once.  The jobs are listed in the runner's config:
+ * <pre>
+ *   runner_threads: 4               (jobs that can run at the same time)
+ *   runner_shutdown_wait: 60        (seconds to let running jobs finish on shutdown)
+ *   jobs:
+ *     - class: com.example.Nightly
+ *       cron: "30 2 * * *"          (see CronSchedule)
+ *     - class: com.example.Poller
+ *       every: 30s                  (fixed rate: ms, s, m or h)
+ *       name: poller                (default the class name)
+ *       settings:                   (laid over the runner's settings for this job only)
+ *         batch_size: 500
+ * </pre>
+ * Each job is an instance of its class that shares the runner's config
+ * snapshot (plus its own settings), command line and connection pools.  A run
+ * is skipped if the previous one is still going.  Warnings logged on the job's
+ * thread go to the job's own store, and a run that warned sends its own report
+ * through the runner's alert spool.
+ * <p>
+ * The connection pools and the alert sender belong to the runner, so a job's
+ * settings: can't change them: mysql_*, mssql_*, smtp_*, alert_*, sql_stats
+ * and sql_slow_ms are taken from the runner's config, and a job that sets them
+ * gets a log line saying they were ignored.
+ * <p>
+ * Programs that keep their instance in a static self field have it pointed at
+ * the job's instance, so such a class can only be listed once.
+ */
+
+package com.dynamodan.framework;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dynamodan.dbhelper.ConnectionPool;
+import com.dynamodan.loghelper.LogContext;
+import com.dynamodan.loghelper.Wrapper;
+import com.dynamodan.metrichelper.Metrics;
+import static com.dynamodan.loghelper.Wrapper.log;
+import static com.dynamodan.loghelper.Wrapper.warning;
+
+public class JobRunner extends Chronessan {
+
+	public String version = "0.34";
+	public static JobRunner self;
+
+	protected final List<Job> jobs = new ArrayList<Job>();
+	// job classes whose static self has been pointed at a job:
+	private final Set<Class<?>> selfClasses = new HashSet<Class<?>>();
+	protected ScheduledExecutorService scheduler = null;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	// dud constructor, must use self.instantiateMy(self, args) to force singleton behavior
+	protected JobRunner() {	}
+
+	public String getVersion() {
+		return this.getClass().getSimpleName()+" v"+version;
+	}
+
+	public static void main( String[] args ) {
+		self = new JobRunner();
+		self.instantiateMy(self, args);
+	}
+
+	/**
+	 * one scheduled program
+	 */
+	public static class Job {
+		public final String name;
+		public final Chronessan program;
+		public final CronSchedule cron;
+		public final long every;
+		public final Map<String, Object> overlay;
+
+		private final AtomicBoolean running = new AtomicBoolean();
+		private volatile long lastStart = 0;
+		private volatile long lastMillis = 0;
+		private volatile long lastWarnings = 0;
+		private volatile long next = 0;
+		private final AtomicInteger runs = new AtomicInteger();
+		private final AtomicInteger skipped = new AtomicInteger();
+
+		public Job(String name, Chronessan program, CronSchedule cron, long every, Map<String, Object> overlay) {
+			this.name = name;
+			this.program = program;
+			this.cron = cron;
+			this.every = every;
+			this.overlay = overlay;
+		}
+
+		public boolean isRunning() {
+			return running.get();
+		}
+
+		public String toString() {
+			return String.format("%-20s %-16s runs %d, skipped %d, last %s (%d ms, %d warnings)%s", name,
+				(cron != null) ? cron.toString() : "every "+every+"ms", runs.get(), skipped.get(),
+				(lastStart == 0) ? "never" : new java.util.Date(lastStart).toString(), lastMillis, lastWarnings,
+				running.get() ? ", running now" : "");
+		}
+	}
+
+	/**
+	 * start the jobs and wait until the jvm is told to stop (or stop() is called)
+	 */
+	public void run() {
+		ConfigSnapshot config = this.settings;
+		int count = config.getList("jobs").size();
+		for(int i = 0; i < count; i++) {
+			try {
+				jobs.add(createJob(config.at("jobs."+i)));
+			} catch (Exception e) {
+				warning("Can't set up job "+i+" ("+config.getString("jobs."+i+".class")+"): "+e.getMessage());
+			}
+		}
+		if(jobs.isEmpty()) {
+			log("No jobs configured, nothing to do.  List them under jobs: in "+this.setConfigFileName());
+			return;
+		}
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(config.getInt("runner_threads", Math.min(jobs.size(), 4)), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "chronessan-job-"+threadCount.incrementAndGet());
+			}
+		});
+		// on stop(), the booked cron runs are dropped rather than waited for:
+		pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		// nothing reads the warnings writer in a long lived runner, so even with warnings_writer: true
+		// it would only grow with every job's warnings; they go to the jobs' stores instead:
+		Wrapper.getInstance().setCallerWriter(null);
+		scheduler = pool;
+		for(Job job : jobs) {
+			schedule(job);
+		}
+
+		final Thread runner = Thread.currentThread();
+		final long wait = (config.getLong("runner_shutdown_wait", 60) + config.getLong("alert_send_wait", 5)) * 1000;
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				JobRunner.this.stop();
+				// let instantiateMy() finish up (the report, the pid file, the pools):
+				try {
+					runner.join(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "chronessan-runner-stop"));
+
+		log("Running "+jobs.size()+" jobs");
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * stop scheduling, and wait (up to runner_shutdown_wait seconds) for running jobs to finish
+	 */
+	public void stop() {
+		ScheduledExecutorService s = scheduler;
+		if(s != null && !s.isShutdown()) {
+			log("Stopping, waiting for running jobs to finish");
+			s.shutdown();
+			try {
+				if(!s.awaitTermination(this.settings.getLong("runner_shutdown_wait", 60), TimeUnit.SECONDS)) {
+					warning("Jobs still running at shutdown: "+running());
+					s.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		stopped.countDown();
+	}
+
+	public List<Job> getJobs() {
+		return jobs;
+	}
+
+	// one line per job, e.g. for the repl:
+	public String describe() {
+		StringBuilder sb = new StringBuilder();
+		for(Job job : jobs) {
+			sb.append(job).append('\n');
+		}
+		return sb.toString();
+	}
+
+	// run a job now, on the calling thread, unless it's already running:
+	public boolean runNow(String name) {
+		for(Job job : jobs) {
+			if(job.name.equals(name)) {
+				return runJob(job);
+			}
+		}
+		warning("No job called "+name);
+		return false;
+	}
+
+	/**
+	 * make the job described by one entry of the jobs: list.  Override to set up
+	 * jobs some other way.
+	 */
+	protected Job createJob(ConfigSnapshot entry) throws Exception {
+		String className = entry.getString("class");
+		if(className == null) {
+			throw new ConfigSingletonException("no class: given");
+		}
+		Class<?> type = Class.forName(className);
+		if(!Chronessan.class.isAssignableFrom(type) || type == Chronessan.class) {
+			throw new ConfigSingletonException(className+" isn't a Chronessan program");
+		}
+		if(JobRunner.class.isAssignableFrom(type)) {
+			throw new ConfigSingletonException(className+" is a job runner, not a job");
+		}
+		Constructor<?> constructor = type.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		Chronessan program = (Chronessan) constructor.newInstance();
+
+		// programs written to run one per jvm keep their instance in a static self, which only one job can have:
+		try {
+			Field self = type.getDeclaredField("self");
+			if(Modifier.isStatic(self.getModifiers()) && self.getType().isInstance(program)) {
+				if(!selfClasses.add(type)) {
+					throw new ConfigSingletonException(className+" keeps its instance in a static self, so it can only be listed once");
+				}
+				self.setAccessible(true);
+				self.set(null, program);
+			}
+		} catch (NoSuchFieldException e) {
+			// doesn't have one
+		}
+
+		CronSchedule cron = null;
+		long every = 0;
+		if(entry.has("cron")) {
+			cron = new CronSchedule(entry.getString("cron"));
+		} else if(entry.has("every")) {
+			every = parseDuration(entry.getString("every"));
+			if(every <= 0) {
+				throw new ConfigSingletonException("every: should be more than 0");
+			}
+		} else {
+			throw new ConfigSingletonException("needs a cron: or every: schedule");
+		}
+
+		String name = entry.getString("name", type.getSimpleName());
+		Job job = new Job(name, program, cron, every, ownSettings(name, entry.getMap("settings")));
+		program.cmd = this.cmd;
+		program.config = this.config;
+		program.settings = jobSettings(job, this.settings);
+		if(program.settings.has("warnings_max")) {
+			program.warningStore.setCapacity(program.settings.getInt("warnings_max", 1000));
+		}
+		// one sender for every job, so their alerts are digested and rate limited together:
+		if(this.settings.has("smtp_host")) {
+			program.alertDispatcher = getAlertDispatcher();
+		}
+		log("Job "+job.name+": "+className+", "+((cron != null) ? "cron "+cron : "every "+every+"ms"));
+		return job;
+	}
+
+	// a job's settings: without the ones for things the jobs share with the runner:
+	private Map<String, Object> ownSettings(String job, Map<String, Object> overlay) {
+		LinkedHashMap<String, Object> own = new LinkedHashMap<String, Object>();
+		List<String> ignored = new ArrayList<String>();
+		for(Map.Entry<String, Object> e : overlay.entrySet()) {
+			if(isShared(e.getKey())) {
+				ignored.add(e.getKey());
+			} else {
+				own.put(e.getKey(), e.getValue());
+			}
+		}
+		if(!ignored.isEmpty()) {
+			log("Job "+job+": ignoring "+ignored+", the connection pools and alert spool are the runner's");
+		}
+		return own;
+	}
+
+	protected boolean isShared(String setting) {
+		return setting.startsWith("mysql_") || setting.startsWith("mssql_") || setting.startsWith("smtp_") || setting.startsWith("alert_")
+			|| "sql_stats".equals(setting) || "sql_slow_ms".equals(setting);
+	}
+
+	/**
+	 * the settings a job sees: the runner's own, with the job's settings: laid over them
+	 */
+	protected ConfigSnapshot jobSettings(Job job, ConfigSnapshot runnerSettings) {
+		if(job.overlay.isEmpty()) {
+			return runnerSettings;
+		}
+		return new ConfigSnapshot(ConfigLoader.merge(runnerSettings.getRoot(), job.overlay), runnerSettings.getSource()+" ("+job.name+")");
+	}
+
+	// the jobs get the new settings too.  The jobs: list itself is only read at startup.
+	protected void configChanged(ConfigSnapshot previous, ConfigSnapshot current) {
+		super.configChanged(previous, current);
+		for(Job job : jobs) {
+			ConfigSnapshot before = job.program.settings;
+			try {
+				job.program.configChanged(before, jobSettings(job, current));
+			} catch (RuntimeException e) {
+				warning("Job "+job.name+" failed to take the new config: "+e);
+			}
+		}
+	}
+
+	private void schedule(final Job job) {
+		Runnable fire = new Runnable() {
+			public void run() {
+				if(job.cron != null) {
+					scheduleNext(job, this);
+				}
+				if(!runJob(job)) {
+					job.skipped.incrementAndGet();
+					Metrics.counter("job."+job.name+".skipped").inc();
+				}
+			}
+		};
+		if(job.cron != null) {
+			scheduleNext(job, fire);
+		} else {
+			scheduler.scheduleAtFixedRate(fire, 0, job.every, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// the next cron time is booked before the run starts, so a slow run doesn't push the schedule back:
+	private void scheduleNext(Job job, Runnable fire) {
+		long next = job.cron.next(Math.max(System.currentTimeMillis(), job.next));
+		if(next < 0) {
+			warning("Job "+job.name+": cron "+job.cron+" never fires");
+			return;
+		}
+		job.next = next;
+		try {
+			scheduler.schedule(fire, next - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		} catch (java.util.concurrent.RejectedExecutionException e) {
+			// stopping
+		}
+	}
+
+	/**
+	 * one run of a job on the calling thread, as a task of its own (job-N in
+	 * %X{task}) whose warnings are kept apart from the other jobs'.  False if
+	 * the previous run hadn't finished.
+	 */
+	protected boolean runJob(Job job) {
+		if(!job.running.compareAndSet(false, true)) {
+			log("Job "+job.name+" is still running, skipping this run");
+			return false;
+		}
+		Thread thread = Thread.currentThread();
+		String threadName = thread.getName();
+		thread.setName("job-"+job.name);
+		Chronessan program = job.program;
+		program.warningStore.clear();
+		LogContext.Scope context = LogContext.task(job.name, program.warningStore).enter();
+		job.lastStart = System.currentTimeMillis();
+		try {
+			program.run();
+		} catch (Throwable e) {
+			// anything escaping would cancel the job's schedule
+			warning("Job "+job.name+" failed: "+e);
+		} finally {
+			ConnectionPool.releaseAllThreadConnections();
+			Wrapper.flush();
+			job.lastMillis = System.currentTimeMillis() - job.lastStart;
+			Metrics.histogram("job."+job.name).record(job.lastMillis * 1000000);
+			job.lastWarnings = program.warningStore.count();
+			job.runs.incrementAndGet();
+			if(job.lastWarnings > 0) {
+				log("Job "+job.name+" finished in "+job.lastMillis+"ms with "+job.lastWarnings+" warnings");
+				program.report();
+			} else {
+				log("Job "+job.name+" finished in "+job.lastMillis+"ms");
+			}
+			context.close();
+			thread.setName(threadName);
+			job.running.set(false);
+		}
+		return true;
+	}
+
+	private String running() {
+		StringBuilder sb = new StringBuilder();
+		for(Job job : jobs) {
+			if(job.isRunning()) {
+				sb.append((sb.length() > 0) ? ", " : "").append(job.name);
+			}
+		}
+		return sb.toString();
+	}
+
+	// 500ms, 30s, 5m, 2h, or plain seconds:
+	static long parseDuration(String s) throws ConfigSingletonException {
+		String t = s.trim().toLowerCase();
+		try {
+			if(t.endsWith("ms")) { return Long.parseLong(t.substring(0, t.length() - 2).trim()); }
+			if(t.endsWith("s")) { return Long.parseLong(t.substring(0, t.length() - 1).trim()) * 1000; }
+			if(t.endsWith("m")) { return Long.parseLong(t.substring(0, t.length() - 1).trim()) * 60000; }
+			if(t.endsWith("h")) { return Long.parseLong(t.substring(0, t.length() - 1).trim()) * 3600000; }
+			return Long.parseLong(t) * 1000;
+		} catch (NumberFormatException e) {
+			throw new ConfigSingletonException("can't read the duration "+s);
+		}
+	}
+}
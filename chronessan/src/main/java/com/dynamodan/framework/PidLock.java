@@ -0,0 +1,202 @@
+// keeps overlapping runs of a program apart with an OS file lock on a pid
+// file.  The lock goes away with the process however it dies, so a crashed run
+// never leaves a stale lock behind; the pid written into the file is only for
+// telling people (and the fallback below) who holds it.
+//
+// With more than one slot, file.1 ... file.N are tried in turn and the first
+// free one is taken, which caps how many copies run at once on this host.
+//
+// On filesystems that can't lock (some NFS setups), it falls back to the pid
+// file's contents: a slot whose pid no longer has a /proc/<pid> is stale and
+// gets taken over.
+//
+// The files are emptied on release but not deleted: deleting a lock file lets
+// a second process lock a new file of the same name while a third still holds
+// the old one.
+package com.dynamodan.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.dynamodan.loghelper.Wrapper;
+import static com.dynamodan.loghelper.Wrapper.debug;
+
+public class PidLock {
+	private final File file;
+	private final int slots;
+	private FileChannel channel = null;
+	private FileLock lock = null;
+	private File held = null;
+
+	public PidLock(File file) {
+		this(file, 1);
+	}
+
+	public PidLock(File file, int slots) {
+		this.file = file;
+		this.slots = Math.max(1, slots);
+	}
+
+	/**
+	 * take a free slot if there is one right now
+	 */
+	public synchronized boolean tryAcquire() throws IOException {
+		if(held != null) {
+			return true;
+		}
+		for(int slot = 1; slot <= slots; slot++) {
+			if(trySlot(slotFile(slot))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * wait up to timeoutMillis for a free slot (0 means don't wait)
+	 */
+	public boolean acquire(long timeoutMillis) throws IOException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(!tryAcquire()) {
+			if(System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(Math.min(500, Math.max(1, deadline - System.currentTimeMillis())));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized void release() {
+		if(held == null) {
+			return;
+		}
+		try {
+			if(channel != null) {
+				channel.truncate(0);
+				if(lock != null) {
+					lock.release();
+				}
+				channel.close();
+			} else {
+				// the no-locking fallback: the empty file is what frees the slot
+				Files.write(held.toPath(), new byte[0]);
+			}
+		} catch (IOException e) {
+			debug("Releasing "+held+": "+e.getMessage());
+		}
+		channel = null;
+		lock = null;
+		held = null;
+	}
+
+	public synchronized boolean isHeld() {
+		return held != null;
+	}
+
+	// the file actually locked, or null:
+	public synchronized File getHeldFile() {
+		return held;
+	}
+
+	/**
+	 * the pids written into the slot files, for saying who has them.  Empty slots are left out.
+	 */
+	public synchronized String describeHolders() {
+		StringBuilder sb = new StringBuilder();
+		for(int slot = 1; slot <= slots; slot++) {
+			File f = slotFile(slot);
+			// opening and closing our own locked file would drop the lock (posix locks are per process):
+			String pid = (channel != null && f.equals(held)) ? Wrapper.getPID() : readPid(f);
+			if(pid != null) {
+				if(sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(pid).append(isAlive(pid) ? "" : " (gone)");
+			}
+		}
+		return sb.toString();
+	}
+
+	// is there a /proc/<pid>?  (true where there's no /proc to ask)
+	public static boolean isAlive(String pid) {
+		if(!new File("/proc/self").exists()) {
+			return true;
+		}
+		return new File("/proc/"+pid).exists();
+	}
+
+	File slotFile(int slot) {
+		return (slots == 1) ? file : new File(file.getPath()+"."+slot);
+	}
+
+	private boolean trySlot(File f) throws IOException {
+		File dir = f.getAbsoluteFile().getParentFile();
+		if(dir != null) {
+			dir.mkdirs();
+		}
+		@SuppressWarnings("resource")
+		FileChannel ch = new RandomAccessFile(f, "rw").getChannel();
+		FileLock l;
+		try {
+			l = ch.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// this JVM already holds it
+			ch.close();
+			return false;
+		} catch (IOException e) {
+			ch.close();
+			debug("Can't lock "+f+" ("+e.getMessage()+"), going by the pid in it");
+			return tryByPid(f);
+		}
+		if(l == null) {
+			ch.close();
+			return false;
+		}
+
+		ch.truncate(0);
+		ch.write(ByteBuffer.wrap((Wrapper.getPID()+"\n").getBytes(StandardCharsets.UTF_8)), 0);
+		ch.force(false);
+		channel = ch;
+		lock = l;
+		held = f;
+		return true;
+	}
+
+	// for filesystems without locks: free if empty or if its pid is gone
+	private boolean tryByPid(File f) throws IOException {
+		String pid = readPid(f);
+		if(pid != null && isAlive(pid) && !pid.equals(Wrapper.getPID())) {
+			return false;
+		}
+		if(pid != null) {
+			debug("Taking over "+f+" from pid "+pid+", which is gone");
+		}
+		Files.write(f.toPath(), (Wrapper.getPID()+"\n").getBytes(StandardCharsets.UTF_8));
+		held = f;
+		return true;
+	}
+
+	private static String readPid(File f) {
+		try {
+			if(!f.isFile()) {
+				return null;
+			}
+			String pid = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim();
+			return pid.isEmpty() ? null : pid;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
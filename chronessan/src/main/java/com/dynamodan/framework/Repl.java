@@ -0,0 +1,471 @@
+// the beanshell side of a Chronessan program: the interactive --repl, and
+// --script, which runs a file (or stdin, with -) in one go.  Both get the same
+// variables: self, cmd, version, lw, plus whatever the program's
+// configureBeanShell() adds.
+//
+// A script is parsed once (see BshScript) and run statement by statement
+// without going near the console or the log appenders, and the run is timed
+// per statement.
+//
+// The repl also takes a few commands of its own, see meta():
+//   :time <expr>            wall and cpu time, and bytes allocated, of one evaluation
+//   :bench N <expr>         N timed runs after a warmup, with percentiles
+//   :alloc <expr>           bytes allocated, and any garbage collections, during one evaluation
+//   :sql-explain [db] <sql> the query plan, from mysql, mariadb or mssql
+// Results are echoed through Dumper.brief(), so echoing a huge collection
+// only walks as much of it as gets shown.
+package com.dynamodan.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import bsh.EvalError;
+import bsh.Interpreter;
+import jline.TerminalFactory;
+import jline.console.ConsoleReader;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.PatternLayout;
+
+import com.dynamodan.loghelper.Wrapper;
+import static com.dynamodan.loghelper.Wrapper.log;
+import static com.dynamodan.loghelper.Wrapper.warning;
+import static com.dynamodan.loghelper.Wrapper.debug;
+
+public class Repl {
+	protected final Chronessan program;
+	protected final Wrapper lw;
+	protected int maxChar = 300;
+
+	public Repl(Chronessan program, Wrapper lw) {
+		this.program = program;
+		this.lw = lw;
+	}
+
+	/**
+	 * an interpreter with the program's variables set
+	 */
+	public Interpreter createInterpreter(ConsoleReader console) {
+		Interpreter i = new bsh.Interpreter();
+		try {
+			i.set("console", console);
+			i.set("cmd", program.cmd);
+			i.set("version", program.version);
+			i.set("self", program);
+			i.set("lw", lw);
+
+			program.configureBeanShell(i);
+		} catch (EvalError e) {
+			log(e.getMessage());
+		}
+		return i;
+	}
+
+	/**
+	 * run a beanshell script file, or stdin for "-".  False if it failed, which
+	 * has been logged as a warning.
+	 */
+	public boolean runScript(String file) {
+		String source;
+		try {
+			source = "-".equals(file) ? read(System.in) : new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			warning("Can't read script "+file+": "+e.getMessage());
+			return false;
+		}
+
+		String name = "-".equals(file) ? "stdin" : file;
+		BshScript script;
+		try {
+			script = BshScript.parse(name, source);
+		} catch (EvalError e) {
+			warning("Script "+name+" doesn't parse: "+e.getMessage());
+			return false;
+		}
+
+		BshScript.Result result = script.run(createInterpreter(null));
+		log(String.format("Script %s: %d of %d statements in %.3f ms", name,
+			result.ok() ? script.size() : result.failedAt + 1, script.size(), result.totalNanos() / 1e6));
+		String slowest = result.slowest(program.cmd != null && program.cmd.hasOption("debug") ? script.size() : 5);
+		if(!slowest.isEmpty()) {
+			log("Slowest statements:\n"+slowest);
+		}
+		if(!result.ok()) {
+			warning("Script "+name+" failed at line "+script.getLine(result.failedAt)+" ("+script.getText(result.failedAt)+"): "+result.error.getMessage());
+			return false;
+		}
+		if(result.value != null) {
+			debug("Script "+name+" returned "+render(result.value));
+		}
+		return true;
+	}
+
+	/**
+	 * the interactive JLine-wrapped beanshell, until CTRL-d or quit
+	 */
+	public void interact() {
+		// turn off console logging, it doesn't need to echo into the
+		// repl.  It already echos via beanshell and ConsoleReader
+		ConsoleAppender appender = (ConsoleAppender) LogManager.getRootLogger().getAppender("CA");
+		// appender.setThreshold(Level.OFF);
+
+		// set a new layout that only echoes the message, and maybe the pid:
+		PatternLayout appenderLayout = (PatternLayout) appender.getLayout();
+		String origPattern = appenderLayout.getConversionPattern();
+		appenderLayout.setConversionPattern("[%X{PID}] %m%n");
+		// appender.setLayout(newLayout);
+
+
+		// set up the console reader:
+		ConsoleReader console = null;
+
+		try {
+			console = new ConsoleReader();
+		} catch (IOException e) {
+			warning("Got IOException: ");
+			warning(e.getMessage());
+		}
+
+		// set up a Beanshell interpreter:
+		Interpreter i = createInterpreter(console);
+		try {
+			i.eval("void exit() { print(\"Use CTRL-d to exit.\"); }");
+		} catch (EvalError e) {
+			log(e.getMessage());
+		}
+
+		System.out.println("Press CTRL-c or CTRL-d (or type quit) to exit.");
+
+		console.setHandleUserInterrupt(true);
+		console.setPrompt("beanshell> ");
+
+		String line = null;
+		Object evalResult = null;
+
+		try {
+			while ((line = console.readLine()) != null) {
+				try {
+
+					appender.setThreshold(Level.OFF);
+					log("beanshell> "+line);
+					if("quit".equals(line)) {
+						log("Bye");
+						break;
+					}
+					appender.setThreshold(Level.ALL);
+
+
+					if(line.startsWith(":")) {
+						log(meta(line, i));
+						continue;
+					}
+
+					evalResult = i.eval(line);
+					if(evalResult != null) {  // check first, it could be null!!
+						log("beanshell> "+render(evalResult));
+					}
+				}	catch (EvalError e) {
+					String errstr = e.getMessage();
+					warning("beanshell> "+errstr);
+					// console.println(errstr);
+				}	catch (Exception e) {
+					String errstr = e.getMessage();
+					warning("beanshell> "+errstr);
+				}
+
+			}
+
+		} catch(IOException e) {
+			warning("Got IOException: ");
+			warning(e.getMessage());
+		} catch (jline.console.UserInterruptException e) {
+			appender.setThreshold(Level.ALL);
+			log("Caught CTRL-c");
+		} finally {
+			try {
+				TerminalFactory.get().restore();
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		appenderLayout.setConversionPattern(origPattern);
+		appender.setThreshold(Level.ALL);
+		log("exiting beanshell");
+	}
+
+	// what gets echoed for a result, about maxChar long at most:
+	protected String render(Object value) {
+		return Dumper.brief(value, maxChar);
+	}
+
+	/**
+	 * run one of the repl's own : commands and return what to show
+	 */
+	public String meta(String line, Interpreter i) {
+		String[] words = line.trim().split("\\s+", 2);
+		String command = words[0];
+		String rest = (words.length > 1) ? words[1].trim() : "";
+		try {
+			if(command.equals(":time") && !rest.isEmpty()) {
+				return time(rest, i);
+			}
+			if(command.equals(":alloc") && !rest.isEmpty()) {
+				return alloc(rest, i);
+			}
+			if(command.equals(":bench")) {
+				String[] parts = rest.split("\\s+", 2);
+				if(parts.length == 2 && parts[0].matches("\\d+")) {
+					return bench(Integer.parseInt(parts[0]), parts[1], i);
+				}
+			}
+			if(command.equals(":sql-explain") && !rest.isEmpty()) {
+				return explain(rest);
+			}
+		} catch (EvalError e) {
+			return command+": "+e.getMessage();
+		} catch (SQLException e) {
+			return command+": "+e.getMessage();
+		}
+		return ":time <expr>, :bench <N> <expr>, :alloc <expr>, :sql-explain [mysql|mariadb|mssql] <sql>";
+	}
+
+	/**
+	 * what the current thread used between two points: wall and cpu time,
+	 * bytes allocated (where the jvm counts them), and garbage collections
+	 */
+	protected static class Usage {
+		private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		final long wall;
+		final long cpu;
+		final long allocated;
+		final long gcCount;
+		final long gcMillis;
+
+		Usage() {
+			long count = 0;
+			long millis = 0;
+			for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				count += Math.max(0, gc.getCollectionCount());
+				millis += Math.max(0, gc.getCollectionTime());
+			}
+			gcCount = count;
+			gcMillis = millis;
+			allocated = allocatedBytes();
+			cpu = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+			wall = System.nanoTime();
+		}
+
+		// -1 where the jvm doesn't count allocations per thread:
+		static long allocatedBytes() {
+			if(threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+				if(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+					return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+				}
+			}
+			return -1;
+		}
+
+		String since(Usage start, int runs) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("wall %s", nanos((wall - start.wall) / runs)));
+			if(cpu >= 0 && start.cpu >= 0) {
+				sb.append(String.format(", cpu %s", nanos((cpu - start.cpu) / runs)));
+			}
+			if(allocated >= 0 && start.allocated >= 0) {
+				sb.append(String.format(", allocated %s", bytes((allocated - start.allocated) / runs)));
+			}
+			if(gcCount > start.gcCount) {
+				sb.append(String.format(", %d gc (%d ms)", gcCount - start.gcCount, gcMillis - start.gcMillis));
+			}
+			return sb.toString();
+		}
+	}
+
+	protected String time(String expr, Interpreter i) throws EvalError {
+		Usage start = new Usage();
+		Object value = i.eval(expr);
+		Usage end = new Usage();
+		return end.since(start, 1) + ((value == null) ? "" : "\n"+render(value));
+	}
+
+	protected String alloc(String expr, Interpreter i) throws EvalError {
+		if(Usage.allocatedBytes() < 0) {
+			return "This jvm doesn't count allocations per thread";
+		}
+		Usage start = new Usage();
+		i.eval(expr);
+		Usage end = new Usage();
+		String gc = (end.gcCount > start.gcCount) ? String.format(", during %d gc (%d ms)", end.gcCount - start.gcCount, end.gcMillis - start.gcMillis) : "";
+		return "allocated "+bytes(end.allocated - start.allocated)+gc;
+	}
+
+	/**
+	 * parse expr once, run it a fifth as many times again to warm up, then time n runs
+	 */
+	protected String bench(int n, String expr, Interpreter i) throws EvalError {
+		if(n < 1) {
+			return ":bench needs at least 1 run";
+		}
+		// like Interpreter.eval(), don't insist on the last semicolon:
+		BshScript script = BshScript.parse(":bench", expr+";");
+		for(int k = 0; k < Math.max(1, n / 5); k++) {
+			BshScript.Result r = script.run(i);
+			if(!r.ok()) {
+				throw r.error;
+			}
+		}
+
+		long[] runs = new long[n];
+		Usage start = new Usage();
+		for(int k = 0; k < n; k++) {
+			long t = System.nanoTime();
+			BshScript.Result r = script.run(i);
+			runs[k] = System.nanoTime() - t;
+			if(!r.ok()) {
+				throw r.error;
+			}
+		}
+		Usage end = new Usage();
+		Arrays.sort(runs);
+		return String.format("%d runs, per run: %s%nmin %s  p50 %s  p90 %s  p99 %s  max %s", n, end.since(start, n),
+			nanos(runs[0]), nanos(percentile(runs, 50)), nanos(percentile(runs, 90)), nanos(percentile(runs, 99)), nanos(runs[n - 1]));
+	}
+
+	/**
+	 * the plan for sql, from the database named first (mysql, mariadb or
+	 * mssql) or else the first one configured
+	 */
+	protected String explain(String rest) throws SQLException {
+		String db = null;
+		String sql = rest;
+		String[] parts = rest.split("\\s+", 2);
+		if(parts.length == 2 && parts[0].matches("(?i)mysql|mariadb|mssql")) {
+			db = parts[0].toLowerCase();
+			sql = parts[1];
+		} else if(program.settings.has("mysql_host")) {
+			db = "mysql";
+		} else if(program.settings.has("mssql_host")) {
+			db = "mssql";
+		} else {
+			return "No database configured";
+		}
+
+		Connection c = db.equals("mssql") ? program.getMssqlConnection() : db.equals("mariadb") ? program.getMariaDBConnection() : program.getMysqlConnection();
+		if(c == null) {
+			return "No "+db+" connection";
+		}
+		try (Statement st = c.createStatement()) {
+			if(!db.equals("mssql")) {
+				try (ResultSet rs = st.executeQuery("EXPLAIN "+sql)) {
+					return table(rs, 50);
+				}
+			}
+			st.execute("SET SHOWPLAN_TEXT ON");
+			try {
+				// the plan comes back as the query's result sets:
+				StringBuilder sb = new StringBuilder();
+				boolean results = st.execute(sql);
+				while(results || st.getUpdateCount() != -1) {
+					if(results) {
+						try (ResultSet rs = st.getResultSet()) {
+							sb.append(table(rs, 50));
+						}
+					}
+					results = st.getMoreResults();
+				}
+				return sb.toString();
+			} finally {
+				st.execute("SET SHOWPLAN_TEXT OFF");
+			}
+		}
+	}
+
+	// a result set as a plain text table, at most maxRows rows and 60 chars a column:
+	protected static String table(ResultSet rs, int maxRows) throws SQLException {
+		ResultSetMetaData md = rs.getMetaData();
+		int columns = md.getColumnCount();
+		List<String[]> rows = new ArrayList<String[]>();
+		String[] header = new String[columns];
+		int[] widths = new int[columns];
+		for(int c = 0; c < columns; c++) {
+			header[c] = md.getColumnLabel(c + 1);
+			widths[c] = header[c].length();
+		}
+		int more = 0;
+		while(rs.next()) {
+			if(rows.size() >= maxRows) {
+				more++;
+				continue;
+			}
+			String[] row = new String[columns];
+			for(int c = 0; c < columns; c++) {
+				String v = rs.getString(c + 1);
+				row[c] = (v == null) ? "NULL" : (v.length() > 60) ? v.substring(0, 57)+"..." : v;
+				widths[c] = Math.max(widths[c], row[c].length());
+			}
+			rows.add(row);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		appendRow(sb, header, widths);
+		for(String[] row : rows) {
+			appendRow(sb, row, widths);
+		}
+		if(more > 0) {
+			sb.append("... ").append(more).append(" more rows\n");
+		}
+		return sb.toString();
+	}
+
+	private static void appendRow(StringBuilder sb, String[] row, int[] widths) {
+		for(int c = 0; c < row.length; c++) {
+			sb.append(String.format("%-"+widths[c]+"s", row[c])).append((c < row.length - 1) ? " | " : "\n");
+		}
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static String nanos(long n) {
+		if(n < 10000) { return n+" ns"; }
+		if(n < 10000000) { return String.format("%.1f us", n / 1e3); }
+		return String.format("%.1f ms", n / 1e6);
+	}
+
+	private static String bytes(long n) {
+		if(n < 10240) { return n+" bytes"; }
+		if(n < 10485760) { return String.format("%.1f KB", n / 1024.0); }
+		return String.format("%.1f MB", n / 1048576.0);
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,411 @@
+// fans work out over threads and waits for all of it, for run() methods that
+// spend their time waiting on I/O (queries, http calls):
+//
+//   try (TaskScope scope = taskScope()) {
+//       TaskScope.Subtask<Integer> a = scope.fork(() -> count(mysql, "orders"));
+//       TaskScope.Subtask<Integer> b = scope.fork(() -> count(mssql, "orders"));
+//       if(scope.join()) {
+//           log(a.get() + b.get());
+//       }
+//   }
+//
+// On a jvm with virtual threads (21 and up) every subtask gets its own, so
+// thousands of them waiting at once are cheap.  Otherwise they share a
+// bounded pool of ordinary daemon threads, and the rest queue; don't make a
+// subtask wait on subtasks of its own there, or the pool can fill up with
+// waiters.
+//
+// join() waits for every subtask, or until the deadline, after which the
+// unfinished ones are cancelled (interrupted).  By default the first failure
+// cancels the rest too.  Failures and timeouts are logged as warnings.
+// close() cancels whatever is left and waits (up to setCloseWait() ms) for
+// the subtasks that had started to actually stop, so none of them outlives
+// the scope.
+//
+// Each subtask runs as a task of its own (see LogContext) under the scope,
+// so its log lines carry an id like orders-3.12 in %X{task}, and its warnings
+// go up to the task that made the scope and end up in the report of the
+// program (or runner job) that forked them.  setSubtaskWarnings() also gives
+// every subtask its own store, for reporting on them one by one.
+//
+// Thread connections a subtask takes (getMysqlConnection() and the like) go
+// back to their pools when it ends, as they do at the end of a runner job.
+package com.dynamodan.framework;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.dynamodan.dbhelper.ConnectionPool;
+import com.dynamodan.loghelper.LogContext;
+import com.dynamodan.loghelper.WarningStore;
+import static com.dynamodan.loghelper.Wrapper.debug;
+import static com.dynamodan.loghelper.Wrapper.warning;
+
+public class TaskScope implements AutoCloseable {
+	private static volatile ThreadPoolExecutor platformPool = null;
+	private static final Method newVirtualExecutor = findVirtualExecutor();
+
+	private final String name;
+	private final LogContext context;
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+	private final List<Subtask<?>> subtasks = new ArrayList<Subtask<?>>();
+	private final AtomicReference<Throwable> firstFailure = new AtomicReference<Throwable>();
+	private volatile long deadline = 0;
+	private volatile boolean failFast = true;
+	private volatile boolean cancelled = false;
+	private volatile int subtaskWarnings = 0;
+	private volatile long closeWait = 10000;
+
+	public enum State { RUNNING, SUCCESS, FAILED, CANCELLED }
+
+	/**
+	 * one forked piece of work.  get() once it has succeeded.
+	 */
+	public static class Subtask<T> {
+		private final int index;
+		private volatile Future<T> future;
+		private volatile LogContext context;
+		private volatile Throwable exception = null;
+		private volatile T result = null;
+		// only ever moves on from RUNNING once, so a finish and a cancel can't both win:
+		private final AtomicReference<State> state = new AtomicReference<State>(State.RUNNING);
+		private volatile boolean started = false;
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		Subtask(int index) {
+			this.index = index;
+		}
+
+		public State state() {
+			return state.get();
+		}
+
+		public T get() {
+			State s = state.get();
+			if(s != State.SUCCESS) {
+				throw new IllegalStateException("subtask "+index+" is "+s, exception);
+			}
+			return result;
+		}
+
+		// what it failed with, or null:
+		public Throwable exception() {
+			return exception;
+		}
+
+		// its own warnings, if the scope keeps them per subtask, or null:
+		public WarningStore warnings() {
+			return context.getWarnings();
+		}
+
+		public String getTaskId() {
+			return context.getTaskId();
+		}
+	}
+
+	/**
+	 * a scope with its own virtual threads when the jvm has them, otherwise on
+	 * the shared pool of (at most) poolThreads platform threads
+	 */
+	public TaskScope(String name, int poolThreads, boolean virtual) {
+		this.name = name;
+		this.context = LogContext.task(name, null);
+		ExecutorService v = virtual ? virtualExecutor() : null;
+		this.ownExecutor = (v != null);
+		this.executor = (v != null) ? v : platformPool(poolThreads);
+	}
+
+	public TaskScope(String name) {
+		this(name, 32, true);
+	}
+
+	// whether this jvm can run subtasks on virtual threads:
+	public static boolean hasVirtualThreads() {
+		return newVirtualExecutor != null;
+	}
+
+	public boolean isVirtual() {
+		return ownExecutor;
+	}
+
+	/**
+	 * give up on whatever hasn't finished this many ms from now
+	 */
+	public TaskScope withTimeout(long millis) {
+		this.deadline = (millis > 0) ? System.currentTimeMillis() + millis : 0;
+		return this;
+	}
+
+	// the same, as a point in time (System.currentTimeMillis()); 0 for none:
+	public TaskScope withDeadline(long deadline) {
+		this.deadline = deadline;
+		return this;
+	}
+
+	// false to let the other subtasks carry on when one fails:
+	public TaskScope setFailFast(boolean failFast) {
+		this.failFast = failFast;
+		return this;
+	}
+
+	// how long close() waits for cancelled subtasks to stop, in ms:
+	public TaskScope setCloseWait(long millis) {
+		this.closeWait = millis;
+		return this;
+	}
+
+	// give each subtask forked from now on a store for the last capacity of its own warnings (0 for none):
+	public TaskScope setSubtaskWarnings(int capacity) {
+		this.subtaskWarnings = capacity;
+		return this;
+	}
+
+	public <T> Subtask<T> fork(final Callable<T> task) {
+		final Subtask<T> subtask;
+		synchronized(subtasks) {
+			if(cancelled) {
+				throw new IllegalStateException("task scope "+name+" has been cancelled");
+			}
+			subtask = new Subtask<T>(subtasks.size());
+			subtasks.add(subtask);
+		}
+
+		int capacity = subtaskWarnings;
+		final LogContext subtaskContext = context.child((capacity > 0) ? new WarningStore(capacity) : null);
+		subtask.context = subtaskContext;
+		subtask.future = executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				// close() waits for the subtasks that got this far (see there):
+				subtask.started = true;
+				if(subtask.state.get() != State.RUNNING) {
+					subtask.done.countDown();
+					throw new CancellationException("subtask "+subtask.index+" was cancelled before it started");
+				}
+				LogContext.Scope scope = subtaskContext.enter();
+				try {
+					T result = task.call();
+					subtask.result = result;
+					if(!subtask.state.compareAndSet(State.RUNNING, State.SUCCESS)) {
+						throw new CancellationException("subtask "+subtask.index+" was cancelled");
+					}
+					return result;
+				} catch (Throwable e) {
+					State failed = cancelled ? State.CANCELLED : State.FAILED;
+					if(subtask.state.get() == State.RUNNING) {
+						subtask.exception = e;
+						if(subtask.state.compareAndSet(State.RUNNING, failed) && failed == State.FAILED
+							&& firstFailure.compareAndSet(null, e) && failFast) {
+							cancel();
+						}
+					}
+					throw (e instanceof Exception) ? (Exception) e : new ExecutionException(e);
+				} finally {
+					// pooled threads outlive the subtask, so its thread connections go back now:
+					ConnectionPool.releaseAllThreadConnections();
+					scope.close();
+					subtask.done.countDown();
+				}
+			}
+		});
+		return subtask;
+	}
+
+	public Subtask<Void> fork(final Runnable task) {
+		return fork(new Callable<Void>() {
+			public Void call() {
+				task.run();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * wait for every subtask to finish, or for the deadline.  True if they all
+	 * succeeded; otherwise the failures (or the timeout) have been logged as
+	 * warnings and failure() has the first one.
+	 */
+	public boolean join() {
+		List<Subtask<?>> list;
+		synchronized(subtasks) {
+			list = new ArrayList<Subtask<?>>(subtasks);
+		}
+
+		boolean timedOut = false;
+		for(Subtask<?> subtask : list) {
+			try {
+				if(deadline > 0) {
+					subtask.future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				} else {
+					subtask.future.get();
+				}
+			} catch (TimeoutException e) {
+				timedOut = true;
+				break;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancel();
+				break;
+			} catch (ExecutionException | CancellationException e) {
+				// recorded on the subtask
+			}
+		}
+
+		if(timedOut) {
+			int unfinished = cancel();
+			warning("Task scope "+name+" timed out with "+unfinished+" of "+list.size()+" subtasks unfinished");
+		}
+
+		int failed = 0;
+		for(Subtask<?> subtask : list) {
+			if(subtask.state.get() == State.FAILED) {
+				failed++;
+			}
+		}
+		if(failed > 0) {
+			Throwable first = firstFailure.get();
+			warning("Task scope "+name+": "+failed+" of "+list.size()+" subtasks failed, the first with "+first);
+		}
+		return !timedOut && failed == 0 && !cancelled;
+	}
+
+	// the first subtask failure, or null:
+	public Throwable failure() {
+		return firstFailure.get();
+	}
+
+	/**
+	 * stop forking, and interrupt the subtasks that haven't finished.  Returns how many that was.
+	 */
+	public int cancel() {
+		List<Subtask<?>> list;
+		synchronized(subtasks) {
+			cancelled = true;
+			list = new ArrayList<Subtask<?>>(subtasks);
+		}
+		int unfinished = 0;
+		for(Subtask<?> subtask : list) {
+			if(subtask.state.compareAndSet(State.RUNNING, State.CANCELLED)) {
+				Future<?> f = subtask.future;
+				if(f != null) {
+					f.cancel(true);
+				}
+				unfinished++;
+			}
+		}
+		return unfinished;
+	}
+
+	// results of the subtasks that succeeded, in fork order:
+	public List<Object> results() {
+		List<Object> results = new ArrayList<Object>();
+		synchronized(subtasks) {
+			for(Subtask<?> subtask : subtasks) {
+				if(subtask.state.get() == State.SUCCESS) {
+					results.add(subtask.result);
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * cancel anything left over, and wait (up to the close wait) for the
+	 * subtasks that had started to stop.  A scope's virtual threads go away
+	 * with it; the shared platform pool stays up for the next one.
+	 */
+	public void close() {
+		cancel();
+		List<Subtask<?>> list;
+		synchronized(subtasks) {
+			list = new ArrayList<Subtask<?>>(subtasks);
+		}
+		// one that hasn't started by now sees it was cancelled and never runs the task:
+		long until = System.currentTimeMillis() + closeWait;
+		int stuck = 0;
+		boolean interrupted = false;
+		for(Subtask<?> subtask : list) {
+			if(!subtask.started) {
+				continue;
+			}
+			try {
+				if(!subtask.done.await(Math.max(0, until - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+					stuck++;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+				stuck++;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if(stuck > 0) {
+			warning("Task scope "+name+" closed with "+stuck+" cancelled subtasks still running");
+		}
+		if(ownExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	private static synchronized ExecutorService platformPool(int threads) {
+		threads = Math.max(1, threads);
+		if(platformPool == null) {
+			final AtomicInteger count = new AtomicInteger();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "chronessan-task-"+count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pool.allowCoreThreadTimeOut(true);
+			platformPool = pool;
+		} else if(platformPool.getMaximumPoolSize() != threads) {
+			// grow before shrinking, core may not exceed max:
+			if(threads > platformPool.getMaximumPoolSize()) {
+				platformPool.setMaximumPoolSize(threads);
+				platformPool.setCorePoolSize(threads);
+			} else {
+				platformPool.setCorePoolSize(threads);
+				platformPool.setMaximumPoolSize(threads);
+			}
+		}
+		return platformPool;
+	}
+
+	private static ExecutorService virtualExecutor() {
+		if(newVirtualExecutor == null) {
+			return null;
+		}
+		try {
+			return (ExecutorService) newVirtualExecutor.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			debug("No virtual threads after all: "+e);
+			return null;
+		}
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor(), if this jvm has it (this compiles for java 8):
+	private static Method findVirtualExecutor() {
+		try {
+			return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+// a bounded, lock-free ring of log4j events, drained onto the real appenders
+// by one background thread so that callers never wait on disk or syslog.
+// Producers claim slots with a CAS on a sequence number (the bounded queue
+// from Dmitry Vyukov's 1024cores.net), so many threads can log at once
+// without a lock; only the writer thread ever touches the appenders.
+//
+// What happens when the ring is full is up to the Backpressure setting:
+// BLOCK waits for room, DROP throws the event away, and SAMPLE keeps one
+// event in every sampleRate (waiting for room for that one) and drops the
+// rest.  Dropped events are counted and reported in the log once things calm
+// down, so it's obvious when something was lost.
+package com.dynamodan.loghelper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+public class AsyncLogQueue {
+	public enum Backpressure { BLOCK, DROP, SAMPLE }
+
+	private final int mask;
+	private final AtomicReferenceArray<LoggingEvent> events;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong();   // next slot to write
+	private final AtomicLong tail = new AtomicLong();   // next slot to drain
+	private final AtomicLong written = new AtomicLong(); // events the appenders are done with
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong overflow = new AtomicLong();
+	private final Logger logger;
+	private final Backpressure backpressure;
+	private final int sampleRate;
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	public AsyncLogQueue(Logger logger, int capacity, Backpressure backpressure, int sampleRate) {
+		// round the capacity up to a power of two so a slot is just (seq & mask):
+		int size = 2;
+		while(size < capacity) { size <<= 1; }
+		this.mask = size - 1;
+		this.events = new AtomicReferenceArray<LoggingEvent>(size);
+		this.sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.logger = logger;
+		this.backpressure = backpressure;
+		this.sampleRate = (sampleRate < 1) ? 1 : sampleRate;
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				drainLoop();
+			}
+		}, "chronessan-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * queue an event for the writer thread.  Returns false if it was dropped.
+	 */
+	public boolean offer(LoggingEvent event) {
+		if(tryOffer(event)) {
+			return true;
+		}
+
+		if(backpressure == Backpressure.DROP
+			|| (backpressure == Backpressure.SAMPLE && overflow.incrementAndGet() % sampleRate != 0)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		// wait for the writer to make room:
+		int spins = 0;
+		while(!tryOffer(event)) {
+			if(!running) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			if(++spins < 100) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * wait (up to timeoutMillis) until everything queued before this call has
+	 * been written.  Returns false if it timed out.
+	 */
+	public boolean flush(long timeoutMillis) {
+		long target = head.get();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while(written.get() < target) {
+			if(!writer.isAlive() || System.nanoTime() > deadline) {
+				return false;
+			}
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+		}
+		return true;
+	}
+
+	// flush, then stop the writer thread:
+	public void shutdown(long timeoutMillis) {
+		flush(timeoutMillis);
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public int size() {
+		return (int) (head.get() - tail.get());
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	private boolean tryOffer(LoggingEvent event) {
+		long pos = head.get();
+		while(true) {
+			int slot = (int) pos & mask;
+			long seq = sequences.get(slot);
+			long diff = seq - pos;
+			if(diff == 0) {
+				if(head.compareAndSet(pos, pos + 1)) {
+					events.lazySet(slot, event);
+					// publishing the sequence is what hands the slot to the writer:
+					sequences.set(slot, pos + 1);
+					LockSupport.unpark(writer);
+					return true;
+				}
+				pos = head.get();
+			} else if(diff < 0) {
+				return false; // full
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	// single consumer, so no CAS needed on the tail:
+	private LoggingEvent poll() {
+		long pos = tail.get();
+		int slot = (int) pos & mask;
+		if(sequences.get(slot) != pos + 1) {
+			return null;
+		}
+		LoggingEvent event = events.get(slot);
+		events.lazySet(slot, null);
+		sequences.set(slot, pos + mask + 1);
+		tail.set(pos + 1);
+		return event;
+	}
+
+	private void drainLoop() {
+		long reportedDrops = 0;
+		while(running || size() > 0) {
+			LoggingEvent event = poll();
+			if(event == null) {
+				reportedDrops = reportDrops(reportedDrops);
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+				continue;
+			}
+			try {
+				logger.callAppenders(event);
+			} catch (RuntimeException e) {
+				// an appender blew up; don't let it take the writer thread with it
+				System.err.println("log writer: "+e.getMessage());
+			} finally {
+				// the slot was freed by poll(), but flush() waits for this:
+				written.set(written.get() + 1);
+			}
+		}
+		reportDrops(reportedDrops);
+	}
+	
+	private long reportDrops(long reportedDrops) {
+		long drops = dropped.get();
+		if(drops > reportedDrops) {
+			logger.callAppenders(new LoggingEvent(AsyncLogQueue.class.getName(), logger, Level.WARN,
+				"log queue full, dropped "+(drops - reportedDrops)+" messages", null));
+		}
+		return drops;
+	}
+}
@@ -0,0 +1,200 @@
+// who the current thread is working for: a task id (put in the log4j MDC as
+// "task", so layouts can show it with %X{task}) and where its warnings go.
+//
+// A task's warnings go to its own WarningStore, if it has one, and to the
+// stores of the tasks it was started from, so a job's report has the warnings
+// of its subtasks while each subtask can still report on its own.  With no
+// context (or no store anywhere up the chain) warnings go to the store given
+// to Wrapper.setWarningStore(), as before.
+//
+// Contexts don't follow work onto other threads by themselves; wrap() the
+// Runnable or Callable, or enter() the context on the other side:
+//
+//   LogContext task = LogContext.task("import", new WarningStore(100));
+//   try (LogContext.Scope ignored = task.enter()) {
+//       pool.submit(LogContext.wrap(() -> importFile(f)));
+//   }
+//   log(task.getWarnings().count()+" warnings in the import");
+package com.dynamodan.loghelper;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.MDC;
+
+public class LogContext {
+	public static final String TASK = "task";
+
+	private static final ThreadLocal<LogContext> current = new ThreadLocal<LogContext>();
+	private static final ConcurrentHashMap<String, AtomicLong> sequences = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final LogContext parent;
+	private final String taskId;
+	private final WarningStore warnings;
+	private final AtomicLong children = new AtomicLong();
+	// the rest of the MDC where the context was made, to carry to other threads:
+	private final Hashtable<String, Object> mdc;
+
+	// undoes an enter():
+	public interface Scope extends AutoCloseable {
+		void close();
+	}
+
+	protected LogContext(LogContext parent, String taskId, WarningStore warnings) {
+		this.parent = parent;
+		this.taskId = taskId;
+		this.warnings = warnings;
+		this.mdc = mdcCopy();
+		this.mdc.remove(TASK);
+	}
+
+	/**
+	 * the context bound to this thread, or null
+	 */
+	public static LogContext current() {
+		return current.get();
+	}
+
+	/**
+	 * a new task under the current one (if any), numbered per name: import-1,
+	 * import-2...  warnings may be null to only pass them up.
+	 */
+	public static LogContext task(String name, WarningStore warnings) {
+		AtomicLong seq = sequences.computeIfAbsent(name, k -> new AtomicLong());
+		return new LogContext(current(), name+"-"+seq.incrementAndGet(), warnings);
+	}
+
+	/**
+	 * a subtask of this one, numbered within it: import-1.1, import-1.2...
+	 */
+	public LogContext child(WarningStore warnings) {
+		String id = (taskId == null) ? String.valueOf(children.incrementAndGet()) : taskId+"."+children.incrementAndGet();
+		return new LogContext(this, id, warnings);
+	}
+
+	// just a warning store, without a task id (see Wrapper.bindWarningStore()):
+	static LogContext forStore(WarningStore warnings) {
+		return new LogContext(null, null, warnings);
+	}
+
+	/**
+	 * make this the current thread's context until the returned scope is closed,
+	 * when whatever was there before comes back
+	 */
+	public Scope enter() {
+		final LogContext previous = current.get();
+		final Hashtable<String, Object> previousMdc = mdcCopy();
+		current.set(this);
+		for(Map.Entry<String, Object> e : mdc.entrySet()) {
+			MDC.put(e.getKey(), e.getValue());
+		}
+		if(taskId != null) {
+			MDC.put(TASK, taskId);
+		} else {
+			MDC.remove(TASK);
+		}
+		return new Scope() {
+			public void close() {
+				if(previous == null) {
+					current.remove();
+				} else {
+					current.set(previous);
+				}
+				MDC.clear();
+				for(Map.Entry<String, Object> e : previousMdc.entrySet()) {
+					MDC.put(e.getKey(), e.getValue());
+				}
+			}
+		};
+	}
+
+	/**
+	 * r, run in the calling thread's current context wherever it ends up running
+	 */
+	public static Runnable wrap(final Runnable r) {
+		final LogContext context = current();
+		if(context == null) {
+			return r;
+		}
+		return new Runnable() {
+			public void run() {
+				Scope scope = context.enter();
+				try {
+					r.run();
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	public static <T> Callable<T> wrap(final Callable<T> c) {
+		final LogContext context = current();
+		if(context == null) {
+			return c;
+		}
+		return new Callable<T>() {
+			public T call() throws Exception {
+				Scope scope = context.enter();
+				try {
+					return c.call();
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	public String getTaskId() {
+		return taskId;
+	}
+
+	public LogContext getParent() {
+		return parent;
+	}
+
+	// this task's own warnings, or null if it passes them all up:
+	public WarningStore getWarnings() {
+		return warnings;
+	}
+
+	/**
+	 * add a warning to this task's store and those of the tasks above it (each
+	 * store once).  False if none of them has a store.
+	 */
+	boolean addWarning(WarningStore.Entry entry) {
+		// chains are short, so a list does for the stores already done (by identity):
+		List<WarningStore> added = new ArrayList<WarningStore>(4);
+		for(LogContext c = this; c != null; c = c.parent) {
+			if(c.warnings != null && !containsStore(added, c.warnings)) {
+				c.warnings.add(entry);
+				added.add(c.warnings);
+			}
+		}
+		return !added.isEmpty();
+	}
+
+	private static boolean containsStore(List<WarningStore> stores, WarningStore store) {
+		for(WarningStore s : stores) {
+			if(s == store) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String toString() {
+		return (taskId == null) ? "(no task)" : taskId;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Hashtable<String, Object> mdcCopy() {
+		Hashtable<String, Object> context = MDC.getContext();
+		return (context == null) ? new Hashtable<String, Object>() : new Hashtable<String, Object>(context);
+	}
+}
@@ -0,0 +1,243 @@
+// collapses floods of repeated log messages.  Messages are grouped by
+// template (the message with its numbers blanked out, so "row 1" and
+// "row 2" count as repeats), and each template gets up to `burst` messages
+// through per `window` ms.  The rest are only counted, and sweep() turns
+// the counts into "[repeated N times]" summaries of the template, which
+// Wrapper does on a timer.  Templates that have gone quiet are forgotten by
+// the sweep, and by allow() too once a window, so a stream of one-off
+// messages can't make the map grow without a sweep.
+//
+// With a burst of 0 (the default) only the same message logged again and
+// again in a row is collapsed, as the log always did: the copies are counted
+// and "[repeated N times]" goes out before the next different message (see
+// endedRun()).  A negative burst turns suppression off altogether.
+//
+// Threads hammering the same template only read the entry's emitted count
+// and bump a striped LongAdder, so they don't fight over one field the way
+// the old lastLogString/repeatCount pair did.
+package com.dynamodan.loghelper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RepeatSuppressor {
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile int burst;
+	private volatile long window;
+	private volatile long lastExpiry = System.currentTimeMillis();
+	
+	// with a burst of 0, the message logged last and how often it has come again since:
+	private final AtomicReference<Run> run = new AtomicReference<Run>();
+	private final ConcurrentLinkedQueue<String> ended = new ConcurrentLinkedQueue<String>();
+
+	public RepeatSuppressor(int burst, long window) {
+		this.burst = burst;
+		this.window = window;
+	}
+
+	/**
+	 * whether to log this message now.  false means it was counted for the next summary.
+	 */
+	public boolean allow(String message) {
+		int b = burst;
+		if(b < 0) {
+			return true;
+		}
+		if(b == 0) {
+			return allowConsecutive(message);
+		}
+
+		String key = template(message);
+		long now = System.currentTimeMillis();
+		Entry e = entries.get(key);
+		if(e == null) {
+			if(now - lastExpiry >= window) {
+				lastExpiry = now;
+				expire(now);
+			}
+			Entry fresh = new Entry(key);
+			e = entries.putIfAbsent(key, fresh);
+			if(e == null) {
+				e = fresh;
+			}
+		}
+
+		if(now - e.windowStart >= window) {
+			// start a new window.  Two threads doing this at once just reset it twice.
+			e.windowStart = now;
+			e.emitted.set(0);
+		}
+
+		if(e.emitted.get() < burst && e.emitted.incrementAndGet() <= burst) {
+			return true;
+		}
+		e.suppressed.increment();
+		return false;
+	}
+
+	// a repeat of the message before it is only counted:
+	private boolean allowConsecutive(String message) {
+		while(true) {
+			Run last = run.get();
+			if(last != null && last.message.equals(message)) {
+				if(last.repeat()) {
+					return false;
+				}
+				// ended by another thread just now, go round again
+				continue;
+			}
+			if(run.compareAndSet(last, new Run(message))) {
+				if(last != null) {
+					last.end(ended);
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * with a burst of 0: the "[repeated N times]" line for a run of the same
+	 * message that a different one has just ended, to log before that one.  null if none.
+	 */
+	public String endedRun() {
+		return ended.poll();
+	}
+
+	/**
+	 * the summaries for everything suppressed since the last sweep, and
+	 * forget templates that have gone quiet
+	 */
+	public List<String> sweep() {
+		List<String> summaries = new ArrayList<String>();
+		String line;
+		while((line = ended.poll()) != null) {
+			summaries.add(line);
+		}
+		// a run still going is summarized now, and the next copy starts a new one:
+		Run last = run.get();
+		if(last != null && run.compareAndSet(last, null)) {
+			last.end(summaries);
+		}
+		long stale = System.currentTimeMillis() - 2 * window;
+		Iterator<Entry> it = entries.values().iterator();
+		while(it.hasNext()) {
+			Entry e = it.next();
+			long count = e.suppressed.sumThenReset();
+			if(count > 0) {
+				summaries.add(e.template+" [repeated "+count+" times]");
+			} else if(e.windowStart < stale) {
+				it.remove();
+			}
+		}
+		return summaries;
+	}
+
+	// drop the templates that have nothing waiting to be summarized and haven't been seen for two windows:
+	private void expire(long now) {
+		long stale = now - 2 * window;
+		Iterator<Entry> it = entries.values().iterator();
+		while(it.hasNext()) {
+			Entry e = it.next();
+			if(e.windowStart < stale && e.suppressed.sum() == 0) {
+				it.remove();
+			}
+		}
+	}
+
+	public void setBurst(int burst) {
+		this.burst = burst;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	// the message with each run of digits replaced by '#'.  Messages without
+	// digits are their own template, which saves building a new string.
+	static String template(String message) {
+		int len = message.length();
+		int first = -1;
+		for(int i = 0; i < len; i++) {
+			char ch = message.charAt(i);
+			if(ch >= '0' && ch <= '9') {
+				first = i;
+				break;
+			}
+		}
+		if(first < 0) {
+			return message;
+		}
+
+		StringBuilder sb = new StringBuilder(len);
+		sb.append(message, 0, first);
+		boolean inDigits = false;
+		for(int i = first; i < len; i++) {
+			char ch = message.charAt(i);
+			if(ch >= '0' && ch <= '9') {
+				if(!inDigits) {
+					sb.append('#');
+					inDigits = true;
+				}
+			} else {
+				sb.append(ch);
+				inDigits = false;
+			}
+		}
+		return sb.toString();
+	}
+
+	static class Run {
+		final String message;
+		// copies since it was logged, or -1 once ended:
+		final AtomicLong repeats = new AtomicLong();
+
+		Run(String message) {
+			this.message = message;
+		}
+
+		// false if the run has already ended:
+		boolean repeat() {
+			long n;
+			while((n = repeats.get()) >= 0) {
+				if(repeats.compareAndSet(n, n + 1)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void end(Collection<String> summaries) {
+			long n = repeats.getAndSet(-1);
+			if(n > 0) {
+				summaries.add(message+" [repeated "+n+" times]");
+			}
+		}
+	}
+
+	static class Entry {
+		final String template;
+		final AtomicInteger emitted = new AtomicInteger();
+		final LongAdder suppressed = new LongAdder();
+		volatile long windowStart = System.currentTimeMillis();
+
+		Entry(String template) {
+			this.template = template;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+// collects the warnings logged through Wrapper.warning() so they can be
+// counted and mailed out at the end of a run.  It keeps the most recent
+// `capacity` warnings in a ring, plus a running total and a count per
+// category (the message with its numbers blanked out), so a job that warns
+// 100k times still reports how many and what kinds without holding on to
+// all of them.
+package com.dynamodan.loghelper;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class WarningStore {
+	// past this many categories, new ones are lumped together:
+	private static final int MAX_CATEGORIES = 1000;
+	private static final String OTHER = "(other)";
+
+	private volatile AtomicReferenceArray<Entry> ring;
+	private final AtomicLong total = new AtomicLong();
+	private final ConcurrentHashMap<String, LongAdder> categories = new ConcurrentHashMap<String, LongAdder>();
+	// adds share it, and setCapacity() and clear() take it alone to swap the ring:
+	private final ReentrantReadWriteLock swap = new ReentrantReadWriteLock();
+
+	public WarningStore(int capacity) {
+		this.ring = new AtomicReferenceArray<Entry>(Math.max(capacity, 1));
+	}
+
+	public static class Entry {
+		public final long timestamp;
+		public final String level;
+		public final String source;
+		public final String category;
+		public final String message;
+		public final String pid;
+
+		public Entry(long timestamp, String level, String source, String category, String message, String pid) {
+			this.timestamp = timestamp;
+			this.level = level;
+			this.source = source;
+			this.category = category;
+			this.message = message;
+			this.pid = pid;
+		}
+
+		public String toString() {
+			return format(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+		}
+
+		// like a line of the log file:
+		public String format(SimpleDateFormat sdf) {
+			return sdf.format(new Date(timestamp))+" ["+pid+"] "+source+" "+message;
+		}
+	}
+
+	public void add(String level, String source, String message, String pid) {
+		add(new Entry(System.currentTimeMillis(), level, source, RepeatSuppressor.template(message), message, pid));
+	}
+
+	public void add(Entry entry) {
+		swap.readLock().lock();
+		try {
+			AtomicReferenceArray<Entry> r = ring;
+			long seq = total.getAndIncrement();
+			r.set((int) (seq % r.length()), entry);
+		} finally {
+			swap.readLock().unlock();
+		}
+
+		LongAdder count = categories.get(entry.category);
+		if(count == null) {
+			String key = (categories.size() < MAX_CATEGORIES) ? entry.category : OTHER;
+			count = categories.computeIfAbsent(key, k -> new LongAdder());
+		}
+		count.increment();
+	}
+
+	// how many warnings have been added, including any that have rolled out of the ring:
+	public long count() {
+		return total.get();
+	}
+
+	public boolean isEmpty() {
+		return total.get() == 0;
+	}
+
+	public int capacity() {
+		return ring.length();
+	}
+
+	/**
+	 * the warnings still held, oldest first
+	 */
+	public List<Entry> entries() {
+		AtomicReferenceArray<Entry> r = ring;
+		long end = total.get();
+		long start = Math.max(0, end - r.length());
+		List<Entry> list = new ArrayList<Entry>((int) (end - start));
+		for(long seq = start; seq < end; seq++) {
+			Entry e = r.get((int) (seq % r.length()));
+			if(e != null) {
+				list.add(e);
+			}
+		}
+		return list;
+	}
+
+	// category -> count, most frequent first:
+	public Map<String, Long> categoryCounts() {
+		List<Map.Entry<String, LongAdder>> sorted = new ArrayList<Map.Entry<String, LongAdder>>(categories.entrySet());
+		sorted.sort((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()));
+		LinkedHashMap<String, Long> counts = new LinkedHashMap<String, Long>();
+		for(Map.Entry<String, LongAdder> e : sorted) {
+			counts.put(e.getKey(), e.getValue().sum());
+		}
+		return counts;
+	}
+
+	// keep a different number of warnings, the most recent of those held so far included:
+	public void setCapacity(int capacity) {
+		capacity = Math.max(capacity, 1);
+		swap.writeLock().lock();
+		try {
+			if(capacity == ring.length()) {
+				return;
+			}
+			List<Entry> kept = entries();
+			AtomicReferenceArray<Entry> r = new AtomicReferenceArray<Entry>(capacity);
+			long end = total.get();
+			int from = Math.max(0, kept.size() - r.length());
+			for(int i = from; i < kept.size(); i++) {
+				long seq = end - kept.size() + i;
+				r.set((int) (seq % r.length()), kept.get(i));
+			}
+			ring = r;
+		} finally {
+			swap.writeLock().unlock();
+		}
+	}
+
+	public void clear() {
+		swap.writeLock().lock();
+		try {
+			ring = new AtomicReferenceArray<Entry>(ring.length());
+			total.set(0);
+			categories.clear();
+		} finally {
+			swap.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * a plain text summary for the report mail: the totals by category, then
+	 * the warnings still held
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		long count = count();
+		List<Entry> list = entries();
+		Map<String, Long> counts = categoryCounts();
+
+		if(count > list.size() || counts.size() < list.size()) {
+			sb.append(count).append(" warnings in ").append(counts.size()).append(" categories:\n");
+			for(Map.Entry<String, Long> e : counts.entrySet()) {
+				sb.append(String.format("%8d  %s%n", e.getValue(), e.getKey()));
+			}
+			sb.append('\n');
+			if(count > list.size()) {
+				sb.append("The last ").append(list.size()).append(" of them:\n\n");
+			}
+		}
+
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		for(Entry e : list) {
+			sb.append(e.format(sdf)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public String toString() {
+		return format();
+	}
+}
@@ -6,18 +6,42 @@
 package com.dynamodan.loghelper;
 
 import org.apache.log4j.*;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
 import org.apache.commons.cli.*;
 import java.lang.management.*;
 import java.io.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.dynamodan.metrichelper.Counter;
+import com.dynamodan.metrichelper.Gauge;
+import com.dynamodan.metrichelper.Metrics;
 
 public class Wrapper {
 	private static Wrapper instance = null;
 	private static Logger LOG = Logger.getLogger(Wrapper.class);
-	private static StringWriter warnings = null;
-	private static CommandLine cmd = null;
-	private static WriterAppender wa = null;
-	private static String lastLogString = "";
-	private static Integer repeatCount = 0;
+	private static volatile StringWriter warnings = null;
+	private static volatile WarningStore warningStore = null;
+	// what bindWarningStore() has to undo, per thread:
+	private static final ThreadLocal<LogContext.Scope> bound = new ThreadLocal<LogContext.Scope>();
+	private static volatile CommandLine cmd = null;
+	// the appender for the current setCallerWriter() writer:
+	private static volatile WarningAppender wa = null;
+	private static final RepeatSuppressor repeats = new RepeatSuppressor(0, 1000);
+	private static ScheduledExecutorService repeatTimer = null;
+	private static final String FQCN = Wrapper.class.getCanonicalName();
+	
+	// set when logging asynchronously, see startAsync():
+	private static volatile AsyncLogQueue async = null;
+	private static volatile boolean asyncLocation = true;
+	private static Thread flushHook = null;
+	
+	private static final Counter logged = Metrics.counter("log.messages");
+	private static final Counter warned = Metrics.counter("log.warnings");
+	private static final Counter suppressed = Metrics.counter("log.suppressed");
 	
 	
 	public static void logSetup() {
@@ -63,7 +87,7 @@ public class Wrapper {
 	
 	public static Wrapper getInstance() {
 		if(instance == null) {
-			Wrapper instance = new Wrapper();
+			instance = new Wrapper();
 			instance.logSetup();
 		}
 		return instance;
@@ -82,37 +106,81 @@ public class Wrapper {
 		return instance;
 	}
 	
+	// collect warnings into this store, for reporting at the end of a run:
+	public void setWarningStore(WarningStore store) {
+		Wrapper.warningStore = store;
+	}
+	
+	// where a warning logged on this thread would go first (see LogContext):
+	public static WarningStore getWarningStore() {
+		for(LogContext c = LogContext.current(); c != null; c = c.getParent()) {
+			if(c.getWarnings() != null) {
+				return c.getWarnings();
+			}
+		}
+		return warningStore;
+	}
+	
+	/**
+	 * send the warnings logged on this thread to their own store until
+	 * unbindWarningStore().  A LogContext does the same with a task id, and
+	 * can pass the warnings on to a parent task too.
+	 */
+	public static void bindWarningStore(WarningStore store) {
+		unbindWarningStore();
+		bound.set(LogContext.forStore(store).enter());
+	}
+	
+	public static void unbindWarningStore() {
+		LogContext.Scope scope = bound.get();
+		if(scope != null) {
+			bound.remove();
+			scope.close();
+		}
+	}
+	
+	// also copy warnings into this writer as text, one per "|||", or stop with null.
+	// It grows with every warning; setWarningStore() keeps just the last few:
 	public void setCallerWriter(StringWriter callerWriter) {
-		this.warnings = callerWriter;
+		Wrapper.warnings = callerWriter;
 	}
 	
 	public void setCmd(CommandLine callerCmd) {
-		this.cmd = callerCmd;
+		Wrapper.cmd = callerCmd;
 	}
 	
 	
 	public static void log(String message) {
 		//Wrapper inst = getInstance();
-		if(lastLogString.equals(message)) {
-			repeatCount++;
-		} else {
-			if(repeatCount > 0) {
-				LOG.log(Level.INFO, lastLogString+" [repeated "+repeatCount+" times]", null);
-				repeatCount = 0;
+		if(repeats.allow(message)) {
+			String ended = repeats.endedRun();
+			if(ended != null) {
+				dispatch(Level.INFO, ended);
 			}
-			LOG.log(Wrapper.class.getCanonicalName(), Level.INFO, message, null);
-			lastLogString = message;
+			dispatch(Level.INFO, message);
+		} else {
+			suppressed.inc();
 		}
 	}
 	
+	// let at most burst messages of the same shape through every window ms, and
+	// summarize the rest as "[repeated N times]".  A burst of 0 (the default) only
+	// collapses the same message repeated in a row, and a negative one logs everything.
+	public static void setRepeatLimit(int burst, long window) {
+		repeats.setBurst(burst);
+		repeats.setWindow(window);
+		startRepeatTimer(burst > 0);
+	}
+	
 	public static void log(Object obj) {
 		log(obj.toString());
 	}
 	
 	public static void debug (String msg) {
-		if(getInstance().cmd == null) { return; }
-		if(cmd.hasOption("debug")) {
-			LOG.log(Wrapper.class.getCanonicalName(), Level.INFO, msg, null);
+		CommandLine c = cmd;
+		if(c == null) { return; }
+		if(c.hasOption("debug")) {
+			dispatch(Level.INFO, msg);
 		}
 	}
 	
@@ -125,28 +193,202 @@ public class Wrapper {
 	}
 
 	public static void warning (String msg) {
-		Wrapper inst = getInstance();
-		if(inst.warnings == null) { return; }
-		if(inst.wa == null) {
-			Logger rl = LogManager.getRootLogger();
-			Appender fa = rl.getAppender("FA");
-			PatternLayout appenderLayout = (PatternLayout) fa.getLayout();
-			String warnPattern = appenderLayout.getConversionPattern() + "|||";
-			PatternLayout warnLayout = new PatternLayout();
-			warnLayout.setConversionPattern(warnPattern);
-			wa = new WriterAppender(warnLayout, warnings);
-			rl.addAppender(wa);
+		warned.inc();
+		LogContext context = LogContext.current();
+		WarningStore store = warningStore;
+		StringWriter writer = warnings;
+		if(context == null && store == null && writer == null) { return; }
+		
+		// the warning is collected straight away on this thread; nothing is
+		// attached to a logger, so there's no threshold to flip around, and
+		// nothing shared to lock but the stores themselves:
+		LoggingEvent event = new LoggingEvent(FQCN, LOG, Level.INFO, msg, null);
+		if(context != null || store != null) {
+			LocationInfo where = event.getLocationInformation();
+			Object pid = event.getMDC("PID");
+			Object task = event.getMDC(LogContext.TASK);
+			WarningStore.Entry entry = new WarningStore.Entry(System.currentTimeMillis(), "WARN", where.getFileName()+":"+where.getLineNumber(),
+				RepeatSuppressor.template(msg), msg, ((pid == null) ? "" : pid.toString()) + ((task == null) ? "" : " "+task));
+			// a task's warnings go to its own store (and its parents'), anything else to the program's:
+			if((context == null || !context.addWarning(entry)) && store != null) {
+				store.add(entry);
+			}
+		}
+		if(writer != null) {
+			warningAppender(writer).doAppend(event);
 		}
 		
-		inst.wa.setThreshold(Level.ALL);
-		LOG.log(Wrapper.class.getCanonicalName(), Level.INFO, msg, null);
-		inst.wa.setThreshold(Level.OFF);
+		if(LOG.isEnabledFor(Level.INFO)) {
+			dispatch(event);
+		}
+	}
+	
+	/**
+	 * log through a background writer thread from now on, so callers don't wait
+	 * on the appenders.  backpressure is what to do when the queue is full:
+	 * "block", "drop", or "sample" (keep one in sampleRate).  Set location to
+	 * false if the log layouts don't use %F, %L, %C or %M, which saves
+	 * working out the caller for each message.
+	 */
+	public static synchronized void startAsync(int capacity, String backpressure, int sampleRate, boolean location) {
+		AsyncLogQueue.Backpressure bp = AsyncLogQueue.Backpressure.BLOCK;
+		if(backpressure != null) {
+			try {
+				bp = AsyncLogQueue.Backpressure.valueOf(backpressure.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.out.println("Unknown log backpressure setting "+backpressure+", using block");
+			}
+		}
 		
-		// self.warnings.add(msg);
+		stopAsync();
+		asyncLocation = location;
+		async = new AsyncLogQueue(LOG, capacity, bp, sampleRate);
+		Metrics.gauge("log.queued", new Gauge() {
+			public double value() {
+				AsyncLogQueue q = async;
+				return (q == null) ? 0 : q.size();
+			}
+		});
+		Metrics.gauge("log.dropped", new Gauge() {
+			public double value() {
+				return getDroppedCount();
+			}
+		});
+		
+		if(flushHook == null) {
+			// whatever is still queued gets written out before the jvm goes away:
+			flushHook = new Thread(new Runnable() {
+				public void run() {
+					stopAsync();
+				}
+			}, "chronessan-log-flush");
+			Runtime.getRuntime().addShutdownHook(flushHook);
+		}
+	}
+	
+	// back to logging on the caller's thread, after writing out anything queued:
+	public static synchronized void stopAsync() {
+		logRepeats();
+		AsyncLogQueue q = async;
+		if(q != null) {
+			async = null;
+			q.shutdown(5000);
+		}
+	}
+	
+	// wait until everything logged so far has reached the appenders:
+	public static boolean flush() {
+		logRepeats();
+		AsyncLogQueue q = async;
+		return (q == null) || q.flush(5000);
+	}
+	
+	public static boolean isAsync() {
+		return async != null;
+	}
+	
+	public static long getDroppedCount() {
+		AsyncLogQueue q = async;
+		return (q == null) ? 0 : q.getDroppedCount();
+	}
+	
+	private static void dispatch(Level level, String message) {
+		if(!LOG.isEnabledFor(level)) { return; }
+		logged.inc();
+		if(async == null) {
+			LOG.log(FQCN, level, message, null);
+			return;
+		}
+		dispatch(new LoggingEvent(FQCN, LOG, level, message, null));
+	}
+	
+	// hand an event to the appenders, or to the writer thread when async:
+	private static void dispatch(LoggingEvent event) {
+		AsyncLogQueue q = async;
+		if(q == null) {
+			LOG.callAppenders(event);
+			return;
+		}
+		
+		// log4j reads these lazily from the current thread, so they have to be
+		// filled in before the event changes threads:
+		event.getThreadName();
+		event.getNDC();
+		event.getMDCCopy();
+		if(asyncLocation) {
+			event.getLocationInformation();
+		}
+		q.offer(event);
+	}
+	
+	private static void logRepeats() {
+		for(String summary : repeats.sweep()) {
+			dispatch(Level.INFO, summary);
+		}
+	}
+	
+	// the sweep that logs the summaries also forgets templates that have gone
+	// quiet, so it runs for as long as suppression is on, at the window's pace:
+	private static synchronized void startRepeatTimer(boolean on) {
+		if(repeatTimer != null) {
+			repeatTimer.shutdownNow();
+			repeatTimer = null;
+			logRepeats();
+		}
+		if(!on) {
+			return;
+		}
+		repeatTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "chronessan-log-repeats");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(repeats.getWindow(), 100);
+		repeatTimer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				logRepeats();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	// the appender that copies warnings into a setCallerWriter() writer, formatted like the log file.
+	// Only a new writer takes the lock, to make its appender:
+	private static WriterAppender warningAppender(StringWriter writer) {
+		WarningAppender current = wa;
+		if(current != null && current.writer == writer) {
+			return current.appender;
+		}
+		synchronized(Wrapper.class) {
+			current = wa;
+			if(current == null || current.writer != writer) {
+				String warnPattern = "%d{yyyy-MM-dd HH:mm:ss} [%X{PID}] %F:%L %m%n";
+				Appender fa = LogManager.getRootLogger().getAppender("FA");
+				if(fa != null && fa.getLayout() instanceof PatternLayout) {
+					warnPattern = ((PatternLayout) fa.getLayout()).getConversionPattern();
+				}
+				PatternLayout warnLayout = new PatternLayout();
+				warnLayout.setConversionPattern(warnPattern + "|||");
+				current = new WarningAppender(writer, new WriterAppender(warnLayout, writer));
+				wa = current;
+			}
+			return current.appender;
+		}
+	}
+	
+	private static class WarningAppender {
+		final StringWriter writer;
+		final WriterAppender appender;
+		
+		WarningAppender(StringWriter writer, WriterAppender appender) {
+			this.writer = writer;
+			this.appender = appender;
+		}
 	}
 
 	
-	private static String getPID() {
+	public static String getPID() {
 	  // RuntimeMXBean rt = ManagementFactory.getRuntimeMXBean();
 	  // return rt.getName();
 	  String fn = "";
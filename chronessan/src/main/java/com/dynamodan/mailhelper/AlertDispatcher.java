@@ -0,0 +1,465 @@
+// sends alert mails from a background thread, so a slow or unreachable smtp
+// host can't hold up the end of a run.  Alerts are first written to a small
+// spool directory, then a sender thread picks them up, groups them by
+// recipient into one digest each, and sends them over a single reused smtp
+// connection.  Anything that doesn't get sent before the process exits (the
+// host is down, or the recipient got mail too recently) stays in the spool
+// and goes out when the next run starts, whether or not that run has
+// anything to report.
+//
+// Point the smtp host and port at a local stand-in (or hand in your own
+// javax.mail Session) to try it out without a real mail server.
+package com.dynamodan.mailhelper;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.*;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import static com.dynamodan.loghelper.Wrapper.log;
+import static com.dynamodan.loghelper.Wrapper.debug;
+
+public class AlertDispatcher {
+	private static final String SUFFIX = ".alert";
+	private static final String RATE_FILE = "sent.properties";
+	private static final String LOCK_FILE = ".lock";
+
+	private final Session session;
+	private final File spool;
+	private volatile long minInterval = 0;          // ms between mails to one recipient
+	private volatile long maxAge = TimeUnit.DAYS.toMillis(7);
+	private final Object signal = new Object();
+	// the spool files this process submitted and hasn't seen sent yet:
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+	private volatile boolean wake = false;
+	private volatile boolean held = false;
+	// what the last pass found, published as held once the spool lock is let go:
+	private boolean rateLimited = false;
+	private Transport transport = null;
+	private Thread sender = null;
+
+	public AlertDispatcher(Session session, File spool) {
+		this.session = session;
+		this.spool = spool;
+		if(!spool.isDirectory() && !spool.mkdirs()) {
+			log("Can't create alert spool directory "+spool.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * a session for host:port, with auth if pass isn't null.  Connect and read
+	 * timeouts are kept short so a dead host gives up quickly.
+	 */
+	public static Session createSession(String host, Object port, final String user, final String pass, boolean debug) {
+		Properties properties = new Properties();
+		properties.put("mail.smtp.host", host);
+		if(port != null) {
+			properties.put("mail.smtp.port", port.toString());
+		}
+		properties.put("mail.smtp.connectiontimeout", "10000");
+		properties.put("mail.smtp.timeout", "10000");
+		properties.put("mail.smtp.writetimeout", "10000");
+
+		Session session;
+		if(pass != null) {
+			properties.put("mail.smtp.auth", "true");
+			debug("getting smtp session with auth");
+			session = Session.getInstance(properties, new Authenticator() {
+				protected PasswordAuthentication getPasswordAuthentication() {
+					return new PasswordAuthentication(user, pass);
+				}
+			});
+		} else {
+			debug("getting smtp session without auth");
+			session = Session.getInstance(properties);
+		}
+		session.setDebug(debug);
+		return session;
+	}
+
+	// the least time between two mails to the same recipient; alerts in between wait in the spool:
+	public void setMinInterval(long seconds) {
+		this.minInterval = seconds * 1000;
+	}
+
+	// alerts that still haven't gone out after this long are given up on:
+	public void setMaxAge(long seconds) {
+		this.maxAge = seconds * 1000;
+	}
+
+	/**
+	 * spool an alert and wake the sender.  This only writes a small file, so it
+	 * returns right away no matter what the smtp host is doing.
+	 */
+	public void submit(String from, String to, String subject, String body) throws IOException {
+		spool(from, to, subject, body);
+		start();
+	}
+
+	// write an alert into the spool without waking the sender:
+	void spool(String from, String to, String subject, String body) throws IOException {
+		Properties alert = new Properties();
+		alert.setProperty("from", from);
+		alert.setProperty("to", to);
+		alert.setProperty("subject", subject);
+		alert.setProperty("body", body);
+		alert.setProperty("created", Long.toString(System.currentTimeMillis()));
+
+		// write it under a temp name and rename, so the sender never sees half a file:
+		File tmp = File.createTempFile("alert", ".tmp", spool);
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			alert.store(out, null);
+		} finally {
+			out.close();
+		}
+		File dest = new File(spool, System.currentTimeMillis()+"-"+tmp.getName().replace(".tmp", "")+SUFFIX);
+		Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		pending.add(dest.getName());
+	}
+
+	/**
+	 * send what earlier runs left in the spool, and have awaitDelivery() wait
+	 * for it along with this run's alerts.  Called at startup whether or not
+	 * this run has anything to say.
+	 */
+	public void resume() {
+		for(File f : spooled()) {
+			pending.add(f.getName());
+		}
+		start();
+	}
+
+	// send whatever is already spooled, e.g. left over from an earlier run:
+	public void start() {
+		synchronized(signal) {
+			wake = true;
+			if(sender == null || !sender.isAlive()) {
+				sender = new Thread(new Runnable() {
+					public void run() {
+						sendLoop();
+					}
+				}, "chronessan-alert-sender");
+				sender.setDaemon(true);
+				sender.start();
+			}
+			signal.notifyAll();
+		}
+	}
+
+	/**
+	 * wait up to timeoutMillis for this process's alerts to be sent.  Returns
+	 * false if some are still spooled, in which case they go with the next run.
+	 * Alerts held back by the rate limit don't wait for the timeout.
+	 */
+	public boolean awaitDelivery(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized(signal) {
+			while(!pending.isEmpty() && sender != null && sender.isAlive() && (wake || !held)) {
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0) {
+					break;
+				}
+				try {
+					signal.wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		if(!pending.isEmpty()) {
+			log(pending.size()+" alert(s) left in "+spool.getAbsolutePath()+" for the next run");
+			return false;
+		}
+		return true;
+	}
+
+	public File getSpool() {
+		return spool;
+	}
+
+	// keep sending until nothing is left that we're allowed to send:
+	private void sendLoop() {
+		try {
+			while(true) {
+				synchronized(signal) {
+					wake = false;
+					held = false;
+				}
+				rateLimited = false;
+				boolean more = sendSpooled();
+				if(!more) {
+					closeTransport();
+				}
+				synchronized(signal) {
+					held = more && rateLimited;
+					signal.notifyAll();
+					if(!wake) {
+						if(!more) {
+							// so that a start() from here on makes a new sender, rather than counting on this one:
+							sender = null;
+							break;
+						}
+						// something is waiting on a rate limit or a retry:
+						signal.wait(30000);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			closeTransport();
+			synchronized(signal) {
+				if(sender == Thread.currentThread()) {
+					sender = null;
+				}
+				signal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * one pass over the spool.  Returns true if alerts were left behind.
+	 */
+	private boolean sendSpooled() {
+		// another process could be working the same spool; only one of us sends at a time:
+		RandomAccessFile lockFile = null;
+		FileLock lock = null;
+		try {
+			lockFile = new RandomAccessFile(new File(spool, LOCK_FILE), "rw");
+			FileChannel channel = lockFile.getChannel();
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// another dispatcher in this jvm has it; file locks are per process
+				lock = null;
+			}
+			if(lock == null) {
+				debug("Alert spool "+spool+" is busy, leaving it for now");
+				return true;
+			}
+			return sendUnlocked();
+		} catch (IOException e) {
+			log("Can't work the alert spool "+spool+": "+e.getMessage());
+			return false;
+		} finally {
+			try {
+				if(lock != null) { lock.release(); }
+				if(lockFile != null) { lockFile.close(); }
+			} catch (IOException e) {
+				// nothing else to do
+			}
+		}
+	}
+
+	private boolean sendUnlocked() throws IOException {
+		File[] files = spooled();
+		if(files.length == 0) {
+			pending.clear();
+			return false;
+		}
+
+		// group by recipient, oldest first:
+		LinkedHashMap<String, List<Spooled>> byRecipient = new LinkedHashMap<String, List<Spooled>>();
+		long now = System.currentTimeMillis();
+		for(File f : files) {
+			Spooled s = Spooled.read(f);
+			if(s == null) {
+				continue;
+			}
+			if(now - s.created > maxAge) {
+				log("Giving up on alert "+f.getName()+" to "+s.to+": "+s.subject);
+				f.delete();
+				pending.remove(f.getName());
+				continue;
+			}
+			List<Spooled> list = byRecipient.get(s.to);
+			if(list == null) {
+				list = new ArrayList<Spooled>();
+				byRecipient.put(s.to, list);
+			}
+			list.add(s);
+		}
+
+		Properties sent = readRates();
+		boolean leftOver = false;
+		boolean failed = false;
+		for(Map.Entry<String, List<Spooled>> e : byRecipient.entrySet()) {
+			String to = e.getKey();
+			long last = Long.parseLong(sent.getProperty(to, "0"));
+			if(now - last < minInterval) {
+				debug("Holding "+e.getValue().size()+" alert(s) to "+to+" for a later digest");
+				leftOver = true;
+				continue;
+			}
+
+			try {
+				send(digest(e.getValue()));
+				for(Spooled s : e.getValue()) {
+					s.file.delete();
+					pending.remove(s.file.getName());
+				}
+				sent.setProperty(to, Long.toString(System.currentTimeMillis()));
+				writeRates(sent);
+				log("Sent "+e.getValue().size()+" alert(s) to "+to);
+			} catch (MessagingException me) {
+				log("Got an SMTP error sending alerts to "+to+", will retry: "+me.getMessage());
+				closeTransport();
+				leftOver = true;
+				failed = true;
+			}
+		}
+		// only the rate limit is keeping things back, so there's no point waiting on them:
+		rateLimited = leftOver && !failed;
+		return leftOver;
+	}
+
+	// the spooled alerts, oldest first:
+	private File[] spooled() {
+		File[] files = spool.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		if(files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	// one message for all of a recipient's alerts:
+	private MimeMessage digest(List<Spooled> alerts) throws MessagingException {
+		Spooled first = alerts.get(0);
+		MimeMessage message = new MimeMessage(session);
+		message.setFrom(new InternetAddress(first.from));
+		message.addRecipients(Message.RecipientType.TO, first.to);
+
+		if(alerts.size() == 1) {
+			message.setSubject(first.subject);
+			message.setText(first.body);
+			return message;
+		}
+
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		StringBuilder body = new StringBuilder();
+		body.append(alerts.size()).append(" alerts since ").append(sdf.format(new Date(first.created))).append(":\n\n");
+		for(Spooled s : alerts) {
+			body.append("==== ").append(sdf.format(new Date(s.created))).append("  ").append(s.subject).append(" ====\n\n");
+			body.append(s.body).append("\n\n");
+		}
+		message.setSubject("["+alerts.size()+" alerts] "+first.subject);
+		message.setText(body.toString());
+		return message;
+	}
+
+	// send over the open connection, opening it the first time:
+	private void send(MimeMessage message) throws MessagingException {
+		message.saveChanges();
+		if(transport == null || !transport.isConnected()) {
+			transport = session.getTransport("smtp");
+			transport.connect();
+		}
+		transport.sendMessage(message, message.getAllRecipients());
+	}
+
+	private void closeTransport() {
+		if(transport != null) {
+			try {
+				transport.close();
+			} catch (MessagingException e) {
+				// already gone
+			}
+			transport = null;
+		}
+	}
+
+	private Properties readRates() {
+		Properties sent = new Properties();
+		File f = new File(spool, RATE_FILE);
+		if(f.exists()) {
+			try {
+				InputStream in = new FileInputStream(f);
+				try {
+					sent.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				debug("Can't read "+f+": "+e.getMessage());
+			}
+		}
+		return sent;
+	}
+
+	private void writeRates(Properties sent) throws IOException {
+		File tmp = new File(spool, RATE_FILE+".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			sent.store(out, "last mail sent to each recipient, ms since epoch");
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(spool, RATE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// an alert read back out of the spool:
+	static class Spooled {
+		File file;
+		String from;
+		String to;
+		String subject;
+		String body;
+		long created;
+
+		static Spooled read(File f) {
+			Properties p = new Properties();
+			try {
+				InputStream in = new FileInputStream(f);
+				try {
+					p.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				log("Can't read spooled alert "+f+": "+e.getMessage());
+				return null;
+			}
+			Spooled s = new Spooled();
+			s.file = f;
+			s.from = p.getProperty("from");
+			s.to = p.getProperty("to");
+			s.subject = p.getProperty("subject", "");
+			s.body = p.getProperty("body", "");
+			try {
+				s.created = Long.parseLong(p.getProperty("created", "0"));
+			} catch (NumberFormatException e) {
+				s.created = f.lastModified();
+			}
+			if(s.from == null || s.to == null) {
+				log("Spooled alert "+f+" has no sender or recipient, dropping it");
+				f.delete();
+				return null;
+			}
+			return s;
+		}
+	}
+}
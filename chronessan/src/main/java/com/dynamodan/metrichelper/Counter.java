@@ -0,0 +1,31 @@
+// a count that any number of threads can bump without contending: the
+// LongAdder keeps a stripe of cells (one per busy thread, roughly) and only
+// adds them up when the count is read.
+package com.dynamodan.metrichelper;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter {
+	private final LongAdder count = new LongAdder();
+
+	public void inc() {
+		count.increment();
+	}
+
+	public void add(long n) {
+		count.add(n);
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	// the count so far, starting again from 0:
+	public long reset() {
+		return count.sumThenReset();
+	}
+
+	public String toString() {
+		return String.valueOf(count());
+	}
+}
@@ -0,0 +1,9 @@
+// a value that is read when the metrics are, rather than recorded as it
+// changes (a pool's open connections, a queue's length):
+//
+//   Metrics.gauge("db.mysql.idle", () -> pool.getIdleCount());
+package com.dynamodan.metrichelper;
+
+public interface Gauge {
+	double value();
+}
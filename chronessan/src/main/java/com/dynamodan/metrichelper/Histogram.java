@@ -0,0 +1,151 @@
+// the spread of a duration (in nanoseconds, by convention) recorded from any
+// number of threads without locking.  Like HdrHistogram, values are counted
+// in buckets that are exact below 64 and then split every power of two into
+// 32, so any percentile read back is within about 3% of the real one, from
+// nanoseconds up to centuries, in a fixed 15k of counters.
+//
+//   long start = System.nanoTime();
+//   ...
+//   Metrics.histogram("export.time").recordSince(start);
+package com.dynamodan.metrichelper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = 2 * SUB + (62 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * what the histogram held at one moment, to read percentiles from
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		public final long count;
+		public final long sum;
+		public final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public double mean() {
+			return (count == 0) ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * the value q (0 to 1) of the way up the recorded ones, e.g. 0.99 for the 99th percentile
+		 */
+		public long percentile(double q) {
+			long total = 0;
+			for(long c : counts) {
+				total += c;
+			}
+			if(total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(q * total));
+			long seen = 0;
+			for(int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if(seen >= rank) {
+					return Math.min(middle(i), max);
+				}
+			}
+			return max;
+		}
+	}
+
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long m;
+		while(value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// lost to another thread, look again
+		}
+	}
+
+	// the time since start (a System.nanoTime()):
+	public long recordSince(long start) {
+		long nanos = System.nanoTime() - start;
+		record(nanos);
+		return nanos;
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, count.sum(), sum.sum(), max.get());
+	}
+
+	// start again from nothing (a record() going on at the same time may be half counted):
+	public void reset() {
+		for(int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * one line: how many, the mean, median, 90th and 99th percentiles and the
+	 * longest, as times
+	 */
+	public String toString() {
+		Snapshot s = snapshot();
+		if(s.count == 0) {
+			return "n=0";
+		}
+		return "n="+s.count+"  mean="+Metrics.time((long) s.mean())+"  p50="+Metrics.time(s.percentile(0.5))
+			+"  p90="+Metrics.time(s.percentile(0.9))+"  p99="+Metrics.time(s.percentile(0.99))+"  max="+Metrics.time(s.max);
+	}
+
+	static int index(long value) {
+		if(value < 2 * SUB) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		long mantissa = value >>> (exponent - SUB_BITS);
+		return 2 * SUB + (exponent - SUB_BITS - 1) * SUB + (int) (mantissa - SUB);
+	}
+
+	// the smallest value counted in bucket i:
+	static long lowest(int i) {
+		if(i < 2 * SUB) {
+			return i;
+		}
+		int k = i - 2 * SUB;
+		int exponent = k / SUB + SUB_BITS + 1;
+		return (long) (k % SUB + SUB) << (exponent - SUB_BITS);
+	}
+
+	// the value bucket i stands for when read back:
+	static long middle(int i) {
+		if(i < 2 * SUB) {
+			return i;
+		}
+		int exponent = (i - 2 * SUB) / SUB + SUB_BITS + 1;
+		return lowest(i) + (1L << (exponent - SUB_BITS)) / 2;
+	}
+}
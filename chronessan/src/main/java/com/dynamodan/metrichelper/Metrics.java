@@ -0,0 +1,178 @@
+// the jvm's metrics, by name: counters, histograms of how long things took,
+// and gauges read on demand.  Looking a metric up costs a hash lookup, so code
+// on a hot path keeps the Counter or Histogram in a field:
+//
+//   private static final Counter rows = Metrics.counter("import.rows");
+//   ...
+//   rows.inc();
+//
+// Names are dotted, area first (db.mysql.wait, log.warnings).  summary()
+// is a table of them all for the log or a mail; registerJmx() shows them in
+// jconsole/VisualVM under com.dynamodan, and startReporting() hands the
+// summary to something (like the log) every so often.
+package com.dynamodan.metrichelper;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Metrics {
+	private static final ConcurrentHashMap<String, Object> registry = new ConcurrentHashMap<String, Object>();
+	private static ObjectName jmxName = null;
+	private static ScheduledExecutorService reporter = null;
+
+	protected Metrics() { }
+
+	/**
+	 * the counter called name, made the first time it's asked for
+	 */
+	public static Counter counter(String name) {
+		return get(name, Counter.class);
+	}
+
+	public static Histogram histogram(String name) {
+		return get(name, Histogram.class);
+	}
+
+	// read gauge whenever the metrics are; replaces any gauge of the same name:
+	public static void gauge(String name, Gauge gauge) {
+		Object previous = registry.put(name, gauge);
+		if(previous != null && !(previous instanceof Gauge)) {
+			registry.put(name, previous);
+			throw new IllegalArgumentException("metric "+name+" is a "+previous.getClass().getSimpleName()+", not a gauge");
+		}
+	}
+
+	public static void remove(String name) {
+		registry.remove(name);
+	}
+
+	// every metric, sorted by name:
+	public static Map<String, Object> all() {
+		return new TreeMap<String, Object>(registry);
+	}
+
+	/**
+	 * a line per metric: counts, gauge values, and for histograms the count,
+	 * mean, percentiles and longest
+	 */
+	public static String summary() {
+		Map<String, Object> metrics = all();
+		int width = 0;
+		for(String name : metrics.keySet()) {
+			width = Math.max(width, name.length());
+		}
+		StringBuilder sb = new StringBuilder("metrics:");
+		for(Map.Entry<String, Object> e : metrics.entrySet()) {
+			sb.append(String.format("%n  %-"+width+"s  %s", e.getKey(), format(e.getValue())));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * show the metrics over JMX as com.dynamodan:type=Metrics,name=program.  The
+	 * attributes follow the metrics as they're added.
+	 */
+	public static synchronized void registerJmx(String program) throws Exception {
+		unregisterJmx();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.dynamodan:type=Metrics,name="+ObjectName.quote(program));
+		if(server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(new MetricsMBean(), name);
+		jmxName = name;
+	}
+
+	public static synchronized void unregisterJmx() {
+		if(jmxName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+		} catch (Exception e) {
+			// already gone
+		}
+		jmxName = null;
+	}
+
+	/**
+	 * give the summary to out every periodMillis, on a daemon thread, until stopReporting()
+	 */
+	public static synchronized void startReporting(long periodMillis, final Consumer<String> out) {
+		stopReporting();
+		if(periodMillis <= 0) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "chronessan-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				out.accept(summary());
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized void stopReporting() {
+		if(reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+
+	// 850ns, 12.3us, 4.56ms, 7.89s:
+	public static String time(long nanos) {
+		if(nanos < 1000) {
+			return nanos+"ns";
+		}
+		if(nanos < 1000000) {
+			return String.format("%.1fus", nanos / 1e3);
+		}
+		if(nanos < 1000000000L) {
+			return String.format("%.2fms", nanos / 1e6);
+		}
+		return String.format("%.2fs", nanos / 1e9);
+	}
+
+	static String format(Object metric) {
+		if(metric instanceof Gauge) {
+			double v;
+			try {
+				v = ((Gauge) metric).value();
+			} catch (RuntimeException e) {
+				return "("+e+")";
+			}
+			return (v == Math.rint(v) && !Double.isInfinite(v)) ? String.valueOf((long) v) : String.format("%.3f", v);
+		}
+		return metric.toString();
+	}
+
+	private static <T> T get(String name, Class<T> type) {
+		Object metric = registry.get(name);
+		if(metric == null) {
+			metric = registry.computeIfAbsent(name, k -> newMetric(type));
+		}
+		if(!type.isInstance(metric)) {
+			throw new IllegalArgumentException("metric "+name+" is a "+metric.getClass().getSimpleName()+", not a "+type.getSimpleName());
+		}
+		return type.cast(metric);
+	}
+
+	private static Object newMetric(Class<?> type) {
+		return (type == Counter.class) ? new Counter() : new Histogram();
+	}
+}
@@ -0,0 +1,97 @@
+// the registry as seen over JMX.  Counters and gauges are an attribute each;
+// a histogram is several, name.count, name.mean_ms, name.p50_ms, name.p90_ms,
+// name.p99_ms and name.max_ms.  The attribute list is built fresh each time
+// it's asked for, so metrics added after registering show up too.
+package com.dynamodan.metrichelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+class MetricsMBean implements DynamicMBean {
+	private static final String[] PARTS = { "count", "mean_ms", "p50_ms", "p90_ms", "p99_ms", "max_ms" };
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Map<String, Object> metrics = Metrics.all();
+		Object metric = metrics.get(attribute);
+		if(metric instanceof Counter) {
+			return ((Counter) metric).count();
+		}
+		if(metric instanceof Gauge) {
+			return ((Gauge) metric).value();
+		}
+
+		int dot = attribute.lastIndexOf('.');
+		if(dot > 0 && metrics.get(attribute.substring(0, dot)) instanceof Histogram) {
+			Histogram.Snapshot s = ((Histogram) metrics.get(attribute.substring(0, dot))).snapshot();
+			String part = attribute.substring(dot + 1);
+			switch(part) {
+				case "count": return s.count;
+				case "mean_ms": return s.mean() / 1e6;
+				case "p50_ms": return s.percentile(0.5) / 1e6;
+				case "p90_ms": return s.percentile(0.9) / 1e6;
+				case "p99_ms": return s.percentile(0.99) / 1e6;
+				case "max_ms": return s.max / 1e6;
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for(String name : attributes) {
+			try {
+				list.add(new Attribute(name, getAttribute(name)));
+			} catch (AttributeNotFoundException e) {
+				// left out, as the interface expects
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName()+" is read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+		if("summary".equals(action)) {
+			return Metrics.summary();
+		}
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for(Map.Entry<String, Object> e : Metrics.all().entrySet()) {
+			String name = e.getKey();
+			Object metric = e.getValue();
+			if(metric instanceof Counter) {
+				attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+			} else if(metric instanceof Gauge) {
+				attributes.add(new MBeanAttributeInfo(name, "double", "gauge", true, false, false));
+			} else if(metric instanceof Histogram) {
+				for(String part : PARTS) {
+					attributes.add(new MBeanAttributeInfo(name+"."+part, part.equals("count") ? "long" : "double", "histogram", true, false, false));
+				}
+			}
+		}
+		MBeanOperationInfo summary = new MBeanOperationInfo("summary", "every metric as text", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO);
+		return new MBeanInfo(getClass().getName(), "Chronessan metrics", attributes.toArray(new MBeanAttributeInfo[0]), null,
+			new MBeanOperationInfo[] { summary }, null);
+	}
+}
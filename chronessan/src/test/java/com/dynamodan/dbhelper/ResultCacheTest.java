@@ -0,0 +1,166 @@
+package com.dynamodan.dbhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ResultCacheTest extends TestCase {
+	private static final String[] LABELS = { "id", "Name", "data" };
+	private static final int[] TYPES = { Types.BIGINT, Types.VARCHAR, Types.VARBINARY };
+	private static final Object[][] ROWS = {
+		{ 1L, "plain", new byte[] { 1, 2, 3 } },
+		{ -42L, null, null },
+		{ Long.MAX_VALUE, "\u00fcn\u00efcode, and a \u0000 in it", new byte[0] },
+		{ null, "", new byte[] { (byte) 0xff } },
+	};
+
+	private File dir;
+
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("resultcache").toFile();
+	}
+
+	protected void tearDown() {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	// just enough of a ResultSet for encode(): the metadata, next() and the getters it uses
+	private static ResultSet rows(final String[] labels, final int[] types, final Object[][] rows) {
+		final ResultSetMetaData md = (ResultSetMetaData) Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+			switch(method.getName()) {
+				case "getColumnCount": return labels.length;
+				case "getColumnLabel": return labels[(Integer) args[0] - 1];
+				case "getColumnType": return types[(Integer) args[0] - 1];
+				default: throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		final int[] row = { -1 };
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+			switch(method.getName()) {
+				case "getMetaData": return md;
+				case "next": return ++row[0] < rows.length;
+				case "getBytes": return rows[row[0]][(Integer) args[0] - 1];
+				case "getString":
+					Object value = rows[row[0]][(Integer) args[0] - 1];
+					return (value == null) ? null : value.toString();
+				default: throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private static Connection connection(final String url) {
+		final DatabaseMetaData md = (DatabaseMetaData) Proxy.newProxyInstance(DatabaseMetaData.class.getClassLoader(), new Class<?>[] { DatabaseMetaData.class }, (proxy, method, args) -> {
+			if("getURL".equals(method.getName())) {
+				return url;
+			}
+			throw new UnsupportedOperationException(method.getName());
+		});
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+			if("getMetaData".equals(method.getName())) {
+				return md;
+			}
+			throw new UnsupportedOperationException(method.getName());
+		});
+	}
+
+	public void testEncodeRoundTrip() throws SQLException, IOException {
+		byte[] bytes = ResultCache.encode("hash", "v1", rows(LABELS, TYPES, ROWS));
+		CachedResult r = new CachedResult(ByteBuffer.wrap(bytes), false);
+
+		assertEquals(4, r.rowCount());
+		assertEquals(3, r.columnCount());
+		assertEquals("Name", r.label(2));
+		assertEquals(2, r.indexOf("Name"));
+		assertEquals(2, r.indexOf("name"));
+		assertEquals(-1, r.indexOf("missing"));
+		assertEquals("v1", r.getVersion());
+		assertEquals("hash", r.getKey());
+		assertFalse(r.isFromCache());
+
+		assertEquals(1L, r.get(0, "id"));
+		assertEquals("plain", r.get(0, 2));
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) r.get(0, 3)));
+		assertEquals(-42L, r.getLong(1, "id"));
+		assertNull(r.get(1, 2));
+		assertNull(r.get(1, 3));
+		assertEquals(Long.MAX_VALUE, r.getLong(2, 1));
+		assertEquals("\u00fcn\u00efcode, and a \u0000 in it", r.getString(2, "name"));
+		assertEquals(0, ((byte[]) r.get(2, 3)).length);
+		assertNull(r.get(3, 1));
+		assertEquals(0, r.getLong(3, 1));
+		assertEquals("", r.get(3, 2));
+		assertEquals(new String(new byte[] { (byte) 0xff }, StandardCharsets.UTF_8), r.getString(3, 3));
+
+		// NULL as "", like getRowHash():
+		assertEquals("", r.toMap(1).get("Name"));
+		assertEquals("-42", r.toMap(1).get("id"));
+		assertEquals(4, r.toMaps().size());
+	}
+
+	public void testEmptyResult() throws SQLException, IOException {
+		CachedResult r = new CachedResult(ByteBuffer.wrap(ResultCache.encode("hash", "", rows(LABELS, TYPES, new Object[0][]))), false);
+		assertEquals(0, r.rowCount());
+		assertEquals(3, r.columnCount());
+		try {
+			r.get(0, 1);
+			fail("read a row that isn't there");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	public void testNotACacheFile() {
+		try {
+			new CachedResult(ByteBuffer.wrap("not a cache file at all".getBytes(StandardCharsets.UTF_8)), false);
+			fail("read garbage");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testPutThenGet() throws SQLException {
+		ResultCache cache = new ResultCache(dir, 1 << 20);
+		cache.put("k", "v1", rows(LABELS, TYPES, ROWS));
+
+		CachedResult hit = cache.get("k", 0, "v1");
+		assertNotNull(hit);
+		assertTrue(hit.isFromCache());
+		assertEquals("plain", hit.getString(0, "Name"));
+
+		assertNull(cache.get("k", 0, "v2"));
+		assertNull(cache.get("other", 0, "v1"));
+		assertTrue(cache.size() > 0);
+		cache.clear();
+		assertNull(cache.get("k", 0, "v1"));
+	}
+
+	public void testKeyArraysByContent() throws SQLException {
+		Connection c = connection("jdbc:test://db");
+		assertEquals(ResultCache.key(c, "q", new byte[] { 1, 2 }), ResultCache.key(c, "q", new byte[] { 1, 2 }));
+		assertFalse(ResultCache.key(c, "q", new byte[] { 1, 2 }).equals(ResultCache.key(c, "q", new byte[] { 1, 3 })));
+		assertEquals(ResultCache.key(c, "q", (Object) new String[] { "a", "b" }), ResultCache.key(c, "q", (Object) new String[] { "a", "b" }));
+		assertEquals(ResultCache.key(c, "q", new int[] { 7 }), ResultCache.key(c, "q", new int[] { 7 }));
+		// the type is part of it, and null isn't the text "null":
+		assertFalse(ResultCache.key(c, "q", 1).equals(ResultCache.key(c, "q", 1L)));
+		assertFalse(ResultCache.key(c, "q", (Object) null).equals(ResultCache.key(c, "q", "null")));
+		assertFalse(ResultCache.key(c, "q").equals(ResultCache.key(connection("jdbc:test://other"), "q")));
+	}
+}
@@ -0,0 +1,155 @@
+package com.dynamodan.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class ConfigLoaderTest extends TestCase {
+	private File dir;
+	private Map<String, String> env;
+	private Properties properties;
+
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("configloader").toFile();
+		env = new HashMap<String, String>();
+		properties = new Properties();
+		ConfigLoader.clearCache();
+	}
+
+	protected void tearDown() {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+		ConfigLoader.clearCache();
+	}
+
+	private File write(String name, String yaml) throws IOException {
+		File f = new File(dir, name);
+		Files.write(f.toPath(), yaml.getBytes(StandardCharsets.UTF_8));
+		return f;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> load(File base, String host) throws ConfigSingletonException {
+		return (Map<String, Object>) new ConfigLoader(env, properties, host).load(base.getPath());
+	}
+
+	private static Map<Object, Object> map(Object... pairs) {
+		LinkedHashMap<Object, Object> m = new LinkedHashMap<Object, Object>();
+		for(int i = 0; i < pairs.length; i += 2) {
+			m.put(pairs[i], pairs[i + 1]);
+		}
+		return m;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testMerge() {
+		Map<Object, Object> a = map("db", map("host", "a", "port", 3306), "tables", Arrays.asList("x", "y"), "gone", 1, "first", true);
+		Map<Object, Object> b = map("db", map("host", "b"), "tables", Arrays.asList("z"), "gone", null, "added", "new");
+		String before = a.toString() + b.toString();
+
+		Map<?, ?> merged = (Map<?, ?>) ConfigLoader.merge(a, b);
+		// maps key by key, anything else replaced, null removes:
+		assertEquals(map("host", "b", "port", 3306), merged.get("db"));
+		assertEquals(Arrays.asList("z"), merged.get("tables"));
+		assertFalse(merged.containsKey("gone"));
+		assertEquals("new", merged.get("added"));
+		// keys keep the order they were first seen in:
+		assertEquals(Arrays.asList("db", "tables", "first", "added"), new ArrayList<Object>(merged.keySet()));
+		// and neither side is touched:
+		assertEquals(before, a.toString() + b.toString());
+		((Map<Object, Object>) merged.get("db")).put("host", "changed");
+		assertEquals("a", ((Map<?, ?>) a.get("db")).get("host"));
+
+		assertEquals("b", ConfigLoader.merge("a", "b"));
+		assertEquals("a", ConfigLoader.merge("a", null));
+	}
+
+	public void testOverlayFileNames() {
+		File base = new File(dir, "Nightly.yaml.conf");
+		assertEquals(new File(dir, "Nightly.prod.yaml.conf"), ConfigLoader.overlayFile(base, "prod"));
+		assertEquals(new File(dir, "Nightly.prod.yaml"), ConfigLoader.overlayFile(new File(dir, "Nightly.yaml"), "prod"));
+		assertEquals(new File(dir, "Nightly.prod.conf"), ConfigLoader.overlayFile(new File(dir, "Nightly.conf"), "prod"));
+		assertEquals(new File(dir, "Nightly.prod"), ConfigLoader.overlayFile(new File(dir, "Nightly"), "prod"));
+	}
+
+	public void testLayers() throws Exception {
+		write("common.yaml", "mysql_host: common\nmysql_port: 3306\nnightly:\n  table: a\n  batch: 10\n");
+		File base = write("Nightly.yaml.conf", "include: common.yaml\nenv: prod\nmysql_host: base\n");
+		write("Nightly.prod.yaml.conf", "mysql_host: prod\nnightly:\n  batch: 20\n");
+		write("Nightly.box1.yaml.conf", "mysql_port: 3307\n");
+
+		Map<String, Object> config = load(base, "box1");
+		assertEquals("prod", config.get("mysql_host"));
+		assertEquals(3307, config.get("mysql_port"));
+		assertEquals(map("table", "a", "batch", 20), config.get("nightly"));
+		assertFalse(config.containsKey("include"));
+
+		// no overlay for another host, and CHRONESSAN_ENV wins over env:
+		env.put("CHRONESSAN_ENV", "dev");
+		config = load(base, "box2");
+		assertEquals("base", config.get("mysql_host"));
+		assertEquals(3306, config.get("mysql_port"));
+	}
+
+	public void testOverrides() throws Exception {
+		File base = write("Nightly.yaml.conf", "mysql_host: base\nnightly:\n  table: a\n");
+		env.put("CHRONESSAN_CONF_MYSQL_HOST", "db2");
+		env.put("CHRONESSAN_CONF_NIGHTLY__BATCH", "8");
+		env.put("CHRONESSAN_CONF_NIGHTLY__TABLE", "from_env");
+		env.put("NOT_OURS", "x");
+		properties.setProperty("chronessan.conf.nightly.table", "orders");
+		properties.setProperty("chronessan.conf.sql_stats", "true");
+
+		Map<String, Object> config = load(base, null);
+		assertEquals("db2", config.get("mysql_host"));
+		// read as yaml scalars, and system properties go last:
+		assertEquals(map("table", "orders", "batch", 8), config.get("nightly"));
+		assertEquals(Boolean.TRUE, config.get("sql_stats"));
+		assertFalse(config.containsKey("not_ours"));
+	}
+
+	public void testIncludeLoopAndMissingFiles() throws IOException {
+		write("a.yaml", "include: b.yaml\nx: 1\n");
+		write("b.yaml", "include: a.yaml\ny: 2\n");
+		try {
+			load(new File(dir, "a.yaml"), null);
+			fail("loaded an include loop");
+		} catch (ConfigSingletonException e) {
+			assertTrue(e.getMessage().contains("loop"));
+		}
+		try {
+			load(new File(dir, "missing.yaml"), null);
+			fail("loaded a file that isn't there");
+		} catch (ConfigSingletonException e) {
+			// expected
+		}
+	}
+
+	public void testSameSizeEditIsSeen() throws Exception {
+		File base = write("Nightly.yaml.conf", "batch: 1\n");
+		long modified = base.lastModified();
+		List<File> files = Arrays.asList(base, new File(dir, "Nightly.prod.yaml.conf"));
+		String signature = ConfigLoader.signature(files);
+		assertEquals(1, load(base, null).get("batch"));
+
+		write("Nightly.yaml.conf", "batch: 2\n");
+		base.setLastModified(modified);
+		assertFalse(signature.equals(ConfigLoader.signature(files)));
+		assertEquals(2, load(base, null).get("batch"));
+	}
+}
@@ -0,0 +1,71 @@
+package com.dynamodan.framework;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import junit.framework.TestCase;
+
+public class CronScheduleTest extends TestCase {
+
+	private static long at(String time) {
+		return LocalDateTime.parse(time).toInstant(ZoneOffset.UTC).toEpochMilli();
+	}
+
+	private static String next(String expression, String after) {
+		long next = new CronSchedule(expression, ZoneOffset.UTC).next(at(after));
+		return (next < 0) ? "never" : LocalDateTime.ofEpochSecond(next / 1000, 0, ZoneOffset.UTC).toString();
+	}
+
+	public void testRangesAndSteps() {
+		assertEquals("2024-01-01T08:00", next("*/15 8-18/2 * * *", "2024-01-01T07:59"));
+		assertEquals("2024-01-01T08:15", next("*/15 8-18/2 * * *", "2024-01-01T08:00"));
+		assertEquals("2024-01-01T10:00", next("*/15 8-18/2 * * *", "2024-01-01T08:45"));
+		assertEquals("2024-01-02T08:00", next("*/15 8-18/2 * * *", "2024-01-01T18:45"));
+		// a single value with a step runs to the end of the field:
+		assertEquals("2024-01-01T00:25", next("5/20 * * * *", "2024-01-01T00:05"));
+		assertEquals("2024-01-01T01:05", next("5/20 * * * *", "2024-01-01T00:45"));
+		assertEquals("2024-01-01T00:30", next("1,15,30 * * * *", "2024-01-01T00:15:30"));
+	}
+
+	public void testNames() {
+		// january and february only, on weekdays:
+		assertEquals("2025-01-01T09:00", next("0 9 * jan,feb mon-fri", "2024-02-29T09:00"));
+		assertEquals("2024-01-06T00:00", next("0 0 * * SAT", "2024-01-01T00:00"));
+	}
+
+	public void testSundayIsZeroAndSeven() {
+		assertEquals("2024-01-07T00:00", next("0 0 * * 7", "2024-01-01T00:00"));
+		assertEquals("2024-01-07T00:00", next("0 0 * * 0", "2024-01-01T00:00"));
+	}
+
+	public void testEitherDayFieldWhenBothAreSet() {
+		// the 13th or a friday, like cron:
+		assertEquals("2024-01-05T00:00", next("0 0 13 * fri", "2024-01-01T00:00"));
+		assertEquals("2024-01-13T00:00", next("0 0 13 * fri", "2024-01-12T00:00"));
+		// with the other one *, only the one that's set counts:
+		assertEquals("2024-01-13T00:00", next("0 0 13 * *", "2024-01-01T00:00"));
+		assertEquals("2024-01-05T00:00", next("0 0 * * fri", "2024-01-01T00:00"));
+	}
+
+	public void testAliases() {
+		assertEquals("2024-01-01T01:00", next("@hourly", "2024-01-01T00:00"));
+		assertEquals("2024-02-01T00:00", next("@monthly", "2024-01-01T00:00"));
+		assertEquals("2024-01-07T00:00", next("@weekly", "2024-01-01T00:00"));
+	}
+
+	public void testNever() {
+		assertEquals("never", next("0 0 31 2 *", "2024-01-01T00:00"));
+	}
+
+	public void testBadExpressions() {
+		String[] bad = { "* * * *", "60 * * * *", "* 24 * * *", "0 0 0 * *", "*/0 * * * *", "0 0 * smarch *", "5-1 * * * *" };
+		for(String expression : bad) {
+			try {
+				new CronSchedule(expression);
+				fail("accepted "+expression);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.dynamodan.framework;
+
+import junit.framework.TestCase;
+
+public class JobRunnerTest extends TestCase {
+
+	public void testParseDuration() throws ConfigSingletonException {
+		assertEquals(250, JobRunner.parseDuration("250ms"));
+		assertEquals(30000, JobRunner.parseDuration("30s"));
+		assertEquals(300000, JobRunner.parseDuration("5m"));
+		assertEquals(7200000, JobRunner.parseDuration("2h"));
+		assertEquals(3600000, JobRunner.parseDuration(" 1 H "));
+		// a bare number is seconds:
+		assertEquals(10000, JobRunner.parseDuration("10"));
+	}
+
+	public void testBadDuration() {
+		String[] bad = { "", "soon", "5 minutes", "1.5h" };
+		for(String s : bad) {
+			try {
+				JobRunner.parseDuration(s);
+				fail("read "+s);
+			} catch (ConfigSingletonException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.dynamodan.mailhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.mail.Session;
+
+import junit.framework.TestCase;
+
+public class AlertDispatcherTest extends TestCase {
+	private File spool;
+	private SmtpStandIn smtp;
+
+	protected void setUp() throws IOException {
+		spool = Files.createTempDirectory("alertspool").toFile();
+		smtp = new SmtpStandIn();
+	}
+
+	protected void tearDown() throws IOException {
+		smtp.stop();
+		File[] files = spool.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		spool.delete();
+	}
+
+	private AlertDispatcher dispatcher(int port) {
+		Session session = AlertDispatcher.createSession("localhost", port, null, null, false);
+		return new AlertDispatcher(session, spool);
+	}
+
+	private int spooled() {
+		return spool.list((dir, name) -> name.endsWith(".alert")).length;
+	}
+
+	public void testDigestsByRecipient() throws IOException {
+		AlertDispatcher d = dispatcher(smtp.getPort());
+		d.spool("job@example.com", "ops@example.com", "disk full", "on /var");
+		d.spool("job@example.com", "dev@example.com", "slow query", "12s");
+		d.spool("job@example.com", "ops@example.com", "disk still full", "on /var");
+		d.spool("job@example.com", "ops@example.com", "giving up", "bye");
+		d.start();
+		assertTrue(d.awaitDelivery(10000));
+
+		List<SmtpStandIn.Received> received = smtp.getReceived();
+		assertEquals(2, received.size());
+		assertEquals("ops@example.com", received.get(0).to.get(0));
+		assertEquals("[3 alerts] disk full", received.get(0).subject());
+		assertTrue(received.get(0).data.toString().contains("giving up"));
+		assertEquals("dev@example.com", received.get(1).to.get(0));
+		assertEquals("slow query", received.get(1).subject());
+		// both over the one connection:
+		assertEquals(1, smtp.getConnections());
+		assertEquals(0, spooled());
+	}
+
+	public void testRateLimitHoldsLaterAlerts() throws IOException {
+		AlertDispatcher d = dispatcher(smtp.getPort());
+		d.setMinInterval(3600);
+		d.submit("job@example.com", "ops@example.com", "first", "one");
+		assertTrue(d.awaitDelivery(10000));
+
+		d.submit("job@example.com", "ops@example.com", "second", "two");
+		long start = System.currentTimeMillis();
+		assertFalse(d.awaitDelivery(10000));
+		// held by the rate limit, so that shouldn't have waited out the timeout:
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(1, smtp.getReceived().size());
+		assertEquals(1, spooled());
+
+		// another recipient isn't held up by it:
+		d.submit("job@example.com", "dev@example.com", "third", "three");
+		d.awaitDelivery(10000);
+		assertEquals(2, smtp.getReceived().size());
+		assertEquals("third", smtp.getReceived().get(1).subject());
+
+		// and once the limit allows, the held one goes:
+		AlertDispatcher later = dispatcher(smtp.getPort());
+		later.resume();
+		assertTrue(later.awaitDelivery(10000));
+		assertEquals(3, smtp.getReceived().size());
+		assertEquals("second", smtp.getReceived().get(2).subject());
+	}
+
+	public void testLeftoversGoOutOnTheNextRun() throws IOException {
+		SmtpStandIn down = new SmtpStandIn();
+		down.stop();
+		AlertDispatcher d = dispatcher(down.getPort());
+		d.submit("job@example.com", "ops@example.com", "left over", "from last time");
+		assertFalse(d.awaitDelivery(500));
+		assertEquals(1, spooled());
+
+		AlertDispatcher next = dispatcher(smtp.getPort());
+		next.resume();
+		assertTrue(next.awaitDelivery(10000));
+		assertEquals(1, smtp.getReceived().size());
+		assertEquals("left over", smtp.getReceived().get(0).subject());
+		assertEquals(0, spooled());
+	}
+
+	public void testBusySpoolDoesNotStopTheSender() throws IOException {
+		AlertDispatcher d = dispatcher(smtp.getPort());
+		RandomAccessFile lockFile = new RandomAccessFile(new File(spool, ".lock"), "rw");
+		try {
+			// held in this jvm, so the sender's tryLock() throws rather than returning null:
+			FileLock lock = lockFile.getChannel().lock();
+			d.submit("job@example.com", "ops@example.com", "busy", "spool");
+			long start = System.currentTimeMillis();
+			assertFalse(d.awaitDelivery(500));
+			// the sender is still there waiting, not dead:
+			assertTrue(System.currentTimeMillis() - start >= 400);
+			assertEquals(0, smtp.getReceived().size());
+			lock.release();
+		} finally {
+			lockFile.close();
+		}
+		d.start();
+		assertTrue(d.awaitDelivery(10000));
+		assertEquals(1, smtp.getReceived().size());
+	}
+}
@@ -0,0 +1,129 @@
+// just enough of an smtp server to take mail from javax.mail on localhost
+// and keep it, for the tests.  stop() makes the port refuse connections.
+package com.dynamodan.mailhelper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+class SmtpStandIn {
+	// a message as it came in: who it was for, and its headers and body
+	static class Received {
+		final List<String> to = new ArrayList<String>();
+		final StringBuilder data = new StringBuilder();
+
+		String subject() {
+			for(String line : data.toString().split("\r\n")) {
+				if(line.startsWith("Subject: ")) {
+					return line.substring(9);
+				}
+			}
+			return null;
+		}
+	}
+
+	private final ServerSocket server;
+	private final List<Received> received = new ArrayList<Received>();
+	private int connections = 0;
+
+	SmtpStandIn() throws IOException {
+		server = new ServerSocket(0);
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "smtp-stand-in");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	int getPort() {
+		return server.getLocalPort();
+	}
+
+	synchronized List<Received> getReceived() {
+		return new ArrayList<Received>(received);
+	}
+
+	synchronized int getConnections() {
+		return connections;
+	}
+
+	void stop() throws IOException {
+		server.close();
+	}
+
+	private void accept() {
+		while(!server.isClosed()) {
+			final Socket s;
+			try {
+				s = server.accept();
+			} catch (IOException e) {
+				// closed
+				return;
+			}
+			synchronized(this) {
+				connections++;
+			}
+			// a connection each, since a dispatcher keeps its connection open between sends:
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						converse(s);
+						s.close();
+					} catch (IOException e) {
+						// the client went away
+					}
+				}
+			}, "smtp-stand-in-connection");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void converse(Socket s) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+		OutputStream out = s.getOutputStream();
+		reply(out, "220 localhost stand-in");
+		Received message = null;
+		String line;
+		while((line = in.readLine()) != null) {
+			String command = line.toUpperCase();
+			if(command.startsWith("EHLO") || command.startsWith("HELO")) {
+				reply(out, "250 localhost");
+			} else if(command.startsWith("MAIL FROM")) {
+				message = new Received();
+				reply(out, "250 ok");
+			} else if(command.startsWith("RCPT TO")) {
+				message.to.add(line.substring(line.indexOf('<') + 1, line.lastIndexOf('>')));
+				reply(out, "250 ok");
+			} else if(command.equals("DATA")) {
+				reply(out, "354 go ahead");
+				while((line = in.readLine()) != null && !line.equals(".")) {
+					message.data.append(line.startsWith("..") ? line.substring(1) : line).append("\r\n");
+				}
+				synchronized(this) {
+					received.add(message);
+				}
+				reply(out, "250 queued");
+			} else if(command.equals("QUIT")) {
+				reply(out, "221 bye");
+				return;
+			} else {
+				// RSET, NOOP
+				reply(out, "250 ok");
+			}
+		}
+	}
+
+	private static void reply(OutputStream out, String line) throws IOException {
+		out.write((line+"\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+}
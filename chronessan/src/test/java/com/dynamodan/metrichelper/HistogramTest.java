@@ -0,0 +1,73 @@
+package com.dynamodan.metrichelper;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+
+	public void testExactBelow64() {
+		for(int v = 0; v < 64; v++) {
+			assertEquals(v, Histogram.index(v));
+			assertEquals(v, Histogram.middle(v));
+		}
+		assertEquals(64, Histogram.index(64));
+		assertEquals(64, Histogram.index(65));
+		assertEquals(65, Histogram.index(66));
+	}
+
+	public void testBucketsHoldTheirValues() {
+		long[] values = { 64, 100, 127, 128, 1000, 4095, 4096, 1000000, 999999999L, 1L << 40, (1L << 40) + 12345, Long.MAX_VALUE / 3, Long.MAX_VALUE };
+		int last = -1;
+		for(long v : values) {
+			int i = Histogram.index(v);
+			assertTrue("index("+v+") went down", i >= last);
+			last = i;
+			assertTrue(Histogram.lowest(i) <= v);
+			if(v < Long.MAX_VALUE / 2) {
+				assertTrue(v < Histogram.lowest(i + 1));
+			}
+			// read back within half a bucket, 1/64 of the value:
+			long middle = Histogram.middle(i);
+			assertTrue("middle of "+v+" is "+middle, Math.abs(middle - v) <= v / 64 + 1);
+		}
+	}
+
+	public void testEveryValueInOrder() {
+		int last = Histogram.index(0);
+		for(long v = 1; v < 200000; v++) {
+			int i = Histogram.index(v);
+			assertTrue(i == last || i == last + 1);
+			last = i;
+		}
+	}
+
+	public void testPercentiles() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.snapshot().percentile(0.5));
+		assertEquals("n=0", h.toString());
+
+		for(long v = 1; v <= 1000; v++) {
+			h.record(v * 1000);
+		}
+		Histogram.Snapshot s = h.snapshot();
+		assertEquals(1000, s.count);
+		assertEquals(1000000, s.max);
+		assertEquals(500500.0, s.mean(), 0.001);
+		assertEquals(500000, s.percentile(0.5), 500000 * 0.03);
+		assertEquals(990000, s.percentile(0.99), 990000 * 0.03);
+		// never past the largest one recorded:
+		assertEquals(1000000, s.percentile(1.0));
+		assertEquals(1000, s.percentile(0.0), 1000 * 0.03);
+	}
+
+	public void testNegativeAndHugeValues() {
+		Histogram h = new Histogram();
+		h.record(-5);
+		h.record(Long.MAX_VALUE);
+		Histogram.Snapshot s = h.snapshot();
+		assertEquals(2, s.count);
+		assertEquals(0, s.percentile(0.5));
+		assertEquals(Long.MAX_VALUE, s.max);
+		h.reset();
+		assertEquals(0, h.count());
+	}
+}